@@ -0,0 +1,137 @@
+package benchmark;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import message.MessageCodec;
+import message.MessageReader;
+import message.MessageType;
+import node.Identifier;
+import node.NodeIdentifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import util.BufferPool;
+
+/**
+ * Encode/decode throughput of the message codec for a NODES answer (k node
+ * triples) and a DATA message (a full chunk of payload).
+ *
+ * @author jln
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	@Param({ "160", "256" })
+	private int idBits;
+
+	@Param({ "20" })
+	private int numNodes;
+
+	private BufferPool pool;
+	private MessageReader reader;
+
+	private Identifier sender;
+	private Identifier receiver;
+	private List<NodeIdentifier> nodes;
+	private byte[] payload;
+
+	private ByteBuffer encodedNodes;
+	private ByteBuffer encodedData;
+
+	@Setup
+	public void setup() {
+		pool = new BufferPool(MessageCodec.MAX_MESSAGE_SIZE, 16);
+		reader = new MessageReader(idBits);
+
+		sender = Identifier.getRandomIdentifier(idBits);
+		receiver = Identifier.getRandomIdentifier(idBits);
+		nodes = new ArrayList<NodeIdentifier>();
+		for (int i = 0; i < numNodes; i++) {
+			nodes.add(new NodeIdentifier(idBits, Identifier
+					.getRandomIdentifier(idBits).getBytes(),
+					new InetSocketAddress("127.0.0.1", 50000 + i)));
+		}
+
+		payload = new byte[MessageCodec.MAX_MESSAGE_SIZE
+				- MessageCodec.headerSize(idBits) - idBits / 8 - 8 - 2];
+
+		encodedNodes = ByteBuffer.allocateDirect(MessageCodec.MAX_MESSAGE_SIZE);
+		encodeNodes(encodedNodes);
+		encodedNodes.flip();
+
+		encodedData = ByteBuffer.allocateDirect(MessageCodec.MAX_MESSAGE_SIZE);
+		encodeData(encodedData);
+		encodedData.flip();
+	}
+
+	private void encodeNodes(ByteBuffer buffer) {
+		MessageCodec.writeHeader(buffer, MessageType.NODES, sender, receiver, 42L);
+		MessageCodec.writeNodes(buffer, nodes);
+	}
+
+	private void encodeData(ByteBuffer buffer) {
+		MessageCodec.writeHeader(buffer, MessageType.DATA, sender, receiver, 42L);
+		MessageCodec.writeID(buffer, sender);
+		buffer.putInt(100);
+		buffer.putInt(7);
+		MessageCodec.writeBytes(buffer, payload);
+	}
+
+	@Benchmark
+	public int encodeNodes() {
+		ByteBuffer buffer = pool.acquire();
+		encodeNodes(buffer);
+		int size = buffer.position();
+		pool.release(buffer);
+		return size;
+	}
+
+	@Benchmark
+	public void decodeNodes(Blackhole bh) {
+		encodedNodes.rewind();
+		reader.wrap(encodedNodes);
+		bh.consume(reader.getRpcID());
+		bh.consume(reader.readNodes());
+	}
+
+	@Benchmark
+	public int encodeData() {
+		ByteBuffer buffer = pool.acquire();
+		encodeData(buffer);
+		int size = buffer.position();
+		pool.release(buffer);
+		return size;
+	}
+
+	@Benchmark
+	public void decodeData(Blackhole bh) {
+		encodedData.rewind();
+		reader.wrap(encodedData);
+		bh.consume(reader.getRpcID());
+		bh.consume(reader.readID());
+		bh.consume(reader.readInt());
+		bh.consume(reader.readInt());
+		bh.consume(reader.readBytesView());
+	}
+}
@@ -0,0 +1,90 @@
+package benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import node.Identifier;
+import node.NodeIdentifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import routingtable.RoutingTableImpl;
+
+/**
+ * Measures k-closest queries from several threads while another thread keeps
+ * offering new contacts to the routing table. The readers work on snapshots,
+ * so their time should stay close to the single threaded one of
+ * {@link RoutingTableBenchmark}.
+ *
+ * @author jln
+ *
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Djava.util.logging.config.file=bench/logging.properties" })
+public class ConcurrentRoutingTableBenchmark {
+
+	private static final int ID_BITS = 160;
+
+	private static final int K = 20;
+
+	private static final int CONTACTS = 100000;
+
+	private RoutingTableImpl routingTable;
+
+	private NodeIdentifier[] contacts;
+	private Identifier[] targets;
+
+	@Setup
+	public void setup() {
+		routingTable = new RoutingTableImpl(K,
+				Identifier.getRandomIdentifier(ID_BITS), null);
+
+		contacts = new NodeIdentifier[CONTACTS];
+		for (int i = 0; i < contacts.length; i++) {
+			contacts[i] = new NodeIdentifier(ID_BITS, Identifier
+					.getRandomIdentifier(ID_BITS).getBytes(), null);
+			routingTable.insert(contacts[i]);
+		}
+
+		targets = new Identifier[1024];
+		for (int i = 0; i < targets.length; i++) {
+			targets[i] = Identifier.getRandomIdentifier(ID_BITS);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = 0;
+	}
+
+	@Benchmark
+	@Group("readWrite")
+	@GroupThreads(3)
+	public List<NodeIdentifier> closest(Cursor cursor) {
+		return routingTable.getClosestNodesTo(targets[cursor.next++
+				& (targets.length - 1)]);
+	}
+
+	@Benchmark
+	@Group("readWrite")
+	@GroupThreads(1)
+	public void insert(Cursor cursor) {
+		// Known contacts only move, the others refill the replacement caches
+		routingTable.insert(contacts[cursor.next++ % contacts.length]);
+	}
+}
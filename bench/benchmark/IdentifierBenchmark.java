@@ -0,0 +1,160 @@
+package benchmark;
+
+import java.math.BigInteger;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import node.Identifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the packed {@link Identifier} with the former BitSet based
+ * implementation (see {@link BitSetIdentifier}) on the operations used when
+ * inserting into buckets and sorting by distance. The allocating
+ * {@link Identifier#distanceTo(Identifier)} is measured as well, for the
+ * callers that still need the distance as a number.
+ *
+ * @author jln
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentifierBenchmark {
+
+	@Param({ "8", "160", "256" })
+	private int size;
+
+	private Identifier target;
+	private Identifier a;
+	private Identifier b;
+
+	private BitSetIdentifier oldTarget;
+	private BitSetIdentifier oldA;
+	private BitSetIdentifier oldB;
+
+	private int bit;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		byte[] t = new byte[size / 8];
+		byte[] x = new byte[size / 8];
+		byte[] y = new byte[size / 8];
+		random.nextBytes(t);
+		random.nextBytes(x);
+		random.nextBytes(y);
+
+		target = new Identifier(size, t);
+		a = new Identifier(size, x);
+		b = new Identifier(size, y);
+
+		oldTarget = new BitSetIdentifier(size, t);
+		oldA = new BitSetIdentifier(size, x);
+		oldB = new BitSetIdentifier(size, y);
+
+		// The old implementation only handled the leading bits of multi-byte IDs
+		bit = 1;
+	}
+
+	@Benchmark
+	public int compareDistance() {
+		return target.compareDistance(a, b);
+	}
+
+	@Benchmark
+	public int compareDistanceBitSet() {
+		return oldTarget.distanceTo(oldA).compareTo(oldTarget.distanceTo(oldB));
+	}
+
+	@Benchmark
+	public BigInteger distanceTo() {
+		return target.distanceTo(a);
+	}
+
+	@Benchmark
+	public BigInteger distanceToBitSet() {
+		return oldTarget.distanceTo(oldA);
+	}
+
+	@Benchmark
+	public boolean bitAt() {
+		return a.bitAt(bit);
+	}
+
+	@Benchmark
+	public boolean bitAtBitSet() {
+		return oldA.isBitSetAt(bit);
+	}
+
+	@Benchmark
+	public int commonPrefixLength() {
+		return target.commonPrefixLength(a);
+	}
+
+	@Benchmark
+	public int hashCodeIdentifier() {
+		return a.hashCode();
+	}
+
+	@Benchmark
+	public int hashCodeBitSet() {
+		return oldA.hashCode();
+	}
+
+	/**
+	 * The BitSet based identifier as it was before being packed into longs.
+	 */
+	static class BitSetIdentifier {
+		private BitSet bits;
+
+		private int size;
+
+		BitSetIdentifier(int size, byte[] bytes) {
+			this.size = size;
+			this.bits = BitSet.valueOf(bytes);
+		}
+
+		BigInteger distanceTo(BitSetIdentifier otherID) {
+			BitSet distance = (BitSet) bits.clone();
+			distance.xor(otherID.bits);
+			return new BigInteger(1, distance.toByteArray());
+		}
+
+		boolean isBitSetAt(int index) {
+			BigInteger intValue = new BigInteger(1, bits.toByteArray());
+			int numOfTrimmedZeros = size - intValue.bitLength();
+
+			if (index < numOfTrimmedZeros) {
+				return false;
+			}
+
+			return bits.get(bits.length() - (index + numOfTrimmedZeros) - 1);
+		}
+
+		@Override
+		public int hashCode() {
+			return toString().hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return new BigInteger(1, bits.toByteArray()).toString();
+		}
+	}
+}
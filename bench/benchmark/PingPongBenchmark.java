@@ -0,0 +1,104 @@
+package benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import message.MessageCallback;
+import node.Identifier;
+import node.Node;
+import node.NodeIdentifier;
+import sim.LoopbackNetwork;
+import store.MemoryValueStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the PING -> PONG round trip time between two nodes on localhost.
+ * With the old sleep-polling receive loop every hop waited up to 10 ms for
+ * the next poll (p50 around 10 ms), with the selector based loop the round
+ * trip is dominated by the loopback socket (p50 below 1 ms).
+ *
+ * Over a {@link LoopbackNetwork} there is no socket at all, what remains is
+ * what the protocol itself costs: encoding, decoding, the handoff to the
+ * workers and the ack bookkeeping.
+ *
+ * @author jln
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgs = { "-Djava.util.logging.config.file=bench/logging.properties" })
+public class PingPongBenchmark {
+
+	@Param({ "udp", "loopback" })
+	public String transport;
+
+	private Node first;
+	private Node sender;
+	private NodeIdentifier receiver;
+
+	@Setup
+	public void setup() throws InterruptedException {
+		if ("loopback".equals(transport)) {
+			LoopbackNetwork network = new LoopbackNetwork();
+			first = new Node(Identifier.getRandomIdentifier(Node.DEFAULT_ID_BITS),
+					new MemoryValueStore(), new MemoryValueStore(),
+					network.newTransport(), null);
+			sender = new Node(Identifier.getRandomIdentifier(Node.DEFAULT_ID_BITS),
+					new MemoryValueStore(), new MemoryValueStore(),
+					network.newTransport(), first.getContact());
+		} else {
+			// The first node binds the initial port, the second one joins via it
+			first = new Node();
+			sender = new Node();
+		}
+
+		while (sender.getNeighbors().isEmpty()) {
+			Thread.sleep(10);
+		}
+		receiver = sender.getNeighbors().iterator().next();
+	}
+
+	@TearDown
+	public void tearDown() {
+		sender.close();
+		first.close();
+	}
+
+	@Benchmark
+	public boolean pingPong() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final boolean[] answered = new boolean[1];
+
+		sender.sendPing(receiver, new MessageCallback() {
+			@Override
+			public void onReceive() {
+				answered[0] = true;
+				latch.countDown();
+			}
+
+			@Override
+			public void onTimeout() {
+				latch.countDown();
+			}
+
+			@Override
+			public void onCancel() {
+				latch.countDown();
+			}
+		});
+
+		latch.await();
+		return answered[0];
+	}
+}
@@ -0,0 +1,110 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import node.Identifier;
+import node.NodeIdentifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import routingtable.RoutingTableImpl;
+
+/**
+ * Measures k-closest queries on routing tables offered many contacts: the
+ * bucket tree walk of {@link RoutingTableImpl#getClosestNodesTo(Identifier)}
+ * against sorting all entries by distance (what the routing table did
+ * before). Also measures {@link RoutingTableImpl#insert(NodeIdentifier)} of
+ * the contacts offered before, which moves the known ones and refills the
+ * replacement caches with the others, publishing a new snapshot every time.
+ *
+ * @author jln
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Djava.util.logging.config.file=bench/logging.properties" })
+public class RoutingTableBenchmark {
+
+	private static final int ID_BITS = 160;
+
+	@Param({ "100", "1000", "10000", "100000" })
+	private int contacts;
+
+	@Param({ "20" })
+	private int k;
+
+	private RoutingTableImpl routingTable;
+	private List<NodeIdentifier> entries;
+	private NodeIdentifier[] offered;
+
+	private Identifier[] targets;
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		// No node, contacts that don't fit only go to the replacement caches
+		routingTable = new RoutingTableImpl(k,
+				Identifier.getRandomIdentifier(ID_BITS), null);
+
+		offered = new NodeIdentifier[contacts];
+		for (int i = 0; i < contacts; i++) {
+			offered[i] = new NodeIdentifier(ID_BITS, Identifier
+					.getRandomIdentifier(ID_BITS).getBytes(), null);
+			routingTable.insert(offered[i]);
+		}
+		// Only the buckets covering the own ID split, so the table keeps
+		// about k * log2(contacts / k) of them
+		entries = new ArrayList<NodeIdentifier>(routingTable.getEntries());
+
+		targets = new Identifier[1024];
+		for (int i = 0; i < targets.length; i++) {
+			targets[i] = Identifier.getRandomIdentifier(ID_BITS);
+		}
+	}
+
+	private Identifier nextTarget() {
+		return targets[next++ & (targets.length - 1)];
+	}
+
+	@Benchmark
+	public void insert() {
+		routingTable.insert(offered[next++ % offered.length]);
+	}
+
+	@Benchmark
+	public List<NodeIdentifier> treeWalk() {
+		return routingTable.getClosestNodesTo(nextTarget());
+	}
+
+	@Benchmark
+	public List<NodeIdentifier> sortAll() {
+		final Identifier target = nextTarget();
+		List<NodeIdentifier> temp = new ArrayList<NodeIdentifier>(entries);
+
+		Collections.sort(temp, new Comparator<NodeIdentifier>() {
+			@Override
+			public int compare(NodeIdentifier o1, NodeIdentifier o2) {
+				return target.distanceTo(o1).compareTo(target.distanceTo(o2));
+			}
+		});
+
+		return temp.subList(0, k);
+	}
+}
@@ -0,0 +1,102 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import node.BlockingNode;
+import node.Node;
+import node.NodeIdentifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Keeps many pings in flight at once, written three ways: futures only
+ * ("async"), one blocking call per platform thread ("platform") and one
+ * blocking call per virtual thread ("virtual"). Before Java 21 "virtual" runs
+ * on platform threads as well.
+ *
+ * @author jln
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Djava.util.logging.config.file=bench/logging.properties" })
+public class ThreadModeBenchmark {
+
+	@Param({ "async", "platform", "virtual" })
+	private String mode;
+
+	@Param({ "1000" })
+	private int inFlight;
+
+	private Node sender;
+	private NodeIdentifier receiver;
+	private BlockingNode blocking;
+
+	@Setup
+	public void setup() throws InterruptedException {
+		// The first node binds the initial port, the second one joins via it
+		new Node();
+		sender = new Node();
+
+		while (sender.getNeighbors().isEmpty()) {
+			Thread.sleep(10);
+		}
+		receiver = sender.getNeighbors().iterator().next();
+		blocking = new BlockingNode(sender, "virtual".equals(mode));
+	}
+
+	@TearDown
+	public void tearDown() {
+		blocking.shutdown();
+	}
+
+	@Benchmark
+	public int pings() throws InterruptedException, ExecutionException {
+		if ("async".equals(mode)) {
+			List<CompletableFuture<NodeIdentifier>> pongs = new ArrayList<CompletableFuture<NodeIdentifier>>(
+					inFlight);
+			for (int i = 0; i < inFlight; i++) {
+				pongs.add(sender.ping(receiver));
+			}
+			for (CompletableFuture<NodeIdentifier> pong : pongs) {
+				pong.get();
+			}
+			return pongs.size();
+		}
+
+		List<Future<NodeIdentifier>> pongs = new ArrayList<Future<NodeIdentifier>>(
+				inFlight);
+		for (int i = 0; i < inFlight; i++) {
+			pongs.add(blocking.submit(new Callable<NodeIdentifier>() {
+				@Override
+				public NodeIdentifier call() throws Exception {
+					return blocking.ping(receiver);
+				}
+			}));
+		}
+		for (Future<NodeIdentifier> pong : pongs) {
+			pong.get();
+		}
+		return pongs.size();
+	}
+}
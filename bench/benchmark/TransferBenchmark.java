@@ -0,0 +1,72 @@
+package benchmark;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import node.FileIdentifier;
+import node.Node;
+import node.NodeIdentifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Moves a multi-megabyte value between two nodes on localhost (DATA_REQ,
+ * then the windowed chunk transfer). The throughput in MB/s is sizeMB
+ * divided by the time per operation.
+ *
+ * @author jln
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Djava.util.logging.config.file=bench/logging.properties" })
+public class TransferBenchmark {
+
+	@Param({ "1", "8" })
+	private int sizeMB;
+
+	@Param({ "8", "32", "128" })
+	private int window;
+
+	private Node sender;
+	private Node receiver;
+	private NodeIdentifier senderContact;
+	private FileIdentifier fileID;
+
+	@Setup
+	public void setup() throws InterruptedException {
+		sender = new Node();
+		receiver = new Node();
+		sender.setTransferWindow(window);
+		senderContact = sender.getContact();
+
+		while (receiver.getNeighbors().isEmpty()) {
+			Thread.sleep(10);
+		}
+
+		byte[] value = new byte[sizeMB << 20];
+		new Random(42).nextBytes(value);
+
+		fileID = FileIdentifier.forKey(sender.getIdBits(), "bench-" + sizeMB);
+		sender.storeData(fileID, value);
+	}
+
+	@Benchmark
+	public int transfer() throws InterruptedException, ExecutionException {
+		return receiver.sendDataReq(senderContact, fileID).get().remaining();
+	}
+}
@@ -0,0 +1,102 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import node.Identifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import store.IValueStore;
+import store.MemoryValueStore;
+import store.SegmentValueStore;
+
+/**
+ * Reads and writes of the value stores: the {@link MemoryValueStore} against
+ * the {@link SegmentValueStore} (in a temporary directory). The store holds a
+ * fixed set of keys and writes overwrite them, so the segment store keeps
+ * appending and compacting like under republishing.
+ *
+ * @author jln
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Djava.util.logging.config.file=bench/logging.properties" })
+public class ValueStoreBenchmark {
+
+	private static final int ID_BITS = 160;
+
+	@Param({ "memory", "segment" })
+	private String store;
+
+	@Param({ "64", "4096" })
+	private int valueSize;
+
+	@Param({ "10000" })
+	private int keys;
+
+	private IValueStore values;
+	private Identifier[] ids;
+	private ByteBuffer value;
+	private int next = 0;
+
+	@Setup
+	public void setup() throws IOException {
+		if ("segment".equals(store)) {
+			File dir = Files.createTempDirectory("kademlia-bench").toFile();
+			dir.deleteOnExit();
+			values = new SegmentValueStore(dir, ID_BITS,
+					SegmentValueStore.DEFAULT_SEGMENT_SIZE, true);
+		} else {
+			values = new MemoryValueStore();
+		}
+
+		byte[] bytes = new byte[valueSize];
+		new Random(42).nextBytes(bytes);
+		value = ByteBuffer.wrap(bytes);
+
+		ids = new Identifier[keys];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = Identifier.getRandomIdentifier(ID_BITS);
+			values.put(ids[i], value);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		values.close();
+	}
+
+	private Identifier nextKey() {
+		return ids[next++ % ids.length];
+	}
+
+	@Benchmark
+	public ByteBuffer get() {
+		return values.get(nextKey());
+	}
+
+	@Benchmark
+	public void put() {
+		values.put(nextKey(), value);
+	}
+}
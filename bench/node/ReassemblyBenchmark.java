@@ -0,0 +1,107 @@
+package node;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import message.MessageCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reassembles a value from its chunks in an {@link IncomingTransfer}, the
+ * receiving side of a data transfer without the network: copying the chunks
+ * into place plus the acks it asks for. The chunks arrive in order or
+ * shuffled, the latter keeps a gap open, so nearly every chunk is acked with
+ * a bitmap.
+ *
+ * In the package of the transfer, which isn't public API.
+ *
+ * @author jln
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReassemblyBenchmark {
+
+	private static final int ID_BITS = 160;
+
+	@Param({ "64", "1024" })
+	private int sizeKB;
+
+	@Param({ "false", "true" })
+	private boolean shuffled;
+
+	private NodeIdentifier sender;
+	private FileIdentifier fileID;
+	private int length;
+	private int chunkSize;
+
+	// The chunks in the order they arrive
+	private int[] order;
+	private ByteBuffer[] chunks;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		sender = new NodeIdentifier(ID_BITS, Identifier.getRandomIdentifier(
+				ID_BITS).getBytes(), null);
+		fileID = new FileIdentifier(ID_BITS, "bench".getBytes());
+
+		length = sizeKB << 10;
+		chunkSize = MessageCodec.chunkSize(ID_BITS);
+		byte[] value = new byte[length];
+		random.nextBytes(value);
+
+		int numChunks = (length + chunkSize - 1) / chunkSize;
+		chunks = new ByteBuffer[numChunks];
+		order = new int[numChunks];
+		for (int i = 0; i < numChunks; i++) {
+			int offset = i * chunkSize;
+			chunks[i] = ByteBuffer.wrap(value, offset,
+					Math.min(chunkSize, length - offset)).slice();
+			order[i] = i;
+		}
+
+		if (shuffled) {
+			for (int i = numChunks - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int swap = order[i];
+				order[i] = order[j];
+				order[j] = swap;
+			}
+		}
+	}
+
+	@Benchmark
+	public int reassemble() {
+		IncomingTransfer transfer = new IncomingTransfer(sender, 1L, fileID,
+				length, chunkSize);
+		int acked = 0;
+
+		for (int index : order) {
+			ByteBuffer chunk = chunks[index];
+			chunk.rewind();
+			if (transfer.receivedChunk(index, chunk)) {
+				acked += transfer.ackReceived();
+				acked += transfer.ackBitmap(MessageCodec.MAX_MESSAGE_SIZE
+						- MessageCodec.headerSize(ID_BITS) - 4 - 2).length;
+			}
+		}
+		return acked;
+	}
+}
@@ -5,15 +5,30 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
 import java.util.logging.LogManager;
+import java.util.logging.Logger;
 import node.FileIdentifier;
 
 import node.Identifier;
+import node.LookupResult;
 import node.Node;
 import node.NodeIdentifier;
 
 public class CLI {
+    private final static Logger LOGGER = Logger.getLogger(CLI.class.getName());
+
+    // How long a command waits for the network (in seconds)
+    private static final long TIMEOUT = 30;
 
     public static void main(String[] args) throws IOException {
         System.setProperty("java.util.logging.config.file",
@@ -44,35 +59,91 @@ public class CLI {
             //lookup fileID
             case "lookup":
                 String fileID = splitted[1];
-                // TODO not implemented
-            	// Zum testen:
-            	FileIdentifier fileIDToFind = new FileIdentifier(1, fileID.getBytes());
-            	node.findValue(fileIDToFind);
+                FileIdentifier fileIDToFind = FileIdentifier.forKey(node.getIdBits(), fileID);
+                node.findValue(fileIDToFind, TIMEOUT, TimeUnit.SECONDS).whenComplete(new BiConsumer<LookupResult, Throwable>() {
+                    @Override
+                    public void accept(LookupResult result, Throwable t) {
+                        System.out.println(t != null ? "Lookup failed: " + t : result);
+                    }
+                });
                 break;
-            //request fileID
+            //request fileID [path]
             case "request": 
                 String fileID3 = splitted[1];
-                FileIdentifier fileIDToFind2 = new FileIdentifier(1, fileID3.getBytes());
-                node.sendDataReq(fileIDToFind2);
+                final String path = splitted.length > 2 ? splitted[2] : null;
+                FileIdentifier fileIDToFind2 = FileIdentifier.forKey(node.getIdBits(), fileID3);
+                node.sendDataReq(fileIDToFind2, TIMEOUT, TimeUnit.SECONDS).whenComplete(new BiConsumer<ByteBuffer, Throwable>() {
+                    @Override
+                    public void accept(ByteBuffer value, Throwable t) {
+                        if (t != null) {
+                            System.out.println("Request failed: " + t);
+                        } else if (path == null) {
+                            System.out.println("Received " + value.remaining() + " bytes");
+                        } else {
+                            writeFile(path, value);
+                        }
+                    }
+                });
             	break;
             //leave
             case "leave":
                 node.leave();
-                break;
+                return;
             //store fileID data
             case "store":
                 String fileID2 = splitted[1];
                 String data = splitted[2];
-            	// TODO not implemented
-            	// Zum testen:
-            	FileIdentifier fileIDToStore = new FileIdentifier(1,fileID2.getBytes());
-            	node.store(fileIDToStore);
-                node.storeData(fileIDToStore,data);
-            	break;
+                FileIdentifier fileIDToStore = FileIdentifier.forKey(node.getIdBits(), fileID2);
+                node.storeData(fileIDToStore, data.getBytes(StandardCharsets.UTF_8));
+                node.store(fileIDToStore, TIMEOUT, TimeUnit.SECONDS).whenComplete(printStored(fileIDToStore));
+                break;
+            //storefile fileID path
+            case "storefile":
+                FileIdentifier fileIDToStore2 = FileIdentifier.forKey(node.getIdBits(), splitted[1]);
+                try (FileChannel file = FileChannel.open(Paths.get(splitted[2]))) {
+                    // The store copies straight from the mapped file
+                    MappedByteBuffer content = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+                    node.storeData(fileIDToStore2, content);
+                } catch (IOException e) {
+                    // Keep reading commands, the path may just be mistyped
+                    LOGGER.log(Level.WARNING, "Couldn't read " + splitted[2], e);
+                    System.out.println("Store failed: " + e);
+                    break;
+                }
+                node.store(fileIDToStore2, TIMEOUT, TimeUnit.SECONDS).whenComplete(printStored(fileIDToStore2));
+                break;
             default:
                 System.out.println("Unknown command.");
                 break;
             }
         }
     }
+
+    private static BiConsumer<List<NodeIdentifier>, Throwable> printStored(final FileIdentifier fileID) {
+        return new BiConsumer<List<NodeIdentifier>, Throwable>() {
+            @Override
+            public void accept(List<NodeIdentifier> nodes, Throwable t) {
+                if (t != null) {
+                    System.out.println("Store failed: " + t);
+                } else {
+                    System.out.println("Stored " + fileID + " on " + nodes);
+                }
+            }
+        };
+    }
+
+    private static void writeFile(String path, ByteBuffer value) {
+        try (FileChannel file = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer content = value.duplicate();
+            while (content.hasRemaining()) {
+                file.write(content);
+            }
+            System.out.println("Wrote " + value.remaining() + " bytes to " + path);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Couldn't write " + path, e);
+            System.out.println("Request failed: " + e);
+        }
+    }
 }
\ No newline at end of file
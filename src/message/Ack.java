@@ -1,63 +1,122 @@
 package message;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import node.Identifier;
+import metrics.NodeMetrics;
 import node.NodeIdentifier;
+import node.Transport;
 import util.BufferUtil;
 
+/**
+ * A message that awaits an ack (or answer). The ack itself doesn't own a
+ * thread, the {@link RetransmissionScheduler} it gets scheduled on takes care
+ * of resending and timing it out.
+ *
+ * @author jln
+ *
+ */
 public class Ack {
     private final static Logger LOGGER = Logger.getLogger(Ack.class.getName());
 
     /**
-     * timeout in seconds
+     * timeout in milliseconds
      */
-    private static final int TIMEOUT = 1000;
+    static final int TIMEOUT = 1000;
 
     /**
      * Maximum number of retries
      */
     private static final int MAX_RETRIES = 3;
 
-    private Identifier rpcId;
+    private static final int PENDING = 0;
+    private static final int RECEIVED = 1;
+    private static final int TIMED_OUT = 2;
+    private static final int CANCELLED = 3;
+
+    private static final AtomicIntegerFieldUpdater<Ack> STATE = AtomicIntegerFieldUpdater
+            .newUpdater(Ack.class, "state");
+
+    private long rpcId;
 
     private NodeIdentifier receiver;
 
     private ByteBuffer buffer;
 
-    private int numRetries = 0;
+    // Written by the scheduler, read when the answer arrives
+    private volatile int numRetries = 0;
 
-    private TimeoutThread timeout;
-    private Thread thread;
+    private volatile int state = PENDING;
 
-    // The channel to re-send the message on
-    private DatagramChannel channel;
+    // The transport to re-send the message on
+    private Transport transport;
 
     private MessageCallback callback;
 
-    public Ack(Identifier id, NodeIdentifier receiver, DatagramChannel channel,
+    // Counts the retries and timeouts (may be null)
+    private NodeMetrics metrics;
+
+    // When the message was sent first (System.nanoTime())
+    private final long sentAt = System.nanoTime();
+
+    // The registry this ack is registered in (if any)
+    private RpcRegistry registry;
+    Ack registryNext;
+
+    // Bookkeeping of the RetransmissionScheduler
+    private long deadline;
+    long remainingRounds;
+    Ack next;
+
+    public Ack(long id, NodeIdentifier receiver, Transport transport,
             ByteBuffer buffer, MessageCallback cb) {
+        this(id, receiver, transport, buffer, cb, null);
+    }
+
+    /**
+     * @param metrics
+     *            the metrics to count resent and timed out messages in (may
+     *            be null)
+     */
+    public Ack(long id, NodeIdentifier receiver, Transport transport,
+            ByteBuffer buffer, MessageCallback cb, NodeMetrics metrics) {
         this.rpcId = id;
         this.receiver = receiver;
-        this.channel = channel;
+        this.transport = transport;
         this.buffer = BufferUtil.clone(buffer);
         this.callback = cb;
-        startThread();
+        this.metrics = metrics;
     }
 
-    private void startThread() {
-        LOGGER.log(Level.FINEST, "Starting timeout thread for RPC " + rpcId);
-        timeout = new TimeoutThread();
-        thread = new Thread(timeout);
-        thread.start();
+    public long getID() {
+        return rpcId;
     }
 
-    public Identifier getID() {
-        return rpcId;
+    /**
+     * Returns the type of the message (see {@link MessageType}).
+     */
+    public byte getType() {
+        return buffer.get(0);
+    }
+
+    /**
+     * Returns the time (System.nanoTime()) the message was sent first.
+     */
+    public long getSentAt() {
+        return sentAt;
+    }
+
+    /**
+     * Returns how often the message has been resent so far.
+     */
+    public int getRetries() {
+        return numRetries;
+    }
+
+    public NodeIdentifier getReceiver() {
+        return receiver;
     }
 
     public boolean check(NodeIdentifier fromID) {
@@ -72,70 +131,85 @@ public class Ack {
         this.buffer = buf;
     }
 
+    void setRegistry(RpcRegistry registry) {
+        this.registry = registry;
+    }
+
+    boolean isPending() {
+        return state == PENDING;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Marks this message as acked and notifies the callback (on the calling
+     * thread). Does nothing if the ack already timed out.
+     */
     public void setReceived() {
-        // Stop thread
-        try {
-            if (thread != null) {
-                timeout.terminate();
-                thread.join();
-            }
-        } catch (InterruptedException e) {
+        if (STATE.compareAndSet(this, PENDING, RECEIVED) && callback != null) {
+            callback.onReceive();
         }
     }
 
-    private class TimeoutThread implements Runnable {
-        private volatile boolean notReceived = true;
+    /**
+     * Gives up on this message and notifies the callback (on the calling
+     * thread, see {@link MessageCallback#onCancel()}), the scheduler drops it
+     * the next time it comes across it. Does nothing if the ack already
+     * arrived or timed out.
+     */
+    void cancel() {
+        if (STATE.compareAndSet(this, PENDING, CANCELLED) && callback != null) {
+            callback.onCancel();
+        }
+    }
 
-        // When do we stop expecting the ack
-        private long timeToStop = System.currentTimeMillis() + TIMEOUT;
+    /**
+     * Called by the scheduler when the ack didn't arrive in time. Resends the
+     * message if there are retries left, else gives up and notifies the
+     * callback.
+     *
+     * @return true if the message has been resent and has to be watched again
+     */
+    boolean retry() {
+        if (numRetries < MAX_RETRIES) {
+            LOGGER.log(Level.FINE,
+                    "Didn't receive RPC Ack {0} by now. Resending... ",
+                    new Object[] { rpcId });
+            // The transport takes over what it sends, so send a copy
+            ByteBuffer copy = transport.acquire();
+            buffer.rewind();
+            copy.put(buffer).flip();
+            if (metrics != null) {
+                metrics.retried(getType());
+                metrics.sent(getType(), copy.remaining());
+            }
+            transport.send(copy, receiver.getAddress());
+            numRetries++;
+            return true;
+        }
+
+        if (STATE.compareAndSet(this, PENDING, TIMED_OUT)) {
+            LOGGER.log(Level.INFO, "Absent RPC ack {0}.",
+                    new Object[] { rpcId });
 
-        @Override
-        public void run() {
-            while (notReceived && System.currentTimeMillis() < timeToStop) {
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+            if (metrics != null) {
+                metrics.timedOut(getType());
             }
 
-            // Timeout hit!
-
-            if (notReceived) {
-
-                if (numRetries < MAX_RETRIES) {
-                    try {
-                        LOGGER.log(
-                                Level.FINE,
-                                "Didn't receive RPC Ack {0} by now. Resending... ",
-                                new Object[] { rpcId });
-                        LOGGER.log(Level.INFO, receiver.getAddress().toString());                        
-                        channel.send(buffer, receiver.getAddress());
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                    startThread();
-                    numRetries++;
-                } else {
-
-                    LOGGER.log(Level.INFO, "Absent RPC ack {0}.",
-                            new Object[] { rpcId });
-
-                    if (callback != null) {
-                        callback.onTimeout();
-                    }
-                }
-            } else {
-                // Message has been received in time
-                if (callback != null) {
-                    callback.onReceive();
-                }
+            if (registry != null) {
+                registry.remove(this);
             }
-        }
 
-        public void terminate() {
-            notReceived = false;
+            if (callback != null) {
+                callback.onTimeout();
+            }
         }
+        return false;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,16 @@
+package message;
+
+/**
+ * Thrown when a received message can't be decoded.
+ *
+ * @author jln
+ *
+ */
+public class MalformedMessageException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public MalformedMessageException(String message) {
+		super(message);
+	}
+}
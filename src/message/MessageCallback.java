@@ -19,4 +19,10 @@ public interface MessageCallback {
      * retries).
      */
     public void onTimeout();
+
+    /**
+     * Called when the message is given up on before the awaited message
+     * arrived, because the node sending it has been closed.
+     */
+    public void onCancel();
 }
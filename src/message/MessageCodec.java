@@ -0,0 +1,285 @@
+package message;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import node.Identifier;
+import node.NodeIdentifier;
+
+/**
+ * Encodes messages. Every message starts with a header:
+ *
+ * <pre>
+ * [type: 1 byte][sender ID: ID_BITS / 8 bytes][receiver ID: ID_BITS / 8 bytes][RPC ID: 8 bytes]
+ * </pre>
+ *
+ * followed by the fields of the message type. Fixed size fields (IDs, node
+ * triples, ints) are written as is, variable sized fields carry a length
+ * prefix: byte arrays an unsigned short length, node lists an unsigned byte
+ * count. Everything is written straight into the given buffer, so encoding
+ * doesn't allocate. See {@link MessageReader} for decoding.
+ *
+ * The receiver ID picks the node a message is for when several nodes share a
+ * transport (see {@link node.NodeHost}).
+ *
+ * @author jln
+ *
+ */
+public class MessageCodec {
+
+	/**
+	 * The maximum size of a message: an ethernet frame (1500 bytes) minus the
+	 * IP (20 bytes) and UDP (8 bytes) headers
+	 */
+	public static final int MAX_MESSAGE_SIZE = 1472;
+
+	/**
+	 * The size of an encoded IPv4 address and port (in bytes)
+	 */
+	public static final int SIZE_ADDRESS = 8;
+
+	/**
+	 * The maximum number of nodes in a node list
+	 */
+	public static final int MAX_NODES = 255;
+
+	/**
+	 * The maximum length of a byte array field
+	 */
+	public static final int MAX_BYTES = 0xFFFF;
+
+	private MessageCodec() {
+	}
+
+	/**
+	 * Returns the size of the message header.
+	 *
+	 * @param idBits
+	 *            the size of the ID space
+	 * @return the size of the header (in bytes)
+	 */
+	public static int headerSize(int idBits) {
+		return 1 + 2 * (idBits / 8) + 8;
+	}
+
+	/**
+	 * Returns the size of an encoded node triple.
+	 *
+	 * @param idBits
+	 *            the size of the ID space
+	 * @return the size of a node (in bytes)
+	 */
+	public static int nodeSize(int idBits) {
+		return SIZE_ADDRESS + idBits / 8;
+	}
+
+	/**
+	 * Returns the maximum payload of a DATA message. A DATA message carries
+	 * [file ID][value length: int][chunk index: int][chunk: length-prefixed
+	 * bytes], the chunk fills the rest of the datagram.
+	 * 
+	 * @param idBits
+	 *            the size of the ID space
+	 * @return the size of a chunk (in bytes)
+	 */
+	public static int chunkSize(int idBits) {
+		return MAX_MESSAGE_SIZE - headerSize(idBits) - idBits / 8 - 4 - 4 - 2;
+	}
+
+	/**
+	 * Returns the maximum number of IDs in an ID list that fits into a
+	 * message with the given number of other body bytes.
+	 * 
+	 * @param idBits
+	 *            the size of the ID space
+	 * @param bodyBytes
+	 *            the size of the other fields of the message body
+	 * @return the maximum number of IDs
+	 */
+	public static int maxIDs(int idBits, int bodyBytes) {
+		return Math.min(MAX_NODES, (MAX_MESSAGE_SIZE - headerSize(idBits)
+				- bodyBytes - 1)
+				/ (idBits / 8));
+	}
+
+	/**
+	 * Returns the maximum number of keys of a FIND_VALUE_BATCH. The answer
+	 * (FOUND_VALUES) carries a count and for every key a flag, followed by
+	 * the node triple of the holder if it is set, so it has to fit a holder
+	 * for every key.
+	 * 
+	 * @param idBits
+	 *            the size of the ID space
+	 * @return the maximum number of keys
+	 */
+	public static int maxFindValueBatch(int idBits) {
+		return Math.min(maxIDs(idBits, 0), (MAX_MESSAGE_SIZE
+				- headerSize(idBits) - 1)
+				/ (1 + nodeSize(idBits)));
+	}
+
+	public static void writeHeader(ByteBuffer buffer, byte messageType,
+			Identifier sender, Identifier receiver, long rpcID) {
+		buffer.put(messageType);
+		sender.writeTo(buffer);
+		receiver.writeTo(buffer);
+		buffer.putLong(rpcID);
+	}
+
+	public static void writeID(ByteBuffer buffer, Identifier id) {
+		id.writeTo(buffer);
+	}
+
+	/**
+	 * Writes a count-prefixed list of IDs.
+	 * 
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param ids
+	 *            the IDs to write (at most {@link #MAX_NODES})
+	 */
+	public static void writeIDs(ByteBuffer buffer,
+			List<? extends Identifier> ids) {
+		if (ids.size() > MAX_NODES) {
+			throw new IllegalArgumentException("Too many IDs: " + ids.size());
+		}
+		buffer.put((byte) ids.size());
+		for (Identifier id : ids) {
+			id.writeTo(buffer);
+		}
+	}
+
+	/**
+	 * Writes a node triple: [IPv4 address: 4 bytes][port: int][ID].
+	 *
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param node
+	 *            the node to write
+	 */
+	public static void writeNode(ByteBuffer buffer, NodeIdentifier node) {
+		InetSocketAddress address = node.getAddress();
+		buffer.put(address.getAddress().getAddress());
+		buffer.putInt(address.getPort());
+		node.writeTo(buffer);
+	}
+
+	/**
+	 * Writes the holder of a value, if known: [found: 1 byte] followed by the
+	 * node triple if found is 1.
+	 * 
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param holder
+	 *            the holder or null
+	 */
+	public static void writeHolder(ByteBuffer buffer, NodeIdentifier holder) {
+		if (holder == null) {
+			buffer.put((byte) 0);
+		} else {
+			buffer.put((byte) 1);
+			writeNode(buffer, holder);
+		}
+	}
+
+	/**
+	 * Writes a count-prefixed list of value holders (see
+	 * {@link #writeHolder(ByteBuffer, NodeIdentifier)}).
+	 * 
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param holders
+	 *            the holders, null for the unknown ones (at most
+	 *            {@link #MAX_NODES})
+	 */
+	public static void writeHolders(ByteBuffer buffer,
+			List<NodeIdentifier> holders) {
+		if (holders.size() > MAX_NODES) {
+			throw new IllegalArgumentException("Too many holders: "
+					+ holders.size());
+		}
+		buffer.put((byte) holders.size());
+		for (NodeIdentifier holder : holders) {
+			writeHolder(buffer, holder);
+		}
+	}
+
+	/**
+	 * Writes a count-prefixed list of node triples.
+	 *
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param nodes
+	 *            the nodes to write (at most {@link #MAX_NODES})
+	 */
+	public static void writeNodes(ByteBuffer buffer, List<NodeIdentifier> nodes) {
+		if (nodes.size() > MAX_NODES) {
+			throw new IllegalArgumentException("Too many nodes: "
+					+ nodes.size());
+		}
+		buffer.put((byte) nodes.size());
+		for (NodeIdentifier node : nodes) {
+			writeNode(buffer, node);
+		}
+	}
+
+	/**
+	 * Writes a length-prefixed byte array.
+	 *
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param bytes
+	 *            the bytes to write (at most {@link #MAX_BYTES})
+	 */
+	public static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+		writeBytes(buffer, bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Writes a length-prefixed part of a byte array.
+	 *
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param bytes
+	 *            the array holding the bytes to write
+	 * @param offset
+	 *            the offset of the first byte to write
+	 * @param length
+	 *            the number of bytes to write (at most {@link #MAX_BYTES})
+	 */
+	public static void writeBytes(ByteBuffer buffer, byte[] bytes, int offset,
+			int length) {
+		if (length > MAX_BYTES) {
+			throw new IllegalArgumentException("Too many bytes: " + length);
+		}
+		buffer.putShort((short) length);
+		buffer.put(bytes, offset, length);
+	}
+
+	/**
+	 * Writes a length-prefixed part of a byte buffer (without changing its
+	 * position).
+	 * 
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param bytes
+	 *            the buffer holding the bytes to write
+	 * @param offset
+	 *            the index of the first byte to write
+	 * @param length
+	 *            the number of bytes to write (at most {@link #MAX_BYTES})
+	 */
+	public static void writeBytes(ByteBuffer buffer, ByteBuffer bytes,
+			int offset, int length) {
+		if (length > MAX_BYTES) {
+			throw new IllegalArgumentException("Too many bytes: " + length);
+		}
+		ByteBuffer part = bytes.duplicate();
+		part.limit(offset + length);
+		part.position(offset);
+
+		buffer.putShort((short) length);
+		buffer.put(part);
+	}
+}
@@ -0,0 +1,233 @@
+package message;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import node.Identifier;
+import node.NodeIdentifier;
+
+/**
+ * A flyweight decoder for messages encoded by {@link MessageCodec}. A reader
+ * is wrapped around the (flipped) receive buffer and reads the header fields
+ * in place. The fields of the message body are read one after another with
+ * the read methods, without copying the buffer first.
+ *
+ * A reader is not thread-safe, it is meant to be reused by the one thread
+ * that owns the buffer.
+ *
+ * @author jln
+ *
+ */
+public class MessageReader {
+
+	private final int idBits;
+	private final int idBytes;
+
+	private ByteBuffer buffer;
+
+	/**
+	 * @param idBits
+	 *            the size of the ID space
+	 */
+	public MessageReader(int idBits) {
+		this.idBits = idBits;
+		this.idBytes = idBits / 8;
+	}
+
+	/**
+	 * Points this reader to the message in the given buffer (starting at
+	 * index 0, up to the limit) and moves the buffer to the start of the
+	 * message body.
+	 *
+	 * @param buffer
+	 *            the buffer holding a message
+	 * @return this reader
+	 * @throws MalformedMessageException
+	 *             if the message is too short to hold a header
+	 */
+	public MessageReader wrap(ByteBuffer buffer) {
+		if (buffer.limit() < MessageCodec.headerSize(idBits)) {
+			throw new MalformedMessageException("Message of "
+					+ buffer.limit() + " bytes is too short");
+		}
+		this.buffer = buffer;
+		buffer.position(MessageCodec.headerSize(idBits));
+		return this;
+	}
+
+	public byte getType() {
+		return buffer.get(0);
+	}
+
+	public long getRpcID() {
+		return buffer.getLong(1 + 2 * idBytes);
+	}
+
+	/**
+	 * Returns the ID of the sender.
+	 *
+	 * @param from
+	 *            the address the message has been received from
+	 * @return the sender
+	 */
+	public NodeIdentifier getSender(InetSocketAddress from) {
+		int position = buffer.position();
+		buffer.position(1);
+		NodeIdentifier sender = new NodeIdentifier(idBits, buffer, from);
+		buffer.position(position);
+		return sender;
+	}
+
+	/**
+	 * Returns the ID of the node the message is for.
+	 *
+	 * @return the receiver
+	 */
+	public Identifier getReceiver() {
+		int position = buffer.position();
+		buffer.position(1 + idBytes);
+		Identifier receiver = new Identifier(idBits, buffer);
+		buffer.position(position);
+		return receiver;
+	}
+
+	public boolean hasRemaining() {
+		return buffer.hasRemaining();
+	}
+
+	public int readInt() {
+		require(4);
+		return buffer.getInt();
+	}
+
+	public Identifier readID() {
+		require(idBytes);
+		return new Identifier(idBits, buffer);
+	}
+
+	/**
+	 * Reads a count-prefixed list of IDs.
+	 *
+	 * @return the IDs
+	 */
+	public List<Identifier> readIDs() {
+		require(1);
+		int count = buffer.get() & 0xFF;
+
+		List<Identifier> ids = new ArrayList<Identifier>(count);
+		for (int i = 0; i < count; i++) {
+			ids.add(readID());
+		}
+		return ids;
+	}
+
+	/**
+	 * Reads a node triple (see {@link MessageCodec#writeNode}).
+	 *
+	 * @return the node
+	 */
+	public NodeIdentifier readNode() {
+		require(MessageCodec.nodeSize(idBits));
+
+		byte[] ip = new byte[4];
+		buffer.get(ip);
+		int port = buffer.getInt();
+
+		InetSocketAddress address;
+		try {
+			address = new InetSocketAddress(InetAddress.getByAddress(ip),
+					port);
+		} catch (UnknownHostException e) {
+			// Only thrown for addresses of illegal length
+			throw new MalformedMessageException(e.getMessage());
+		}
+		return new NodeIdentifier(idBits, buffer, address);
+	}
+
+	/**
+	 * Reads the holder of a value (see {@link MessageCodec#writeHolder}).
+	 *
+	 * @return the holder or null if it isn't known
+	 */
+	public NodeIdentifier readHolder() {
+		require(1);
+		return buffer.get() == 0 ? null : readNode();
+	}
+
+	/**
+	 * Reads a count-prefixed list of value holders.
+	 *
+	 * @return the holders, null for the unknown ones
+	 */
+	public List<NodeIdentifier> readHolders() {
+		require(1);
+		int count = buffer.get() & 0xFF;
+
+		List<NodeIdentifier> holders = new ArrayList<NodeIdentifier>(count);
+		for (int i = 0; i < count; i++) {
+			holders.add(readHolder());
+		}
+		return holders;
+	}
+
+	/**
+	 * Reads a count-prefixed list of node triples.
+	 *
+	 * @return the nodes
+	 */
+	public List<NodeIdentifier> readNodes() {
+		require(1);
+		int count = buffer.get() & 0xFF;
+
+		List<NodeIdentifier> nodes = new ArrayList<NodeIdentifier>(count);
+		for (int i = 0; i < count; i++) {
+			nodes.add(readNode());
+		}
+		return nodes;
+	}
+
+	/**
+	 * Reads a length-prefixed byte array.
+	 *
+	 * @return the bytes
+	 */
+	public byte[] readBytes() {
+		byte[] bytes = new byte[readLength()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Reads the length prefix of a byte array field and returns a view of
+	 * its bytes (sharing the underlying buffer, so it is only valid until the
+	 * buffer is reused).
+	 *
+	 * @return a read-only view of the bytes
+	 */
+	public ByteBuffer readBytesView() {
+		int length = readLength();
+		ByteBuffer view = buffer.slice();
+		view.limit(length);
+		buffer.position(buffer.position() + length);
+		return view.asReadOnlyBuffer();
+	}
+
+	private int readLength() {
+		require(2);
+		int length = buffer.getShort() & 0xFFFF;
+		require(length);
+		return length;
+	}
+
+	private void require(int numBytes) {
+		if (buffer.remaining() < numBytes) {
+			throw new MalformedMessageException("Expected " + numBytes
+					+ " more bytes, but only " + buffer.remaining()
+					+ " are left");
+		}
+	}
+}
@@ -16,4 +16,57 @@ public class MessageType {
     public final static byte VALUE_NODES	= 8;
     public final static byte FOUND_VALUE 	= 9;
     public final static byte ACK                = 10;
+    public final static byte DATA_ACK           = 13;
+    public final static byte STORE_BATCH        = 14;
+    public final static byte STORE_RESULTS      = 15;
+    public final static byte FIND_VALUE_BATCH   = 16;
+    public final static byte FOUND_VALUES       = 17;
+
+    /**
+     * Returns the name of the given message type, for logs and statistics.
+     *
+     * @param type
+     *            the message type
+     * @return the name, or the number if the type is unknown
+     */
+    public static String name(byte type) {
+        switch (type) {
+        case FIND_NODE:
+            return "FIND_NODE";
+        case NODES:
+            return "NODES";
+        case PING:
+            return "PING";
+        case PONG:
+            return "PONG";
+        case LEAVE:
+            return "LEAVE";
+        case FIND_VALUE:
+            return "FIND_VALUE";
+        case STORE:
+            return "STORE";
+        case DATA:
+            return "DATA";
+        case DATA_REQ:
+            return "DATA_REQ";
+        case VALUE_NODES:
+            return "VALUE_NODES";
+        case FOUND_VALUE:
+            return "FOUND_VALUE";
+        case ACK:
+            return "ACK";
+        case DATA_ACK:
+            return "DATA_ACK";
+        case STORE_BATCH:
+            return "STORE_BATCH";
+        case STORE_RESULTS:
+            return "STORE_RESULTS";
+        case FIND_VALUE_BATCH:
+            return "FIND_VALUE_BATCH";
+        case FOUND_VALUES:
+            return "FOUND_VALUES";
+        default:
+            return Byte.toString(type);
+        }
+    }
 }
@@ -0,0 +1,190 @@
+package message;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timer wheel that owns all pending (not yet acked) RPCs of a node.
+ * Instead of one thread per {@link Ack}, a single worker thread advances the
+ * wheel every {@link #TICK_MS} milliseconds, resends messages whose ack is
+ * overdue and finally calls {@link MessageCallback#onTimeout()}.
+ *
+ * Acks are linked directly into the wheel slots, so the only per-RPC overhead
+ * is the {@link Ack} object itself. Acks that are received in time are not
+ * unlinked eagerly, they are dropped when the wheel passes their slot.
+ *
+ * @author jln
+ *
+ */
+public class RetransmissionScheduler implements Runnable {
+    private final static Logger LOGGER = Logger
+            .getLogger(RetransmissionScheduler.class.getName());
+
+    /**
+     * Duration of one tick of the wheel in milliseconds
+     */
+    public static final int TICK_MS = 10;
+
+    /**
+     * Number of slots of the wheel (has to be a power of 2)
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    private final Ack[] wheel = new Ack[WHEEL_SIZE];
+
+    // Acks scheduled by other threads, moved into the wheel by the worker
+    private final ConcurrentLinkedQueue<Ack> newAcks = new ConcurrentLinkedQueue<Ack>();
+
+    private final long startTime = System.nanoTime();
+
+    // The last tick that has been processed (only touched by the worker)
+    private long tick = 0;
+
+    // Number of acks currently linked into the wheel (only touched by the
+    // worker)
+    private int numPending = 0;
+
+    private volatile boolean running = true;
+    private volatile boolean idle = false;
+
+    private final Thread thread;
+
+    public RetransmissionScheduler() {
+        thread = new Thread(this, "RetransmissionScheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts watching the given ack. If it is not marked as received within
+     * its timeout, the message is resent or, after the last retry, the
+     * callback is notified.
+     *
+     * @param ack
+     *            the ack to watch
+     */
+    public void schedule(Ack ack) {
+        ack.setDeadline(currentTime() + Ack.TIMEOUT);
+        newAcks.add(ack);
+
+        if (idle) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Returns the number of acks that are currently watched.
+     *
+     * @return the number of pending acks
+     */
+    public int size() {
+        return numPending + newAcks.size();
+    }
+
+    public void terminate() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private long currentTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            if (numPending == 0 && newAcks.isEmpty()) {
+                // Nothing to watch -> sleep until schedule() wakes us up
+                idle = true;
+                if (newAcks.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+
+                // Skip all the ticks we slept through
+                tick = currentTime() / TICK_MS;
+                continue;
+            }
+
+            long now = currentTime();
+            long targetTick = now / TICK_MS;
+
+            if (targetTick <= tick) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS
+                        .toNanos((tick + 1) * TICK_MS - now));
+                continue;
+            }
+
+            transferNewAcks();
+
+            while (tick < targetTick) {
+                tick++;
+                expireSlot(tick);
+            }
+        }
+    }
+
+    private void transferNewAcks() {
+        Ack ack;
+        while ((ack = newAcks.poll()) != null) {
+            if (!ack.isPending()) {
+                continue;
+            }
+            addToWheel(ack);
+        }
+    }
+
+    private void addToWheel(Ack ack) {
+        // Round up, so we never fire too early
+        long deadlineTick = (ack.getDeadline() + TICK_MS - 1) / TICK_MS;
+        long ticks = Math.max(deadlineTick, tick + 1);
+
+        ack.remainingRounds = (ticks - tick - 1) / WHEEL_SIZE;
+
+        int slot = (int) (ticks & (WHEEL_SIZE - 1));
+        ack.next = wheel[slot];
+        wheel[slot] = ack;
+        numPending++;
+    }
+
+    private void expireSlot(long tick) {
+        int slot = (int) (tick & (WHEEL_SIZE - 1));
+        Ack ack = wheel[slot];
+        wheel[slot] = null;
+
+        while (ack != null) {
+            Ack next = ack.next;
+            ack.next = null;
+            numPending--;
+
+            if (!ack.isPending()) {
+                // Already received, just drop it
+            } else if (ack.remainingRounds > 0) {
+                ack.remainingRounds--;
+                ack.next = wheel[slot];
+                wheel[slot] = ack;
+                numPending++;
+            } else {
+                fire(ack);
+            }
+
+            ack = next;
+        }
+    }
+
+    private void fire(Ack ack) {
+        try {
+            if (ack.retry()) {
+                ack.setDeadline(currentTime() + Ack.TIMEOUT);
+                addToWheel(ack);
+            }
+        } catch (RuntimeException e) {
+            // A broken callback must not kill the timer of the whole node
+            LOGGER.log(Level.SEVERE, "Failed to handle timeout of RPC "
+                    + ack.getID(), e);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package message;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import node.NodeIdentifier;
+
+/**
+ * Thread-safe registry of all RPCs that still wait for an ack (or answer),
+ * keyed by their RPC ID. The table is split into lock stripes, each being a
+ * small hash table that chains the {@link Ack}s directly, so lookups neither
+ * box the ID nor allocate.
+ *
+ * Besides the RPCs themselves the registry counts how many RPCs are in
+ * flight per peer (identified by its address).
+ *
+ * @author jln
+ *
+ */
+public class RpcRegistry {
+
+    /**
+     * Number of lock stripes (has to be a power of 2)
+     */
+    private static final int NUM_STRIPES = 16;
+
+    /**
+     * Initial number of slots per stripe (has to be a power of 2)
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final BiFunction<InetSocketAddress, Integer, Integer> INCREMENT = new BiFunction<InetSocketAddress, Integer, Integer>() {
+        @Override
+        public Integer apply(InetSocketAddress peer, Integer count) {
+            return count == null ? 1 : count + 1;
+        }
+    };
+
+    private static final BiFunction<InetSocketAddress, Integer, Integer> DECREMENT = new BiFunction<InetSocketAddress, Integer, Integer>() {
+        @Override
+        public Integer apply(InetSocketAddress peer, Integer count) {
+            // Returning null drops the peer from the map
+            return count == null || count <= 1 ? null : count - 1;
+        }
+    };
+
+    private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final ConcurrentHashMap<InetSocketAddress, Integer> inFlight = new ConcurrentHashMap<InetSocketAddress, Integer>();
+
+    public RpcRegistry() {
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Registers the given ack. Its RPC ID must not be registered already.
+     *
+     * @param ack
+     *            the ack to register
+     */
+    public void add(Ack ack) {
+        int hash = hash(ack.getID());
+        Stripe stripe = stripes[hash & (NUM_STRIPES - 1)];
+
+        synchronized (stripe) {
+            stripe.add(ack, hash >>> 4);
+        }
+
+        ack.setRegistry(this);
+        size.incrementAndGet();
+        inFlight.compute(ack.getReceiver().getAddress(), INCREMENT);
+    }
+
+    /**
+     * Removes and returns the ack with the given RPC ID, if it was sent to the
+     * given node.
+     *
+     * @param rpcID
+     *            the RPC ID of the answer
+     * @param fromID
+     *            the node that sent the answer
+     * @return the matching ack or null if there is none
+     */
+    public Ack remove(long rpcID, NodeIdentifier fromID) {
+        int hash = hash(rpcID);
+        Stripe stripe = stripes[hash & (NUM_STRIPES - 1)];
+
+        Ack removed;
+        synchronized (stripe) {
+            removed = stripe.remove(rpcID, fromID, hash >>> 4);
+        }
+
+        if (removed != null) {
+            size.decrementAndGet();
+            inFlight.compute(removed.getReceiver().getAddress(), DECREMENT);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the given ack (e.g. because it timed out).
+     *
+     * @param ack
+     *            the ack to remove
+     */
+    void remove(Ack ack) {
+        remove(ack.getID(), ack.getReceiver());
+    }
+
+    /**
+     * Removes and cancels all acks (see {@link Ack#cancel()}), e.g. because
+     * the node is closed. Their messages aren't resent any more, their
+     * callbacks are notified on the calling thread.
+     */
+    public void cancelAll() {
+        for (Stripe stripe : stripes) {
+            Ack[] table;
+            synchronized (stripe) {
+                table = stripe.table;
+                size.addAndGet(-stripe.size);
+                stripe.table = new Ack[INITIAL_CAPACITY];
+                stripe.size = 0;
+            }
+
+            for (Ack head : table) {
+                for (Ack ack = head; ack != null; ack = ack.registryNext) {
+                    inFlight.compute(ack.getReceiver().getAddress(), DECREMENT);
+                    ack.cancel();
+                }
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * Returns the number of RPCs that wait for an ack.
+     *
+     * @return the number of pending RPCs
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Returns the number of RPCs sent to the given peer that still wait for an
+     * ack.
+     *
+     * @param peer
+     *            the address of the peer
+     * @return the number of pending RPCs to that peer
+     */
+    public int inFlight(InetSocketAddress peer) {
+        Integer count = inFlight.get(peer);
+        return count == null ? 0 : count;
+    }
+
+    private static int hash(long rpcID) {
+        long h = rpcID * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * One stripe of the registry: a hash table chaining the acks through
+     * {@link Ack#registryNext}. Guarded by its own monitor.
+     */
+    private static class Stripe {
+        private Ack[] table = new Ack[INITIAL_CAPACITY];
+        private int size = 0;
+
+        void add(Ack ack, int hash) {
+            if (size >= table.length * 3 / 4) {
+                resize();
+            }
+            int slot = hash & (table.length - 1);
+            ack.registryNext = table[slot];
+            table[slot] = ack;
+            size++;
+        }
+
+        Ack remove(long rpcID, NodeIdentifier fromID, int hash) {
+            int slot = hash & (table.length - 1);
+            Ack prev = null;
+
+            for (Ack ack = table[slot]; ack != null; ack = ack.registryNext) {
+                if (ack.getID() == rpcID && ack.check(fromID)) {
+                    if (prev == null) {
+                        table[slot] = ack.registryNext;
+                    } else {
+                        prev.registryNext = ack.registryNext;
+                    }
+                    ack.registryNext = null;
+                    size--;
+                    return ack;
+                }
+                prev = ack;
+            }
+            return null;
+        }
+
+        private void resize() {
+            Ack[] old = table;
+            table = new Ack[old.length * 2];
+
+            for (Ack head : old) {
+                Ack ack = head;
+                while (ack != null) {
+                    Ack next = ack.registryNext;
+                    int slot = (hash(ack.getID()) >>> 4) & (table.length - 1);
+                    ack.registryNext = table[slot];
+                    table[slot] = ack;
+                    ack = next;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in the style of HdrHistogram: values are counted
+ * in buckets that get wider as the values grow, {@value #SUB_BUCKETS} per
+ * power of two. So every value is known within 1/{@value #SUB_BUCKETS} of
+ * itself, from one microsecond to more than an hour, with a fixed array of
+ * {@link #NUM_BUCKETS} counters. Recording neither locks nor allocates.
+ *
+ * Percentiles are reported as the highest value of their bucket (never more
+ * than the maximum recorded), so they err on the slow side.
+ *
+ * @author jln
+ *
+ */
+public class Histogram {
+
+	/**
+	 * log2 of the number of buckets per power of two
+	 */
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * The largest value that can be told apart (in microseconds), larger
+	 * ones are counted as this
+	 */
+	public static final long MAX_VALUE = (1L << 32) - 1;
+
+	/**
+	 * The number of counters
+	 */
+	static final int NUM_BUCKETS = index(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Returns the bucket of the given value: the values below
+	 * {@value #SUB_BUCKETS} have buckets of their own, above that every power
+	 * of two is split into {@value #SUB_BUCKETS} buckets.
+	 */
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS
+				+ (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * Returns the highest value counted in the given bucket.
+	 */
+	private static long highestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		long lowest = (long) (SUB_BUCKETS + (index - SUB_BUCKETS)
+				% SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param micros
+	 *            the duration (in microseconds), negative ones count as 0
+	 */
+	public void record(long micros) {
+		long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+
+		long current;
+		while (value > (current = max.get())
+				&& !max.compareAndSet(current, value)) {
+			// Retry, another thread recorded a new maximum
+		}
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 *
+	 * @return the number of values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the largest recorded value.
+	 *
+	 * @return the maximum (in microseconds), 0 if nothing has been recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the recorded values.
+	 *
+	 * @return the mean (in microseconds), 0 if nothing has been recorded
+	 */
+	public long getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum() / n;
+	}
+
+	/**
+	 * Returns the value the given share of the recorded values doesn't
+	 * exceed.
+	 *
+	 * @param percentile
+	 *            the share (0 to 100)
+	 * @return the value (in microseconds), 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[NUM_BUCKETS];
+		long total = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1,
+				(long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+}
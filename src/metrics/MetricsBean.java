@@ -0,0 +1,121 @@
+package metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the {@link NodeMetrics} of a node via JMX, one read-only attribute
+ * per value of a snapshot (see {@link NodeMetrics#snapshot()}). The
+ * attributes are those of the latest snapshot, counters of message types
+ * that show up later appear when the MBean info is read again.
+ *
+ * @author jln
+ *
+ */
+public class MetricsBean implements DynamicMBean {
+
+	private final NodeMetrics metrics;
+
+	public MetricsBean(NodeMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server.
+	 *
+	 * @param metrics
+	 *            the metrics
+	 * @param name
+	 *            the name to register them under
+	 * @throws JMException
+	 *             if the name is taken or the server refuses them
+	 */
+	public static void register(NodeMetrics metrics, ObjectName name)
+			throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(
+				new MetricsBean(metrics), name);
+	}
+
+	/**
+	 * Removes metrics registered with {@link #register}, if they still are.
+	 *
+	 * @param name
+	 *            the name they are registered under
+	 * @throws JMException
+	 *             if the server refuses to remove them
+	 */
+	public static void unregister(ObjectName name) throws JMException {
+		if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}
+	}
+
+	@Override
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		Long value = metrics.snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		SortedMap<String, Long> snapshot = metrics.snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Long value = snapshot.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName()
+				+ " is read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		// All attributes are read-only
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws ReflectionException {
+		// There are no operations
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Long> value : metrics.snapshot().entrySet()) {
+			attributes.add(new MBeanAttributeInfo(value.getKey(), Long.class
+					.getName(), value.getKey(), true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "Metrics of a node",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,240 @@
+package metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import message.MessageType;
+
+/**
+ * The counters of a node: the messages and bytes it sends and receives, the
+ * retries and timeouts of its RPCs and their round trip times, by message
+ * type. Counting only increments a {@link LongAdder}, so the message path
+ * can afford it; the counters of a type are created when the first message
+ * of the type is counted.
+ *
+ * Values that are there anyway (like the size of the routing table) are
+ * registered as gauges and only read when a {@link #snapshot()} is taken.
+ *
+ * @author jln
+ *
+ */
+public class NodeMetrics {
+
+	/**
+	 * The logger the periodic dumps go to (see {@link #log(String)}), at
+	 * level INFO
+	 */
+	public final static Logger LOGGER = Logger.getLogger(NodeMetrics.class
+			.getName());
+
+	// The counters by message type, the type is the first byte of a message
+	private final AtomicReferenceArray<TypeMetrics> types = new AtomicReferenceArray<TypeMetrics>(
+			256);
+
+	private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+
+	private static class TypeMetrics {
+		final LongAdder sent = new LongAdder();
+		final LongAdder bytesSent = new LongAdder();
+		final LongAdder received = new LongAdder();
+		final LongAdder bytesReceived = new LongAdder();
+		final LongAdder retries = new LongAdder();
+		final LongAdder timeouts = new LongAdder();
+
+		// Only RPCs get answers, created with the first one
+		volatile Histogram roundTrips;
+
+		synchronized Histogram roundTrips() {
+			if (roundTrips == null) {
+				roundTrips = new Histogram();
+			}
+			return roundTrips;
+		}
+	}
+
+	private TypeMetrics of(byte type) {
+		int index = type & 0xFF;
+		TypeMetrics metrics = types.get(index);
+		if (metrics == null) {
+			types.compareAndSet(index, null, new TypeMetrics());
+			metrics = types.get(index);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Counts a message sent (or resent).
+	 *
+	 * @param type
+	 *            the message type (see {@link MessageType})
+	 * @param bytes
+	 *            the size of the message
+	 */
+	public void sent(byte type, int bytes) {
+		TypeMetrics metrics = of(type);
+		metrics.sent.increment();
+		metrics.bytesSent.add(bytes);
+	}
+
+	/**
+	 * Counts a message received.
+	 *
+	 * @param type
+	 *            the message type (see {@link MessageType})
+	 * @param bytes
+	 *            the size of the message
+	 */
+	public void received(byte type, int bytes) {
+		TypeMetrics metrics = of(type);
+		metrics.received.increment();
+		metrics.bytesReceived.add(bytes);
+	}
+
+	/**
+	 * Counts an RPC resent because its answer didn't arrive in time.
+	 *
+	 * @param type
+	 *            the type of the RPC
+	 */
+	public void retried(byte type) {
+		of(type).retries.increment();
+	}
+
+	/**
+	 * Counts an RPC given up on after its last retry.
+	 *
+	 * @param type
+	 *            the type of the RPC
+	 */
+	public void timedOut(byte type) {
+		of(type).timeouts.increment();
+	}
+
+	/**
+	 * Records the round trip time of an answered RPC. Only RPCs answered
+	 * without being resent should be recorded, the answer of a resent one
+	 * can't be told apart from the answer to the first attempt.
+	 *
+	 * @param type
+	 *            the type of the RPC
+	 * @param nanos
+	 *            the time from sending to the answer (in nanoseconds)
+	 */
+	public void answered(byte type, long nanos) {
+		of(type).roundTrips().record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * Returns the round trip times of the RPCs of the given type.
+	 *
+	 * @param type
+	 *            the type of the RPC
+	 * @return the histogram (in microseconds) or null if no RPC of the type
+	 *         has been answered
+	 */
+	public Histogram getRoundTrips(byte type) {
+		TypeMetrics metrics = types.get(type & 0xFF);
+		return metrics == null ? null : metrics.roundTrips;
+	}
+
+	/**
+	 * Adds a value to the snapshots that is read when one is taken.
+	 *
+	 * @param name
+	 *            the name of the value, replaces a gauge of the same name
+	 * @param value
+	 *            reads the value, from any thread
+	 */
+	public void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/**
+	 * Takes a snapshot of all counters and gauges. The counters are named
+	 * after what they count and the message type, like
+	 * <code>messages.sent.PING</code>, <code>bytes.received.NODES</code>,
+	 * <code>rpc.retries.FIND_NODE</code> or
+	 * <code>rpc.rtt.FIND_NODE.p99</code> (in microseconds). The totals over
+	 * all types leave out the type.
+	 *
+	 * @return the values by name, sorted by name
+	 */
+	public SortedMap<String, Long> snapshot() {
+		SortedMap<String, Long> snapshot = new TreeMap<String, Long>();
+		long sent = 0, bytesSent = 0, received = 0, bytesReceived = 0;
+		long retries = 0, timeouts = 0;
+
+		for (int i = 0; i < types.length(); i++) {
+			TypeMetrics metrics = types.get(i);
+			if (metrics == null) {
+				continue;
+			}
+			String type = MessageType.name((byte) i);
+
+			sent += put(snapshot, "messages.sent." + type, metrics.sent.sum());
+			bytesSent += put(snapshot, "bytes.sent." + type,
+					metrics.bytesSent.sum());
+			received += put(snapshot, "messages.received." + type,
+					metrics.received.sum());
+			bytesReceived += put(snapshot, "bytes.received." + type,
+					metrics.bytesReceived.sum());
+
+			long typeRetries = metrics.retries.sum();
+			long typeTimeouts = metrics.timeouts.sum();
+			if (typeRetries > 0 || typeTimeouts > 0) {
+				retries += put(snapshot, "rpc.retries." + type, typeRetries);
+				timeouts += put(snapshot, "rpc.timeouts." + type, typeTimeouts);
+			}
+
+			Histogram roundTrips = metrics.roundTrips;
+			if (roundTrips != null) {
+				String prefix = "rpc.rtt." + type;
+				snapshot.put(prefix + ".count", roundTrips.getCount());
+				snapshot.put(prefix + ".mean", roundTrips.getMean());
+				snapshot.put(prefix + ".p50", roundTrips.getPercentile(50));
+				snapshot.put(prefix + ".p90", roundTrips.getPercentile(90));
+				snapshot.put(prefix + ".p99", roundTrips.getPercentile(99));
+				snapshot.put(prefix + ".max", roundTrips.getMax());
+			}
+		}
+
+		snapshot.put("messages.sent", sent);
+		snapshot.put("bytes.sent", bytesSent);
+		snapshot.put("messages.received", received);
+		snapshot.put("bytes.received", bytesReceived);
+		snapshot.put("rpc.retries", retries);
+		snapshot.put("rpc.timeouts", timeouts);
+
+		for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+			snapshot.put(gauge.getKey(), gauge.getValue().getAsLong());
+		}
+		return snapshot;
+	}
+
+	private static long put(Map<String, Long> snapshot, String name, long value) {
+		snapshot.put(name, value);
+		return value;
+	}
+
+	/**
+	 * Logs a snapshot to {@link #LOGGER} (at level INFO), one line with all
+	 * values.
+	 *
+	 * @param name
+	 *            the name of the node the metrics belong to
+	 */
+	public void log(String name) {
+		if (LOGGER.isLoggable(Level.INFO)) {
+			LOGGER.log(Level.INFO, "{0}: {1}", new Object[] { name,
+					snapshot() });
+		}
+	}
+}
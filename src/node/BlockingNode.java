@@ -0,0 +1,149 @@
+package node;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import util.Threads;
+
+/**
+ * A blocking view of a {@link Node}: every RPC and lookup is a plain method
+ * call that returns once the answer is there, instead of a future or a
+ * callback. Code using it is meant to run on the threads of
+ * {@link #submit(Callable)}, which are virtual threads if asked for (see
+ * {@link Threads#THREADS_PROPERTY}) and available. A blocked virtual thread
+ * costs a few hundred bytes, so tens of thousands of operations can be in
+ * flight; with platform threads each of them holds an OS thread.
+ *
+ * The calls throw an {@link ExecutionException} if the operation failed,
+ * with a {@link java.util.concurrent.TimeoutException} as its cause if a
+ * node didn't answer.
+ *
+ * @author jln
+ *
+ */
+public class BlockingNode {
+
+	private final Node node;
+	private final boolean virtual;
+	private final ExecutorService executor;
+
+	/**
+	 * Creates a blocking view that uses virtual threads if they have been
+	 * asked for via {@link Threads#THREADS_PROPERTY}.
+	 *
+	 * @param node
+	 *            the node
+	 */
+	public BlockingNode(Node node) {
+		this(node, Threads.useVirtual());
+	}
+
+	/**
+	 * @param node
+	 *            the node
+	 * @param virtual
+	 *            true to run the tasks on virtual threads (if available)
+	 */
+	public BlockingNode(Node node, boolean virtual) {
+		this.node = node;
+		this.virtual = virtual && Threads.isVirtualAvailable();
+		this.executor = Threads.perTaskExecutor(Threads.factory("Blocking-",
+				this.virtual));
+	}
+
+	public Node getNode() {
+		return node;
+	}
+
+	/**
+	 * Returns true if the tasks run on virtual threads.
+	 *
+	 * @return true for virtual threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Runs the given task on a thread of this view.
+	 *
+	 * @param task
+	 *            the task
+	 * @return the future result of the task
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		return executor.submit(task);
+	}
+
+	/**
+	 * Pings the given node.
+	 *
+	 * @param receiver
+	 *            the node to ping
+	 * @return the node, once it answered
+	 */
+	public NodeIdentifier ping(NodeIdentifier receiver)
+			throws InterruptedException, ExecutionException {
+		return node.ping(receiver).get();
+	}
+
+	/**
+	 * Looks up the nodes closest to the given ID.
+	 *
+	 * @param id
+	 *            the ID
+	 * @return the closest nodes, closest first
+	 */
+	public List<NodeIdentifier> findNode(Identifier id)
+			throws InterruptedException, ExecutionException {
+		return node.findNode(id).get().getClosestNodes();
+	}
+
+	/**
+	 * Looks up the node holding the value with the given key.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the holder or null if none has been found
+	 */
+	public NodeIdentifier findValue(Identifier key)
+			throws InterruptedException, ExecutionException {
+		return node.findValue(key).get().getValueHolder();
+	}
+
+	/**
+	 * Stores the given key on the closest nodes, see
+	 * {@link Node#store(Identifier)}.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the nodes the key has been stored on
+	 */
+	public List<NodeIdentifier> store(Identifier key)
+			throws InterruptedException, ExecutionException {
+		return node.store(key).get();
+	}
+
+	/**
+	 * Fetches the value with the given key from the node holding it.
+	 *
+	 * @param key
+	 *            the key
+	 * @return a read-only view of the value
+	 */
+	public ByteBuffer get(FileIdentifier key) throws InterruptedException,
+			ExecutionException {
+		return node.sendDataReq(key).get();
+	}
+
+	/**
+	 * Stops the threads of this view. Running tasks are interrupted.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,144 @@
+package node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs the lookups for many keys (see {@link Lookup}), at most
+ * {@value #MAX_LOOKUPS} at a time, so bulk operations don't flood the
+ * network with queries. The results are delivered all at once through the
+ * future returned by {@link #start()}. A lookup that fails (because the node
+ * has been closed) fails them all, the remaining keys aren't looked up.
+ *
+ * Lookups may complete on any thread (or right away), so all state is
+ * guarded by this object.
+ *
+ * @author jln
+ *
+ */
+public class BulkLookup {
+
+	/**
+	 * The maximum number of lookups running at the same time
+	 */
+	static final int MAX_LOOKUPS = 16;
+
+	private final Node node;
+	private final boolean findValue;
+	private final Iterator<Identifier> pending;
+
+	private final Map<Identifier, LookupResult> results = new HashMap<Identifier, LookupResult>();
+	private int running = 0;
+	// The number of threads in startLookups(), lookups may complete right
+	// away on the thread starting them
+	private int starting = 0;
+	// The failure of the first lookup that failed
+	private Throwable failure;
+
+	private final CompletableFuture<Map<Identifier, LookupResult>> future = new CompletableFuture<Map<Identifier, LookupResult>>();
+
+	/**
+	 * @param node
+	 *            the node running the lookups
+	 * @param keys
+	 *            the IDs to look up
+	 * @param findValue
+	 *            if true, look for the values stored under the keys, else for
+	 *            the nodes closest to them
+	 */
+	BulkLookup(Node node, Collection<? extends Identifier> keys,
+			boolean findValue) {
+		this.node = node;
+		this.findValue = findValue;
+		this.pending = new ArrayList<Identifier>(keys).iterator();
+	}
+
+	/**
+	 * Starts the lookups.
+	 *
+	 * @return the future results by key
+	 */
+	CompletableFuture<Map<Identifier, LookupResult>> start() {
+		synchronized (this) {
+			starting++;
+		}
+		startLookups();
+		return future;
+	}
+
+	/**
+	 * Starts lookups until {@value #MAX_LOOKUPS} are running or all keys are
+	 * looked up, and completes the future if all lookups are done. The keys
+	 * are picked under the lock, the lookups started after releasing it (they
+	 * send their first queries right away). The caller has counted itself in
+	 * {@link #starting}.
+	 */
+	private void startLookups() {
+		boolean finished;
+		while (true) {
+			List<Identifier> keys = new ArrayList<Identifier>();
+			synchronized (this) {
+				while (failure == null && running < MAX_LOOKUPS
+						&& pending.hasNext()) {
+					keys.add(pending.next());
+					running++;
+				}
+				if (keys.isEmpty()) {
+					starting--;
+					finished = running == 0;
+					break;
+				}
+			}
+
+			for (final Identifier key : keys) {
+				CompletableFuture<LookupResult> lookup = findValue ? node
+						.findValue(key) : node.findNode(key);
+				lookup.whenComplete(new BiConsumer<LookupResult, Throwable>() {
+					@Override
+					public void accept(LookupResult result, Throwable t) {
+						lookupDone(key, result, t);
+					}
+				});
+			}
+		}
+		complete(finished);
+	}
+
+	private void lookupDone(Identifier key, LookupResult result, Throwable t) {
+		synchronized (this) {
+			running--;
+			if (result != null) {
+				results.put(key, result);
+			} else if (failure == null) {
+				failure = t;
+			}
+
+			// A thread starting lookups picks up the freed slot itself (and
+			// finishes), else this one takes over. Keeps lookups completing
+			// on the starting thread from recursing.
+			if (starting > 0) {
+				return;
+			}
+			starting++;
+		}
+		startLookups();
+	}
+
+	private void complete(boolean finished) {
+		// Completed outside the lock, the future's dependents run on this
+		// thread
+		if (finished) {
+			if (failure != null) {
+				future.completeExceptionally(failure);
+			} else {
+				future.complete(results);
+			}
+		}
+	}
+}
@@ -1,32 +1,33 @@
 package node;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 
 public class ChunkIdentifier extends Identifier {
 	
-	private String chunkID;
+	private int index;
 	private FileIdentifier fileID;
 
-	public ChunkIdentifier(int size, byte[] bytes, FileIdentifier fileID, String chunkID) {
-		super(size, bytes);
+	/**
+	 * Derives the ID of a chunk by hashing the ID of its file together with
+	 * the index of the chunk.
+	 * 
+	 * @param size
+	 *            the size of the id space
+	 * @param fileID
+	 *            the file the chunk belongs to
+	 * @param index
+	 *            the index of the chunk within the file
+	 */
+	public ChunkIdentifier(int size, FileIdentifier fileID, int index) {
+		super(size, digest(size, fileID.getBytes(), ByteBuffer.allocate(4)
+				.putInt(index).array()));
 		
 		this.fileID = fileID;
-		
-		//calculate SHA-256 Hash of chunckID
-		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			md.update(chunkID.getBytes());
-			this.chunkID = md.digest().toString();
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
+		this.index = index;
 	}
 	
-	public String getChunkID() {
-		return this.chunkID;
+	public int getIndex() {
+		return this.index;
 	}
 	
 	public FileIdentifier getFileID(){
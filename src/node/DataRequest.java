@@ -0,0 +1,56 @@
+package node;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A value requested with a DATA_REQ that hasn't arrived yet. The holder
+ * answers with a transfer that has the RPC ID of the request as its transfer
+ * ID, so only a failure of that transfer fails the request; transfers of the
+ * same value from other nodes don't.
+ *
+ * @author jln
+ *
+ */
+class DataRequest {
+
+	private final NodeIdentifier holder;
+	private final long rpcID;
+	private final CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+
+	/**
+	 * @param holder
+	 *            the node the request is sent to
+	 * @param rpcID
+	 *            the RPC ID of the request
+	 */
+	DataRequest(NodeIdentifier holder, long rpcID) {
+		this.holder = holder;
+		this.rpcID = rpcID;
+	}
+
+	NodeIdentifier getHolder() {
+		return holder;
+	}
+
+	long getRpcID() {
+		return rpcID;
+	}
+
+	CompletableFuture<ByteBuffer> getFuture() {
+		return future;
+	}
+
+	/**
+	 * Returns whether the given transfer is the answer to this request.
+	 *
+	 * @param sender
+	 *            the node sending the transfer
+	 * @param transferID
+	 *            the ID of the transfer
+	 * @return true if the holder sends it under the request's RPC ID
+	 */
+	boolean isAnsweredBy(NodeIdentifier sender, long transferID) {
+		return transferID == rpcID && holder.equals(sender);
+	}
+}
@@ -1,28 +1,40 @@
 package node;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
 
 public class FileIdentifier extends Identifier {
 	
-	private String fileID;
+	private String key;
 
 	public FileIdentifier(int size, byte[] fileID) {
 		super(size, fileID);
-		
-		/*//calculate SHA-256 Hash of key
-		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			md.update(fileID.getBytes());
-			this.fileID = md.digest().toString();
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}*/
-		
+	}
+
+	private FileIdentifier(int size, String key) {
+		super(size, digest(size, key.getBytes(StandardCharsets.UTF_8)));
+		this.key = key;
+	}
+
+	/**
+	 * Derives the ID of a file from its key (e.g. the file name) by hashing
+	 * it into the ID space.
+	 * 
+	 * @param size
+	 *            the size of the id space
+	 * @param key
+	 *            the key of the file
+	 * @return the ID of the file
+	 */
+	public static FileIdentifier forKey(int size, String key) {
+		return new FileIdentifier(size, key);
 	}
 	
+	/**
+	 * Returns the key this ID has been derived from.
+	 * 
+	 * @return the key or null if this ID has been created from raw bytes
+	 */
 	public String getKey() {
-		return this.fileID;
+		return this.key;
 	}
 }
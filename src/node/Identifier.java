@@ -1,111 +1,317 @@
 package node;
 
 import java.math.BigInteger;
-import java.util.BitSet;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Random;
 
 /**
  * A Kademlia identifier. Can be used for identifying files as well as nodes
  * (but for nodes check {@see NodeIdentifier}).
- * 
+ *
+ * The bits are packed big-endian into longs: bit 0 (the MSB) is the highest
+ * bit of the first word. Unused bits of the last word are always 0. All the
+ * comparison methods work on the words directly and don't allocate.
+ *
  * @author jln
- * 
+ *
  */
 public class Identifier {
     private static Random random = new Random(System.currentTimeMillis());
 
-    protected BitSet bits;
+    protected final long[] words;
 
-    private int size;
+    private final int size;
 
+    private final int hash;
+
+    /**
+     * Creates an ID from its big-endian byte representation. If there are
+     * fewer bytes than the ID space is wide, the value is padded with leading
+     * zeros.
+     *
+     * @param size
+     *            the size of the id space (in bits)
+     * @param bytes
+     *            the bytes of the ID
+     * @throws IllegalArgumentException
+     *             if there are more bytes than the ID space is wide
+     */
     public Identifier(int size, byte[] bytes) {
-        this.size = size;        
-        this.bits = BitSet.valueOf(bytes);
+        if (bytes.length > (size + 7) / 8) {
+            throw new IllegalArgumentException("An ID of " + size
+                    + " bits doesn't fit " + bytes.length + " bytes");
+        }
+        this.size = size;
+        this.words = new long[(this.size + 63) / 64];
+
+        // Right-align the bytes within size
+        int offset = (this.size + 7) / 8 - bytes.length;
+        for (int i = 0; i < bytes.length; i++) {
+            int pos = offset + i;
+            words[pos >>> 3] |= (bytes[i] & 0xFFL) << (56 - 8 * (pos & 7));
+        }
+
+        this.hash = computeHash();
+    }
+
+    /**
+     * Reads an ID (size / 8 big-endian bytes) from the given buffer.
+     *
+     * @param size
+     *            the size of the id space (in bits)
+     * @param buffer
+     *            the buffer to read from
+     */
+    public Identifier(int size, ByteBuffer buffer) {
+        this.size = size;
+        this.words = new long[(size + 63) / 64];
+
+        int numBytes = (size + 7) / 8;
+        for (int i = 0; i < numBytes; i++) {
+            words[i >>> 3] |= (buffer.get() & 0xFFL) << (56 - 8 * (i & 7));
+        }
+
+        this.hash = computeHash();
     }
 
-    private Identifier(int size, BitSet bits) {
+    private Identifier(int size, long[] words) {
         this.size = size;
-        this.bits = bits;
+        this.words = words;
+        this.hash = computeHash();
     }
 
     /**
      * Creates an ID exactly "in the middle" of the ID space. (If the ID space
      * is 8 bit wide, this returns an ID valued 128).
-     * 
+     *
      * @param size
      *            the size of the id space
      * @return an Identifier
      */
     public static Identifier getStaticIdentifier(int size) {
-        BitSet middle = new BitSet(size);
-        middle.set(size - 1);
-        return new Identifier(size, middle);
+        long[] words = new long[(size + 63) / 64];
+        words[0] = 1L << 63;
+        return new Identifier(size, words);
     }
 
     /**
      * Creates a random ID for the given id space size.
-     * 
+     *
      * @param size
      *            the size of the id space
      * @return a random Identifier
      */
     public static Identifier getRandomIdentifier(int size) {
-        BitSet bits = new BitSet(size);
+        long[] words = new long[(size + 63) / 64];
 
-        for (int i = 0; i < size; i++) {
-            double threshold = random.nextGaussian();
-            if (threshold > 0) {
-                bits.set(i);
-            }
+        for (int i = 0; i < words.length; i++) {
+            words[i] = random.nextLong();
         }
 
-        return new Identifier(size, bits);
+        // Clear the bits beyond the ID space
+        if (size % 64 != 0) {
+            words[words.length - 1] &= -1L << (64 - size % 64);
+        }
+
+        return new Identifier(size, words);
     }
 
+    /**
+     * Hashes the given inputs into the given ID space: SHA-1 for ID spaces up
+     * to 160 bits, SHA-256 for up to 256 bits. The digest is truncated to the
+     * size of the ID space.
+     *
+     * @param size
+     *            the size of the id space (at most 256 bits)
+     * @param inputs
+     *            the data to hash
+     * @return the (size / 8) bytes of the digest
+     */
+    protected static byte[] digest(int size, byte[]... inputs) {
+        if (size > 256) {
+            throw new IllegalArgumentException("No digest for an ID space of "
+                    + size + " bits");
+        }
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(size <= 160 ? "SHA-1" : "SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to support both
+            throw new IllegalStateException(e);
+        }
+
+        for (byte[] input : inputs) {
+            md.update(input);
+        }
+
+        byte[] result = new byte[(size + 7) / 8];
+        System.arraycopy(md.digest(), 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Returns the XOR distance to the given ID. This allocates, use
+     * {@link #compareDistance(Identifier, Identifier)} to order IDs by their
+     * distance.
+     *
+     * @param otherID
+     *            the other ID
+     * @return the distance
+     */
     public BigInteger distanceTo(Identifier otherID) {
-        BitSet distance = (BitSet) bits.clone();
-        distance.xor(otherID.bits);
-        return new BigInteger(1, distance.toByteArray());
+        byte[] distance = new byte[(size + 7) / 8];
+        for (int i = 0; i < distance.length; i++) {
+            distance[i] = (byte) ((byteAt(i) ^ otherID.byteAt(i)) & 0xFF);
+        }
+        return new BigInteger(1, distance);
+    }
+
+    /**
+     * Compares the XOR distances of two IDs to this ID.
+     *
+     * @param a
+     *            the first ID
+     * @param b
+     *            the second ID
+     * @return a negative number if a is closer to this ID than b, 0 if both
+     *         are equally close (i.e. a equals b) and a positive number if b
+     *         is closer
+     */
+    public int compareDistance(Identifier a, Identifier b) {
+        int numWords = Math.min(words.length,
+                Math.min(a.words.length, b.words.length));
+
+        for (int i = 0; i < numWords; i++) {
+            long distA = words[i] ^ a.words[i];
+            long distB = words[i] ^ b.words[i];
+            if (distA != distB) {
+                return Long.compareUnsigned(distA, distB);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of leading bits this ID shares with the given ID.
+     *
+     * @param otherID
+     *            the other ID
+     * @return the length of the common prefix (the size of the ID space if
+     *         both IDs are equal)
+     */
+    public int commonPrefixLength(Identifier otherID) {
+        int numWords = Math.min(words.length, otherID.words.length);
+
+        for (int i = 0; i < numWords; i++) {
+            long diff = words[i] ^ otherID.words[i];
+            if (diff != 0) {
+                return Math.min(i * 64 + Long.numberOfLeadingZeros(diff),
+                        size);
+            }
+        }
+        return Math.min(size, otherID.size);
     }
 
     /**
      * Returns whether the bit at the given position is set or not. The MSB is
      * at position 0.
-     * 
+     *
+     * @param index
+     *            the index to check
+     * @return true if the bit is set
+     */
+    public boolean bitAt(int index) {
+        return (words[index >>> 6] & (1L << (63 - (index & 63)))) != 0;
+    }
+
+    /**
+     * Same as {@link #bitAt(int)}.
+     *
      * @param index
      *            the index to check
      * @return true if the bit is set
      */
     public boolean isBitSetAt(int index) {
-        BigInteger intValue = new BigInteger(1, bits.toByteArray());
-        int numOfTrimmedZeros = size - intValue.bitLength();
+        return bitAt(index);
+    }
 
-        if (index < numOfTrimmedZeros) {
-            return false;
+    /**
+     * Returns the size of the ID space of this ID (in bits).
+     *
+     * @return the size
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the big-endian bytes of this ID (always size / 8 bytes, leading
+     * zeros included).
+     *
+     * @return the bytes
+     */
+    public byte[] getBytes() {
+        byte[] result = new byte[(size + 7) / 8];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = byteAt(i);
         }
+        return result;
+    }
 
-        return bits.get(bits.length() - (index + numOfTrimmedZeros) - 1);
+    /**
+     * Writes the bytes of this ID (see {@link #getBytes()}) to the given
+     * buffer without allocating.
+     *
+     * @param buffer
+     *            the buffer to write to
+     */
+    public void writeTo(ByteBuffer buffer) {
+        int numBytes = (size + 7) / 8;
+        for (int i = 0; i < numBytes; i++) {
+            buffer.put(byteAt(i));
+        }
     }
 
-    public byte[] getBytes() {
-        return bits.toByteArray();
+    private byte byteAt(int index) {
+        return (byte) (words[index >>> 3] >>> (56 - 8 * (index & 7)));
+    }
+
+    private int computeHash() {
+        long h = 0;
+        for (long word : words) {
+            h = h * 31 + word;
+        }
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
     }
 
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof Identifier)) {
             return false;
-        } else {
-            return bits.equals(((Identifier) o).bits);
         }
+
+        Identifier other = (Identifier) o;
+        if (hash != other.hash || words.length != other.words.length) {
+            return false;
+        }
+        for (int i = 0; i < words.length; i++) {
+            if (words[i] != other.words[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public int hashCode() {
-        return toString().hashCode();
+        return hash;
     }
 
     public String toString() {
-        return new BigInteger(1, bits.toByteArray()).toString();
+        return new BigInteger(1, getBytes()).toString();
     }
 }
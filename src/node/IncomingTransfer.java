@@ -0,0 +1,186 @@
+package node;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import message.MalformedMessageException;
+
+/**
+ * The receiving side of a bulk data transfer (see {@link OutgoingTransfer}).
+ * The buffer for the whole value is allocated up front and every chunk is
+ * copied straight to its place as it arrives, a bitmap tracks which chunks
+ * are there. It also decides when to acknowledge chunks: a DATA_ACK is sent
+ * after every {@value #ACK_EVERY} new chunks, whenever a chunk opens or
+ * fills a gap, arrives twice (the sender is probably recovering from a
+ * loss) and when the value is complete.
+ *
+ * Not thread-safe, the {@link Reassembler} owning it synchronizes access.
+ *
+ * @author jln
+ *
+ */
+public class IncomingTransfer {
+
+	/**
+	 * The number of new chunks after which an ack is sent
+	 */
+	private static final int ACK_EVERY = 8;
+
+	private final NodeIdentifier sender;
+	private final long transferID;
+	private final FileIdentifier fileID;
+	private final int length;
+	private final int chunkSize;
+	private final int numChunks;
+
+	private final byte[] value;
+	private final BitSet received;
+	// The number of chunks received in order
+	private int numInOrder = 0;
+	private int numReceived = 0;
+	private int unacked = 0;
+
+	private long lastActivity = System.currentTimeMillis();
+
+	/**
+	 * @param sender
+	 *            the node sending the value
+	 * @param transferID
+	 *            the ID of the transfer
+	 * @param fileID
+	 *            the key of the value
+	 * @param length
+	 *            the size of the value (in bytes)
+	 * @param chunkSize
+	 *            the size of a chunk (in bytes)
+	 */
+	IncomingTransfer(NodeIdentifier sender, long transferID,
+			FileIdentifier fileID, int length, int chunkSize) {
+		if (length < 0) {
+			throw new MalformedMessageException("Negative value length "
+					+ length);
+		}
+		this.sender = sender;
+		this.transferID = transferID;
+		this.fileID = fileID;
+		this.length = length;
+		this.chunkSize = chunkSize;
+		this.numChunks = Math.max(1, (length + chunkSize - 1) / chunkSize);
+		this.value = new byte[length];
+		this.received = new BitSet(numChunks);
+	}
+
+	public NodeIdentifier getSender() {
+		return sender;
+	}
+
+	public long getTransferID() {
+		return transferID;
+	}
+
+	public FileIdentifier getFileID() {
+		return fileID;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int getNumChunks() {
+		return numChunks;
+	}
+
+	public boolean isComplete() {
+		return numInOrder == numChunks;
+	}
+
+	/**
+	 * Returns the time the last chunk arrived.
+	 *
+	 * @return the time of the last chunk (in milliseconds)
+	 */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * Stores a chunk.
+	 *
+	 * @param index
+	 *            the index of the chunk
+	 * @param chunk
+	 *            the content of the chunk
+	 * @return true if the chunk should be acknowledged right away
+	 * @throws MalformedMessageException
+	 *             if the chunk doesn't fit into the value
+	 */
+	boolean receivedChunk(int index, ByteBuffer chunk) {
+		if (index < 0 || index >= numChunks) {
+			throw new MalformedMessageException("Chunk " + index
+					+ " out of range (" + numChunks + " chunks)");
+		}
+		int expected = Math.min(chunkSize, length - index * chunkSize);
+		if (chunk.remaining() != expected) {
+			throw new MalformedMessageException("Chunk " + index + " has "
+					+ chunk.remaining() + " bytes, expected " + expected);
+		}
+
+		lastActivity = System.currentTimeMillis();
+
+		if (received.get(index)) {
+			return true;
+		}
+
+		chunk.get(value, index * chunkSize, expected);
+		received.set(index);
+
+		// Filling a gap or opening one changes what the sender has to resend
+		boolean inOrder = index == numInOrder && numReceived == numInOrder;
+		numReceived++;
+		unacked++;
+		numInOrder = received.nextClearBit(numInOrder);
+
+		return !inOrder || isComplete() || unacked >= ACK_EVERY;
+	}
+
+	/**
+	 * Returns the number of chunks received in order, the cumulative part of
+	 * an ack. Resets the count of unacknowledged chunks.
+	 *
+	 * @return the number of chunks received in order
+	 */
+	int ackReceived() {
+		unacked = 0;
+		return numInOrder;
+	}
+
+	/**
+	 * Returns a bitmap of the chunks received after the first missing one:
+	 * bit i (LSB first) is set if chunk {@link #ackReceived()} + 1 + i has
+	 * been received.
+	 *
+	 * @param maxBytes
+	 *            the maximum size of the bitmap
+	 * @return the bitmap (empty if all chunks arrived in order)
+	 */
+	byte[] ackBitmap(int maxBytes) {
+		if (numReceived == numInOrder) {
+			return new byte[0];
+		}
+		// BitSet.toByteArray() is little-endian and drops trailing zeros
+		byte[] bitmap = received.get(numInOrder + 1, numChunks).toByteArray();
+		return bitmap.length > maxBytes ? Arrays.copyOf(bitmap, maxBytes)
+				: bitmap;
+	}
+
+	/**
+	 * Returns the value. Only complete once {@link #isComplete()} returns
+	 * true.
+	 *
+	 * @return the value
+	 */
+	byte[] getValue() {
+		return value;
+	}
+}
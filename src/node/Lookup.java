@@ -0,0 +1,306 @@
+package node;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An iterative Kademlia lookup (FIND_NODE or FIND_VALUE) for one target ID.
+ *
+ * The lookup keeps a shortlist of all nodes it learned about, ordered by
+ * their distance to the target. It always has up to alpha queries in flight
+ * to the closest nodes that haven't been queried yet. It is finished as soon
+ * as the k closest nodes that didn't fail have all answered (or, for a value
+ * lookup, as soon as one node returns the value). The result is delivered
+ * through {@link #getFuture()}.
+ *
+ * All methods are synchronized, answers may arrive on any thread. Queries are
+ * sent and the future completed after the lock is released, a transport
+ * may deliver on the sending thread.
+ *
+ * @author jln
+ *
+ */
+public class Lookup {
+	private final static Logger LOGGER = Logger.getLogger(Lookup.class
+			.getName());
+
+	private enum State {
+		/** known, but not queried yet */
+		NEW,
+		/** queried, waiting for the answer */
+		PENDING,
+		/** answered */
+		RESPONDED,
+		/** didn't answer in time */
+		FAILED
+	}
+
+	private final Node node;
+	private final Identifier target;
+	private final boolean findValue;
+	private final int alpha;
+	private final int k;
+
+	private final TreeMap<NodeIdentifier, State> shortlist;
+	// The number of hops to reach a node: 1 for the nodes the lookup started
+	// with, one more than the node that returned it for the others
+	private final Map<NodeIdentifier, Integer> hops = new HashMap<NodeIdentifier, Integer>();
+
+	// The most hops of a node that answered, and the queries sent
+	private int maxHops = 0;
+	private int numQueries = 0;
+
+	private int inFlight = 0;
+	private boolean finished = false;
+
+	private final CompletableFuture<LookupResult> future = new CompletableFuture<LookupResult>();
+
+	/**
+	 * @param node
+	 *            the node running this lookup
+	 * @param target
+	 *            the ID to look up
+	 * @param findValue
+	 *            if true, look for a value stored under the target, else for
+	 *            the nodes closest to it
+	 * @param alpha
+	 *            the maximum number of queries in flight
+	 * @param k
+	 *            the number of closest nodes to find
+	 */
+	Lookup(Node node, final Identifier target, boolean findValue, int alpha,
+			int k) {
+		this.node = node;
+		this.target = target;
+		this.findValue = findValue;
+		this.alpha = alpha;
+		this.k = k;
+		this.shortlist = new TreeMap<NodeIdentifier, State>(
+				new Comparator<NodeIdentifier>() {
+					@Override
+					public int compare(NodeIdentifier o1, NodeIdentifier o2) {
+						return target.compareDistance(o1, o2);
+					}
+				});
+	}
+
+	public Identifier getTarget() {
+		return target;
+	}
+
+	public boolean isFindValue() {
+		return findValue;
+	}
+
+	public CompletableFuture<LookupResult> getFuture() {
+		return future;
+	}
+
+	/**
+	 * Starts the lookup with the given nodes (usually the closest nodes of
+	 * the own routing table).
+	 *
+	 * @param initial
+	 *            the nodes to start with
+	 */
+	void start(List<NodeIdentifier> initial) {
+		List<NodeIdentifier> queries = new ArrayList<NodeIdentifier>(alpha);
+		LookupResult result;
+		synchronized (this) {
+			addAll(initial, 1);
+			result = step(queries);
+		}
+		query(queries);
+		complete(result);
+	}
+
+	/**
+	 * Called when a queried node answered with the nodes it knows closest to
+	 * the target.
+	 *
+	 * @param from
+	 *            the node that answered
+	 * @param nodes
+	 *            the nodes it returned
+	 */
+	void receivedNodes(NodeIdentifier from, List<NodeIdentifier> nodes) {
+		List<NodeIdentifier> queries = new ArrayList<NodeIdentifier>(alpha);
+		LookupResult result;
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			answered(from, State.RESPONDED);
+			addAll(nodes, hops.get(from) + 1);
+			result = step(queries);
+		}
+		query(queries);
+		complete(result);
+	}
+
+	/**
+	 * Called when a queried node answered a FIND_VALUE with the holder of the
+	 * value.
+	 *
+	 * @param from
+	 *            the node that answered
+	 * @param holder
+	 *            the node that holds the value
+	 */
+	void receivedValue(NodeIdentifier from, NodeIdentifier holder) {
+		LookupResult result;
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			answered(from, State.RESPONDED);
+			finished = true;
+			result = new LookupResult(target, closestResponded(), holder,
+					maxHops, numQueries);
+		}
+		complete(result);
+	}
+
+	/**
+	 * Called when a queried node didn't answer in time.
+	 *
+	 * @param from
+	 *            the node that didn't answer
+	 */
+	void timedOut(NodeIdentifier from) {
+		List<NodeIdentifier> queries = new ArrayList<NodeIdentifier>(alpha);
+		LookupResult result;
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			answered(from, State.FAILED);
+			result = step(queries);
+		}
+		query(queries);
+		complete(result);
+	}
+
+	/**
+	 * Gives up on the lookup, e.g. because the node has been closed.
+	 *
+	 * @param cause
+	 *            the exception to fail the future with
+	 */
+	void fail(Throwable cause) {
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			finished = true;
+		}
+		future.completeExceptionally(cause);
+	}
+
+	private void answered(NodeIdentifier from, State state) {
+		if (shortlist.get(from) == State.PENDING) {
+			inFlight--;
+		}
+		shortlist.put(from, state);
+		if (state == State.RESPONDED) {
+			maxHops = Math.max(maxHops, hops.get(from));
+		}
+	}
+
+	private void addAll(List<NodeIdentifier> nodes, int numHops) {
+		for (NodeIdentifier id : nodes) {
+			// Never query ourselves
+			if (!id.equals(node.getID()) && !shortlist.containsKey(id)) {
+				shortlist.put(id, State.NEW);
+				hops.put(id, numHops);
+			}
+		}
+	}
+
+	/**
+	 * Picks the closest not yet queried nodes to query (as long as there are
+	 * less than alpha in flight) and checks whether the lookup is done.
+	 *
+	 * @param queries
+	 *            the list to add the nodes to query to, they are queried by
+	 *            the caller once it released the lock
+	 * @return the result if the lookup just finished, else null
+	 */
+	private LookupResult step(List<NodeIdentifier> queries) {
+		if (finished) {
+			return null;
+		}
+
+		boolean converged = true;
+		int numConsidered = 0;
+
+		for (Map.Entry<NodeIdentifier, State> entry : shortlist.entrySet()) {
+			if (numConsidered >= k) {
+				break;
+			}
+
+			State state = entry.getValue();
+			if (state == State.FAILED) {
+				continue;
+			}
+			numConsidered++;
+
+			if (state == State.NEW && inFlight < alpha) {
+				entry.setValue(State.PENDING);
+				inFlight++;
+				numQueries++;
+				queries.add(entry.getKey());
+				state = State.PENDING;
+			}
+
+			if (state != State.RESPONDED) {
+				converged = false;
+			}
+		}
+
+		if (!converged) {
+			return null;
+		}
+
+		finished = true;
+		LOGGER.log(Level.INFO,
+				"Finished lookup of {0} ({1} nodes queried, {2} hops)",
+				new Object[] { target, numQueries, maxHops });
+		return new LookupResult(target, closestResponded(), null, maxHops,
+				numQueries);
+	}
+
+	private List<NodeIdentifier> closestResponded() {
+		List<NodeIdentifier> result = new ArrayList<NodeIdentifier>(k);
+		for (Map.Entry<NodeIdentifier, State> entry : shortlist.entrySet()) {
+			if (result.size() >= k) {
+				break;
+			}
+			if (entry.getValue() == State.RESPONDED) {
+				result.add(entry.getKey());
+			}
+		}
+		return result;
+	}
+
+	private void query(List<NodeIdentifier> queries) {
+		for (NodeIdentifier receiver : queries) {
+			node.sendLookupQuery(this, receiver);
+		}
+	}
+
+	private void complete(LookupResult result) {
+		// Completed outside the lock, the future's dependents run on this
+		// thread
+		if (result != null) {
+			future.complete(result);
+		}
+	}
+}
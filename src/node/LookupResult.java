@@ -0,0 +1,87 @@
+package node;
+
+import java.util.List;
+
+/**
+ * The result of a {@link Lookup}.
+ *
+ * @author jln
+ *
+ */
+public class LookupResult {
+
+	private final Identifier target;
+	private final List<NodeIdentifier> closestNodes;
+	private final NodeIdentifier valueHolder;
+	private final int hops;
+	private final int queries;
+
+	LookupResult(Identifier target, List<NodeIdentifier> closestNodes,
+			NodeIdentifier valueHolder) {
+		this(target, closestNodes, valueHolder, 0, 0);
+	}
+
+	LookupResult(Identifier target, List<NodeIdentifier> closestNodes,
+			NodeIdentifier valueHolder, int hops, int queries) {
+		this.target = target;
+		this.closestNodes = closestNodes;
+		this.valueHolder = valueHolder;
+		this.hops = hops;
+		this.queries = queries;
+	}
+
+	public Identifier getTarget() {
+		return target;
+	}
+
+	/**
+	 * Returns the closest nodes to the target that answered, ordered by
+	 * distance (closest first).
+	 *
+	 * @return the closest nodes
+	 */
+	public List<NodeIdentifier> getClosestNodes() {
+		return closestNodes;
+	}
+
+	/**
+	 * Returns the node that holds the value (only for value lookups).
+	 *
+	 * @return the holder of the value or null if it hasn't been found
+	 */
+	public NodeIdentifier getValueHolder() {
+		return valueHolder;
+	}
+
+	/**
+	 * Returns the number of hops of the lookup: the length of the longest
+	 * chain of nodes, each returned by the one before, that led to an
+	 * answering node. 0 if the result came from the own store.
+	 *
+	 * @return the number of hops
+	 */
+	public int getHops() {
+		return hops;
+	}
+
+	/**
+	 * Returns the number of queries the lookup sent.
+	 *
+	 * @return the number of queries
+	 */
+	public int getQueries() {
+		return queries;
+	}
+
+	public boolean isValueFound() {
+		return valueHolder != null;
+	}
+
+	@Override
+	public String toString() {
+		if (isValueFound()) {
+			return target + " -> " + valueHolder;
+		}
+		return target + " -> " + closestNodes;
+	}
+}
@@ -0,0 +1,277 @@
+package node;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import message.MalformedMessageException;
+import message.MessageReader;
+
+/**
+ * Takes the messages the {@link Transport} of a {@link NodeHost} receives and
+ * hands them to a pool of worker threads, which run the handlers (see
+ * {@link MessageHandler}).
+ *
+ * The receiving thread of the transport decodes the header, looks up the node
+ * the message is for by its receiver ID and queues the message for the worker
+ * the sender maps to (for an in-memory transport the sending thread does). So
+ * messages of one peer are handled in order, while a slow handler only holds
+ * up the peers sharing its worker. Messages for nodes the host doesn't know
+ * (any more) are dropped. The queue of a worker is bounded: when it is full the message is
+ * dropped (and counted), like the socket would drop it, and the sender's
+ * retransmission takes care of it.
+ *
+ * @author jln
+ *
+ */
+public class MessageDispatcher implements Transport.Receiver {
+	private final static Logger LOGGER = Logger
+			.getLogger(MessageDispatcher.class.getName());
+
+	private final NodeHost host;
+
+	private final Transport transport;
+
+	private final int idBits;
+
+	// Decodes the headers on the receiving thread (or threads, it's locked)
+	private final MessageReader reader;
+
+	private final Worker[] workers;
+	private final Thread[] threads;
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong misdirected = new AtomicLong();
+
+	/**
+	 * @param host
+	 *            the host of the nodes receiving the messages
+	 * @param transport
+	 *            the transport the messages arrive on
+	 * @param numWorkers
+	 *            the number of worker threads
+	 * @param queueCapacity
+	 *            the maximum number of messages waiting for a worker
+	 * @param workerFactory
+	 *            creates the worker threads
+	 */
+	public MessageDispatcher(NodeHost host, Transport transport,
+			int numWorkers, int queueCapacity, ThreadFactory workerFactory) {
+		this.host = host;
+		this.transport = transport;
+		this.idBits = host.getIdBits();
+		this.reader = new MessageReader(idBits);
+
+		this.workers = new Worker[numWorkers];
+		this.threads = new Thread[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			workers[i] = new Worker(queueCapacity);
+			threads[i] = workerFactory.newThread(workers[i]);
+		}
+	}
+
+	/**
+	 * Starts the workers and the transport.
+	 */
+	public void start() {
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		transport.start(this);
+	}
+
+	/**
+	 * Stops the workers, messages still waiting for them are dropped.
+	 */
+	public void terminate() {
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Decodes the header of a message and queues it for its worker. The
+	 * buffer belongs to the message from now on.
+	 */
+	@Override
+	public void received(InetSocketAddress from, ByteBuffer buffer) {
+		received.incrementAndGet();
+
+		ReceivedMessage message;
+		Identifier receiver;
+		try {
+			synchronized (reader) {
+				reader.wrap(buffer);
+				receiver = reader.getReceiver();
+				message = new ReceivedMessage(host.getNode(receiver), from,
+						buffer, reader.getType(), reader.getSender(from),
+						reader.getRpcID());
+			}
+		} catch (MalformedMessageException e) {
+			LOGGER.log(Level.WARNING, "Dropped malformed message from {0}: {1}",
+					new Object[] { from, e.getMessage() });
+			transport.release(buffer);
+			return;
+		}
+
+		if (message.getNode() == null) {
+			misdirected.incrementAndGet();
+			LOGGER.log(Level.FINE,
+					"Dropped message type {0} from {1}, no node {2} here",
+					new Object[] { message.getType(), from, receiver });
+			transport.release(buffer);
+			return;
+		}
+		message.getNode().getMetrics()
+				.received(message.getType(), buffer.limit());
+
+		Worker worker = workers[(message.getSender().hashCode() & 0x7FFFFFFF)
+				% workers.length];
+		if (!worker.offer(message)) {
+			dropped.incrementAndGet();
+			LOGGER.log(Level.FINE,
+					"Dropped message type {0} from {1}, the queue is full",
+					new Object[] { message.getType(), from });
+			transport.release(buffer);
+		}
+	}
+
+	/**
+	 * Returns the number of messages received.
+	 *
+	 * @return the number of messages
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * Returns the number of messages dropped because the queue of their
+	 * worker was full.
+	 *
+	 * @return the number of dropped messages
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of messages dropped because they were for a node
+	 * that isn't on the host.
+	 *
+	 * @return the number of misdirected messages
+	 */
+	public long getMisdirected() {
+		return misdirected.get();
+	}
+
+	/**
+	 * Returns the number of messages the workers handled.
+	 *
+	 * @return the number of handled messages
+	 */
+	public long getHandled() {
+		long handled = 0;
+		for (Worker worker : workers) {
+			handled += worker.handled.get();
+		}
+		return handled;
+	}
+
+	public int getNumWorkers() {
+		return workers.length;
+	}
+
+	/**
+	 * Returns the number of messages waiting for a worker, per worker.
+	 *
+	 * @return the queue depths
+	 */
+	public int[] getQueueDepths() {
+		int[] depths = new int[workers.length];
+		for (int i = 0; i < workers.length; i++) {
+			depths[i] = workers[i].queue.size();
+		}
+		return depths;
+	}
+
+	/**
+	 * Returns the number of messages waiting for any worker.
+	 *
+	 * @return the total queue depth
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (Worker worker : workers) {
+			depth += worker.queue.size();
+		}
+		return depth;
+	}
+
+	/**
+	 * Returns the deepest any worker queue has been.
+	 *
+	 * @return the maximum queue depth
+	 */
+	public int getMaxQueueDepth() {
+		int max = 0;
+		for (Worker worker : workers) {
+			max = Math.max(max, worker.maxDepth);
+		}
+		return max;
+	}
+
+	/**
+	 * A worker thread with its own queue and handler.
+	 */
+	private class Worker implements Runnable {
+		final BlockingQueue<ReceivedMessage> queue;
+		final MessageHandler handler;
+		final AtomicLong handled = new AtomicLong();
+		// Only written by the receiving thread
+		volatile int maxDepth = 0;
+
+		Worker(int queueCapacity) {
+			this.queue = new ArrayBlockingQueue<ReceivedMessage>(queueCapacity);
+			this.handler = new MessageHandler(idBits, transport);
+		}
+
+		boolean offer(ReceivedMessage message) {
+			if (!queue.offer(message)) {
+				return false;
+			}
+			int depth = queue.size();
+			if (depth > maxDepth) {
+				maxDepth = depth;
+			}
+			return true;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				ReceivedMessage message;
+				try {
+					message = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				try {
+					handler.handle(message);
+				} catch (RuntimeException e) {
+					// Keep the worker alive for the other peers
+					LOGGER.log(Level.SEVERE, "Failed to handle message from "
+							+ message.getFrom(), e);
+				}
+				handled.incrementAndGet();
+			}
+		}
+	}
+}
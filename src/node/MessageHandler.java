@@ -0,0 +1,341 @@
+package node;
+
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import message.MalformedMessageException;
+import message.MessageCodec;
+import message.MessageReader;
+import message.MessageType;
+
+/**
+ * Decodes the bodies of received messages and passes them on to the node they
+ * are for. Every worker thread of the {@link MessageDispatcher} has its own
+ * handler, so handlers of different peers run in parallel.
+ * 
+ * @author jln
+ * 
+ */
+public class MessageHandler {
+	private final static Logger LOGGER = Logger.getLogger(MessageHandler.class
+			.getName());
+
+	// The node the message being handled is for
+	private Node node;
+
+	private final MessageReader reader;
+
+	// Where the buffers of handled messages go back to
+	private final Transport transport;
+
+	/**
+	 * @param idBits
+	 *            the size of the ID space
+	 * @param transport
+	 *            the transport the messages arrived on
+	 */
+	MessageHandler(int idBits, Transport transport) {
+		this.reader = new MessageReader(idBits);
+		this.transport = transport;
+	}
+
+	/**
+	 * Handles a received message and hands its buffer back to the transport.
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	void handle(ReceivedMessage message) {
+		node = message.getNode();
+		try {
+			handleMessage(message);
+		} catch (MalformedMessageException e) {
+			LOGGER.log(Level.WARNING,
+					"Dropped malformed message from {0}: {1}",
+					new Object[] { message.getFrom(), e.getMessage() });
+		} finally {
+			transport.release(message.getBuffer());
+			node = null;
+		}
+	}
+
+	private void handleMessage(ReceivedMessage message) {
+		// Flag that indicates whether the routing table should be
+		// updated with the node we just received a message from. Updating
+		// doesn't send anything, it only marks the node as recently seen
+		// (see Bucket).
+		boolean updateRT = true;
+
+		reader.wrap(message.getBuffer());
+
+		byte messageType = message.getType();
+		NodeIdentifier fromID = message.getSender();
+		long rpcID = message.getRpcID();
+		InetSocketAddress from = message.getFrom();
+
+		switch (messageType) {
+		case MessageType.FIND_NODE:
+			receiveFindNode(fromID, rpcID);
+			break;
+		case MessageType.NODES:
+			receiveNodes(fromID, rpcID);
+			break;
+		case MessageType.PING:
+			receivePing(fromID, rpcID);
+			break;
+		case MessageType.PONG:
+			receivePong(fromID, rpcID);
+			break;
+		case MessageType.LEAVE:
+			// The node shuts down right after sending this, make room for
+			// a replacement
+			updateRT = false;
+			LOGGER.log(Level.INFO, "Received leave from {0}",
+					new Object[] { from.toString() });
+			node.removeFromBuckets(fromID);
+			break;
+		case MessageType.FIND_VALUE:
+			receiveFindValue(fromID, rpcID);
+			break;
+		case MessageType.VALUE_NODES:
+			receiveValueNodes(fromID, rpcID);
+			break;
+		case MessageType.FOUND_VALUE:
+			receiveFoundValue(fromID, rpcID);
+			break;
+		case MessageType.STORE:
+			receiveStore(fromID, rpcID);
+			break;
+		case MessageType.STORE_BATCH:
+			receiveStoreBatch(fromID, rpcID);
+			break;
+		case MessageType.STORE_RESULTS:
+			receiveStoreResults(fromID, rpcID);
+			break;
+		case MessageType.FIND_VALUE_BATCH:
+			receiveFindValueBatch(fromID, rpcID);
+			break;
+		case MessageType.FOUND_VALUES:
+			receiveFoundValues(fromID, rpcID);
+			break;
+		case MessageType.DATA:
+			receiveData(fromID, rpcID);
+			break;
+		case MessageType.DATA_ACK:
+			receiveDataAck(fromID, rpcID);
+			break;
+		case MessageType.DATA_REQ:
+			receiveDataReq(fromID, rpcID);
+			break;
+		case MessageType.ACK:
+			receiveAck(fromID, rpcID);
+			break;
+		default:
+			LOGGER.log(Level.INFO,
+					"Received unknown command from {0}: [{1}] ({2} bytes)",
+					new Object[] { from.toString(), messageType,
+							message.getBuffer().limit() });
+		}
+
+		if (updateRT) {
+			node.updateBuckets(fromID);
+		}
+	}
+
+	private void receiveAck(NodeIdentifier fromID, long rpcID) {
+		// This should be the either answer to a prior STORE or FOUND_VALUE ->
+		// mark this RPC ID as received
+		node.receivedRPC(fromID, rpcID);
+	}
+
+	private void receiveFoundValue(NodeIdentifier fromID, long rpcID) {
+		NodeIdentifier holder = reader.readNode();
+
+		// This should be the answer to a prior FIND_VALUE -> pass it on to
+		// the lookup that sent it
+		node.receivedValue(fromID, rpcID, holder);
+
+		LOGGER.log(Level.INFO, "Received [FOUND VALUE on Node {0}] from Node {1}",
+				new Object[] { holder, fromID });
+	}
+
+	private void receiveValueNodes(NodeIdentifier fromID, long rpcID) {
+		List<NodeIdentifier> nodes = reader.readNodes();
+
+		// This should be the answer to a prior FIND_VALUE -> pass it on to
+		// the lookup that sent it
+		node.receivedNodes(fromID, rpcID, nodes);
+
+		LOGGER.log(Level.INFO,
+				"Received {0} [VALUE NODES] [{1}] from Node {2})",
+				new Object[] { nodes.size(), nodes, fromID });
+	}
+
+	private void receiveData(NodeIdentifier fromID, long rpcID) {
+		FileIdentifier fid = new FileIdentifier(node.getIdBits(),
+				reader.readID().getBytes());
+		int length = reader.readInt();
+		int chunkID = reader.readInt();
+		ByteBuffer chunk = reader.readBytesView();
+
+		LOGGER.log(Level.FINEST, "Received [DATA {0} chunk {1}] from Node {2}",
+				new Object[] { fid, chunkID, fromID });
+
+		// The RPC ID of a chunk is the ID of its transfer
+		node.receivedChunk(fromID, rpcID, fid, length, chunkID, chunk);
+	}
+
+	private void receiveDataAck(NodeIdentifier fromID, long rpcID) {
+		int received = reader.readInt();
+		ByteBuffer bitmap = reader.readBytesView();
+
+		LOGGER.log(Level.FINEST,
+				"Received [DATA_ACK {0} chunks] from Node {1} (transfer {2})",
+				new Object[] { received, fromID, rpcID });
+
+		node.receivedDataAck(fromID, rpcID, received, bitmap);
+	}
+
+	private void receiveDataReq(NodeIdentifier fromID, long rpcID) {
+		Identifier fid = reader.readID();
+
+		LOGGER.log(Level.INFO, "Received [DATA_REQ {0}] from Node {1}",
+				new Object[] { fid, fromID });
+
+		// Don't ack requests for data we don't have, the requester times out
+		if (node.hasData(fid)) {
+			node.sendAck(fromID, rpcID);
+			// Under the request's RPC ID, the requester ties the transfer to it
+			node.sendData(fromID, fid, rpcID);
+		}
+	}
+
+	private void receivePong(NodeIdentifier fromID, long rpcID) {
+		LOGGER.log(Level.INFO, "Received [PONG] from {0}",
+				new Object[] { fromID });
+
+		// This should be the answer to a prior PING -> mark this RPC ID as
+		// received
+		node.receivedRPC(fromID, rpcID);
+	}
+
+	private void receivePing(NodeIdentifier fromID, long rpcID) {
+		LOGGER.log(Level.INFO, "Received [PING] from {0}",
+				new Object[] { fromID });
+		node.sendPong(fromID, rpcID);
+	}
+
+	private void receiveNodes(NodeIdentifier fromID, long rpcID) {
+		List<NodeIdentifier> nodes = reader.readNodes();
+
+		for (NodeIdentifier newID : nodes) {
+			node.updateBuckets(newID);
+		}
+
+		// This should be the answer to a prior FIND_NODE -> pass it on to the
+		// lookup that sent it
+		node.receivedNodes(fromID, rpcID, nodes);
+
+		LOGGER.log(Level.INFO, "Received {0} [NODES] [{1}] from Node {2})",
+				new Object[] { nodes.size(), nodes, fromID });
+	}
+
+	private void receiveFindNode(NodeIdentifier fromID, long rpc_id) {
+		Identifier idToFind = reader.readID();
+
+		LOGGER.log(Level.INFO, "Received [FIND_NODE {0}] from Node {1}",
+				new Object[] { idToFind, fromID });
+
+		node.sendClosestNodesTo(fromID, idToFind, rpc_id, true);
+	}
+
+	private void receiveStore(NodeIdentifier fromID, long rpcID) {
+		Identifier fileID = reader.readID();
+
+		LOGGER.log(Level.INFO, "Received [STORE {0}] from Node {1}",
+				new Object[] { fileID, fromID });
+
+		node.storePair(fileID, fromID);
+
+		node.sendAck(fromID, rpcID);
+	}
+
+	private void receiveStoreBatch(NodeIdentifier fromID, long rpcID) {
+		List<Identifier> keys = reader.readIDs();
+
+		LOGGER.log(Level.INFO, "Received [STORE_BATCH {0} keys] from Node {1}",
+				new Object[] { keys.size(), fromID });
+
+		// Bit i is set if the i-th key has been stored
+		BitSet stored = new BitSet(keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			try {
+				node.storePair(keys.get(i), fromID);
+				stored.set(i);
+			} catch (UncheckedIOException e) {
+				LOGGER.log(Level.WARNING, "Failed to store " + keys.get(i), e);
+			}
+		}
+
+		node.sendStoreResults(fromID, rpcID, stored);
+	}
+
+	private void receiveStoreResults(NodeIdentifier fromID, long rpcID) {
+		BitSet stored = BitSet.valueOf(reader.readBytesView());
+
+		// This should be the answer to a prior STORE_BATCH
+		node.receivedStoreResults(fromID, rpcID, stored);
+
+		LOGGER.log(Level.INFO, "Received [STORE_RESULTS {0} stored] from Node {1}",
+				new Object[] { stored.cardinality(), fromID });
+	}
+
+	private void receiveFindValueBatch(NodeIdentifier fromID, long rpcID) {
+		List<Identifier> keys = reader.readIDs();
+		if (keys.size() > MessageCodec.maxFindValueBatch(node.getIdBits())) {
+			// The answer wouldn't fit into a datagram
+			throw new MalformedMessageException("FIND_VALUE_BATCH of "
+					+ keys.size() + " keys");
+		}
+
+		LOGGER.log(Level.INFO, "Received [FIND_VALUE_BATCH {0} keys] from Node {1}",
+				new Object[] { keys.size(), fromID });
+
+		List<NodeIdentifier> holders = new ArrayList<NodeIdentifier>(
+				keys.size());
+		for (Identifier key : keys) {
+			holders.add(node.getValueHolder(key));
+		}
+
+		node.sendFoundValues(fromID, rpcID, holders);
+	}
+
+	private void receiveFoundValues(NodeIdentifier fromID, long rpcID) {
+		List<NodeIdentifier> holders = reader.readHolders();
+
+		// This should be the answer to a prior FIND_VALUE_BATCH
+		node.receivedFoundValues(fromID, rpcID, holders);
+
+		LOGGER.log(Level.INFO, "Received [FOUND_VALUES {0} holders] from Node {1}",
+				new Object[] { holders.size(), fromID });
+	}
+
+	private void receiveFindValue(NodeIdentifier fromID, long rpcID) {
+		Identifier fileID = reader.readID();
+
+		LOGGER.log(Level.INFO, "Received [FIND VALUE {0}] from Node {1}",
+				new Object[] { fileID, fromID });
+
+		if (node.hasKey(fileID)) {
+			node.sendFoundValue(fromID, fileID, rpcID);
+		} else {
+			node.sendClosestNodesTo(fromID, fileID, rpcID, false);
+		}
+	}
+}
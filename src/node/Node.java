@@ -5,106 +5,533 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import message.Ack;
 import message.MessageCallback;
+import message.MessageCodec;
 import message.MessageType;
+import message.RetransmissionScheduler;
+import message.RpcRegistry;
+import metrics.MetricsBean;
+import metrics.NodeMetrics;
 import routingtable.IRoutingTable;
 import routingtable.RoutingTableImpl;
+import store.IValueStore;
+import store.SegmentValueStore;
+import util.Futures;
 
 public class Node {
 
 	private final static Logger LOGGER = Logger.getLogger(Node.class.getName());
 
 	/**
-	 * Size of ID space (has to be a multiple of 8)
+	 * Size of the ID space if none is configured via the system property
+	 * {@value #ID_BITS_PROPERTY}
+	 */
+	public static final int DEFAULT_ID_BITS = 160;
+	/**
+	 * The system property that configures the size of the ID space (160 or
+	 * 256 bits). All nodes of a network have to use the same size.
 	 */
-	public static final int ID_BITS = 8;
+	public static final String ID_BITS_PROPERTY = "kademlia.idbits";
 	/**
 	 * The bucket size
 	 */
 	public static final int BUCKET_SIZE = 2;
+	/**
+	 * The number of parallel queries of a lookup if none is configured via
+	 * the system property {@value #ALPHA_PROPERTY}
+	 */
+	public static final int DEFAULT_ALPHA = 3;
+	/**
+	 * The system property that configures the number of parallel queries of
+	 * a lookup
+	 */
+	public static final String ALPHA_PROPERTY = "kademlia.alpha";
 	/**
 	 * The first node is always spawned on port 50000
 	 */
 	private static final int INITIAL_PORT = 50000;
-	private static final Identifier INITIAL_ID = Identifier
-			.getStaticIdentifier(ID_BITS);
-	private static final int BUFFER_SIZE = 512;
-        private static final int CHUNK_SIZE = 4;
 	/**
-	 * The size of an IP address (in bytes)
+	 * The number of chunks of a data transfer in flight if none is configured
+	 * via the system property {@value #TRANSFER_WINDOW_PROPERTY}
+	 */
+	public static final int DEFAULT_TRANSFER_WINDOW = 32;
+	/**
+	 * The system property that configures the number of chunks of a data
+	 * transfer in flight
+	 */
+	public static final String TRANSFER_WINDOW_PROPERTY = "kademlia.transfer.window";
+	/**
+	 * The system property that configures the directory of the value store.
+	 * The values of a node are kept in its subdirectory "data", the holders
+	 * of values it knows about in "pointers". If not set, every node stores
+	 * into a temporary directory that is deleted on exit.
+	 */
+	public static final String STORE_DIR_PROPERTY = "kademlia.store.dir";
+	/**
+	 * The maximum size of a value this node accepts if none is configured via
+	 * the system property {@value #MAX_TRANSFER_SIZE_PROPERTY}
+	 */
+	public static final int DEFAULT_MAX_TRANSFER_SIZE = 64 << 20;
+	/**
+	 * The system property that configures the maximum size of a value this
+	 * node accepts (in bytes)
+	 */
+	public static final String MAX_TRANSFER_SIZE_PROPERTY = "kademlia.transfer.maxsize";
+	/**
+	 * The maximum memory taken by incoming transfers if none is configured
+	 * via the system property {@value #MAX_TRANSFER_MEMORY_PROPERTY}
+	 */
+	public static final long DEFAULT_MAX_TRANSFER_MEMORY = 256 << 20;
+	/**
+	 * The system property that configures the maximum memory taken by the
+	 * incoming transfers of a node (in bytes)
+	 */
+	public static final String MAX_TRANSFER_MEMORY_PROPERTY = "kademlia.transfer.maxmemory";
+	/**
+	 * The interval (in milliseconds) in which a node stores the keys of its
+	 * values again if none is configured via the system property
+	 * {@value #REPUBLISH_INTERVAL_PROPERTY}
+	 */
+	public static final long DEFAULT_REPUBLISH_INTERVAL = 60 * 60 * 1000L;
+	/**
+	 * The system property that configures the republish interval (in
+	 * milliseconds)
+	 */
+	public static final String REPUBLISH_INTERVAL_PROPERTY = "kademlia.republish.interval";
+	/**
+	 * The time (in milliseconds) after which the holder of a value is
+	 * forgotten unless it stores the key again, if none is configured via the
+	 * system property {@value #EXPIRE_PROPERTY}
+	 */
+	public static final long DEFAULT_EXPIRE = 24 * 60 * 60 * 1000L;
+	/**
+	 * The system property that configures the expiry of value holders (in
+	 * milliseconds)
+	 */
+	public static final String EXPIRE_PROPERTY = "kademlia.expire";
+	/**
+	 * The number of threads handling received messages if none is
+	 * configured via the system property {@value #WORKERS_PROPERTY}
+	 */
+	public static final int DEFAULT_WORKERS = Math.max(2, Runtime
+			.getRuntime().availableProcessors());
+	/**
+	 * The system property that configures the number of threads handling
+	 * received messages
 	 */
-	public static final int SIZE_IP_ADDRESS = 8;
+	public static final String WORKERS_PROPERTY = "kademlia.workers";
+	/**
+	 * The number of received messages that may wait for a worker thread if
+	 * none is configured via the system property
+	 * {@value #QUEUE_CAPACITY_PROPERTY}
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	/**
+	 * The system property that configures the number of received messages
+	 * that may wait for a worker thread (per worker), more are dropped
+	 */
+	public static final String QUEUE_CAPACITY_PROPERTY = "kademlia.queue.capacity";
+	/**
+	 * The interval (in milliseconds) in which a node logs its metrics (see
+	 * {@link NodeMetrics#log(String)}) if none is configured via the system
+	 * property {@value #METRICS_INTERVAL_PROPERTY}, 0 logs none
+	 */
+	public static final long DEFAULT_METRICS_INTERVAL = 0;
+	/**
+	 * The system property that configures the interval (in milliseconds) in
+	 * which a node logs its metrics
+	 */
+	public static final String METRICS_INTERVAL_PROPERTY = "kademlia.metrics.interval";
+	/**
+	 * Whether a node registers its metrics as an MBean if not configured via
+	 * the system property {@value #METRICS_JMX_PROPERTY}
+	 */
+	public static final boolean DEFAULT_METRICS_JMX = true;
+	/**
+	 * The system property that configures whether a node registers its
+	 * metrics as an MBean (named kademlia:type=Node,address=..,id=..)
+	 */
+	public static final String METRICS_JMX_PROPERTY = "kademlia.metrics.jmx";
+
+	// The host this node runs on and shares its transport and threads with
+	private final NodeHost host;
+	// Whether the host has been created for this node alone
+	private final boolean ownsHost;
+	private final Transport transport;
+	private final InetSocketAddress address;
+
+	private volatile boolean closed = false;
+
+	private RpcRegistry rpcs = new RpcRegistry();
+	private AtomicLong nextRPCID = new AtomicLong(new Random().nextLong());
+	// The holders of values (as node triples) by key
+	private final IValueStore values;
+
+	// The lookups waiting for the answer to a FIND_NODE/FIND_VALUE, by RPC ID
+	private Map<Long, Lookup> lookups = new ConcurrentHashMap<Long, Lookup>();
+	// The STORE_BATCH and FIND_VALUE_BATCH messages waiting for their
+	// results, by RPC ID
+	private Map<Long, CompletableFuture<BitSet>> storeBatches = new ConcurrentHashMap<Long, CompletableFuture<BitSet>>();
+	private Map<Long, CompletableFuture<List<NodeIdentifier>>> findValueBatches = new ConcurrentHashMap<Long, CompletableFuture<List<NodeIdentifier>>>();
+	// The number of lookups that haven't finished yet
+	private AtomicInteger lookupsInFlight = new AtomicInteger();
+
+	private int alpha = Integer.getInteger(ALPHA_PROPERTY, DEFAULT_ALPHA);
+
+	// The data transfers this node sends, by transfer ID
+	private Map<Long, OutgoingTransfer> outgoingTransfers = new ConcurrentHashMap<Long, OutgoingTransfer>();
+	// The data transfers this node receives
+	private final Reassembler reassembler;
+	// The requested values that haven't arrived yet
+	private Map<Identifier, DataRequest> dataRequests = new ConcurrentHashMap<Identifier, DataRequest>();
+
+	private int transferWindow = Integer.getInteger(TRANSFER_WINDOW_PROPERTY,
+			DEFAULT_TRANSFER_WINDOW);
+
+	// Drives the timeouts of the data transfers and operations, evicts stale
+	// transfers and runs the republisher (the timer of the host)
+	private final ScheduledExecutorService timer;
+	private final ScheduledFuture<?> evictTask;
+	private final ScheduledFuture<?> republishTask;
+
+	private final RetransmissionScheduler scheduler;
+
+	private final NodeMetrics metrics = new NodeMetrics();
+	// The name the metrics are registered under via JMX (if they are)
+	private ObjectName metricsName;
+	// Logs the metrics (if configured)
+	private ScheduledFuture<?> metricsTask;
 
-	private InetSocketAddress address;
-	private DatagramChannel channel;
+	/**
+	 * Size of ID space (in bits)
+	 */
+	private final int idBits;
 
-        public NodeIdentifier lastlookup = null;
+	private final Identifier nodeID;
+	private final IRoutingTable routingTable;
 
-	private Map<Identifier, List<Ack>> rpcs = new HashMap<Identifier, List<Ack>>();
-	private Map<Identifier, Identifier> values = new HashMap<Identifier, Identifier>();
+	// The values stored on this node
+	private final IValueStore data;
 
-	private Identifier searchID = null;
+	// Stores the keys of the values again and expires old holders
+	private final Republisher republisher;
 
-	private Thread thread;
-	private UDPHandler udpListen;
+	public Node() {
+		this(Integer.getInteger(ID_BITS_PROPERTY, DEFAULT_ID_BITS));
+	}
 
-	private Identifier nodeID = Identifier.getRandomIdentifier(ID_BITS);
-	private IRoutingTable routingTable = new RoutingTableImpl(BUCKET_SIZE, this);
+	/**
+	 * Creates a node for a network with the given size of the ID space.
+	 * 
+	 * @param idBits
+	 *            the size of the ID space (160 or 256 bits)
+	 */
+	public Node(int idBits) {
+		this(idBits, openStore(idBits, "data"), openStore(idBits, "pointers"));
+	}
 
-	private Map<FileIdentifier, String> data = new HashMap<FileIdentifier, String>();;
+	/**
+	 * Creates a node for a network with the given size of the ID space that
+	 * keeps its values in the given stores. The first node on a host binds
+	 * port 50000 and gets the static ID, every other node binds a free port
+	 * and joins the network via the first one.
+	 * 
+	 * @param idBits
+	 *            the size of the ID space (160 or 256 bits)
+	 * @param data
+	 *            the store for the values of this node
+	 * @param values
+	 *            the store for the holders of values (node triples)
+	 */
+	public Node(int idBits, IValueStore data, IValueStore values) {
+		this(idBits, data, values, openTransport());
+	}
 
-	public Node() {
-		System.setProperty("java.net.preferIPv4Stack", "true");
+	private Node(int idBits, IValueStore data, IValueStore values,
+			Transport transport) {
+		this(isInitial(transport) ? Identifier.getStaticIdentifier(idBits)
+				: Identifier.getRandomIdentifier(idBits), data, values,
+				transport, isInitial(transport) ? null : new NodeIdentifier(
+						idBits, Identifier.getStaticIdentifier(idBits)
+								.getBytes(), new InetSocketAddress("127.0.0.1",
+								INITIAL_PORT)));
+	}
 
-		try {
-			channel = DatagramChannel.open();
+	/**
+	 * Creates a node with the given ID that sends its messages over the given
+	 * transport and joins the network via the given node. The node runs on a
+	 * {@link NodeHost} of its own, see {@link NodeHost#addNode} to run many
+	 * nodes on one transport.
+	 * 
+	 * @param nodeID
+	 *            the ID of the node, its size is the size of the ID space
+	 *            (160 or 256 bits)
+	 * @param data
+	 *            the store for the values of this node
+	 * @param values
+	 *            the store for the holders of values (node triples)
+	 * @param transport
+	 *            the transport, owned by the node from now on
+	 * @param bootstrap
+	 *            the node to join the network via, null for the first node
+	 */
+	public Node(Identifier nodeID, IValueStore data, IValueStore values,
+			Transport transport, NodeIdentifier bootstrap) {
+		this(new NodeHost(transport, nodeID.getSize()), true, nodeID, data,
+				values, bootstrap);
+	}
+
+	/**
+	 * Creates a node on the given host (see {@link NodeHost#addNode}).
+	 */
+	Node(NodeHost host, boolean ownsHost, Identifier nodeID, IValueStore data,
+			IValueStore values, NodeIdentifier bootstrap) {
+		this.host = host;
+		this.ownsHost = ownsHost;
+		this.idBits = nodeID.getSize();
+		this.nodeID = nodeID;
+		this.data = data;
+		this.values = values;
+		this.transport = host.getTransport();
+		this.address = host.getAddress();
+		this.timer = host.getTimer();
+		this.scheduler = host.getScheduler();
+
+		this.reassembler = new Reassembler(this, Integer.getInteger(
+				MAX_TRANSFER_SIZE_PROPERTY, DEFAULT_MAX_TRANSFER_SIZE),
+				Long.getLong(MAX_TRANSFER_MEMORY_PROPERTY,
+						DEFAULT_MAX_TRANSFER_MEMORY));
+		evictTask = timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				reassembler.evictStale();
+			}
+		}, Reassembler.STALE_TIMEOUT / 5, Reassembler.STALE_TIMEOUT / 5,
+				TimeUnit.MILLISECONDS);
+
+		this.republisher = new Republisher(this, Long.getLong(EXPIRE_PROPERTY,
+				DEFAULT_EXPIRE));
+		long republishInterval = Long.getLong(REPUBLISH_INTERVAL_PROPERTY,
+				DEFAULT_REPUBLISH_INTERVAL);
+		republishTask = timer.scheduleWithFixedDelay(republisher,
+				republishInterval, republishInterval, TimeUnit.MILLISECONDS);
+
+		routingTable = new RoutingTableImpl(BUCKET_SIZE, nodeID, this);
+
+		host.register(this);
+		initMetrics();
+
+		LOGGER.log(Level.INFO, "{0}: Initialized node {1} on {2}",
+				new Object[] { this.nodeID, getName(), address.toString() });
+
+		if (bootstrap != null) {
+			joinNetworkVia(bootstrap);
+		}
+	}
+
+	/**
+	 * Registers the gauges of this node, its MBean and the task that logs
+	 * the metrics, as configured.
+	 */
+	private void initMetrics() {
+		metrics.gauge("routingtable.contacts", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				long contacts = 0;
+				for (int size : routingTable.getBucketSizes()) {
+					contacts += size;
+				}
+				return contacts;
+			}
+		});
+		metrics.gauge("routingtable.buckets", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return routingTable.getBucketSizes().length;
+			}
+		});
+		// The number of buckets with 0 to BUCKET_SIZE contacts
+		for (int i = 0; i <= BUCKET_SIZE; i++) {
+			final int contacts = i;
+			metrics.gauge("routingtable.buckets." + contacts,
+					new LongSupplier() {
+						@Override
+						public long getAsLong() {
+							long buckets = 0;
+							for (int size : routingTable.getBucketSizes()) {
+								if (size == contacts) {
+									buckets++;
+								}
+							}
+							return buckets;
+						}
+					});
+		}
+		metrics.gauge("store.values", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return data.size();
+			}
+		});
+		metrics.gauge("store.holders", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return values.size();
+			}
+		});
+		metrics.gauge("rpc.pending", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return rpcs.size();
+			}
+		});
+		metrics.gauge("lookups.running", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return lookupsInFlight.get();
+			}
+		});
+		metrics.gauge("transfers.outgoing", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return outgoingTransfers.size();
+			}
+		});
+		metrics.gauge("transfers.incoming", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return reassembler.size();
+			}
+		});
+		metrics.gauge("transfers.memory", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return reassembler.getMemoryUsed();
+			}
+		});
+		// The host's counts, shared with the other nodes on it
+		metrics.gauge("host.received", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return host.getDispatcher().getReceived();
+			}
+		});
+		metrics.gauge("host.dropped", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return host.getDispatcher().getDropped();
+			}
+		});
+		metrics.gauge("host.misdirected", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return host.getDispatcher().getMisdirected();
+			}
+		});
 
+		if (Boolean.parseBoolean(System.getProperty(METRICS_JMX_PROPERTY,
+				Boolean.toString(DEFAULT_METRICS_JMX)))) {
 			try {
-				address = new InetSocketAddress("localhost", INITIAL_PORT);
-				channel.socket().bind(address);
+				metricsName = new ObjectName("kademlia:type=Node,address="
+						+ ObjectName.quote(address.toString()) + ",id="
+						+ nodeID);
+				MetricsBean.register(metrics, metricsName);
+			} catch (JMException e) {
+				LOGGER.log(Level.WARNING,
+						"Couldn''t register the metrics of {0}: {1}",
+						new Object[] { nodeID, e.getMessage() });
+				metricsName = null;
+			}
+		}
+
+		long interval = Long.getLong(METRICS_INTERVAL_PROPERTY,
+				DEFAULT_METRICS_INTERVAL);
+		if (interval > 0) {
+			metricsTask = timer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					metrics.log(getName());
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
 
-				this.nodeID = INITIAL_ID;
+	/**
+	 * Binds the initial port or, if it is taken, any free port.
+	 */
+	private static Transport openTransport() {
+		try {
+			try {
+				return new UDPTransport(new InetSocketAddress("localhost",
+						INITIAL_PORT));
 			} catch (SocketException e) {
 				// The initial port is already bound -> let the system pick a
 				// port
-				channel.socket().bind(new InetSocketAddress("localhost", 0));
-				address = (InetSocketAddress) channel.getLocalAddress();
+				return new UDPTransport(new InetSocketAddress("localhost", 0));
 			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
 
-			channel.configureBlocking(false);
-
-			udpListen = new UDPHandler(this);
-			thread = new Thread(udpListen);
-			thread.start();
+	private static boolean isInitial(Transport transport) {
+		return transport.getAddress().getPort() == INITIAL_PORT;
+	}
 
-			LOGGER.log(Level.INFO, "{0}: Initialized node {1} on {2}",
-					new Object[] { this.nodeID, getName(), address.toString() });
+	/**
+	 * Opens the default store with the given name, in the directory
+	 * configured via {@value #STORE_DIR_PROPERTY} or a temporary one.
+	 */
+	private static IValueStore openStore(int idBits, String name) {
+		String dir = System.getProperty(STORE_DIR_PROPERTY);
+		if (dir != null) {
+			return new SegmentValueStore(new File(dir, name), idBits);
+		}
 
-			if (address.getPort() != INITIAL_PORT) {
-				// The port of this node is not the "INITIAL_PORT" (so it's not
-				// the first node in the network). So we try to join the network
-				// via the first node.
-				NodeIdentifier viaNode = new NodeIdentifier(ID_BITS,
-						INITIAL_ID.getBytes(), new InetSocketAddress(
-								"127.0.0.1", INITIAL_PORT));
-				joinNetworkVia(viaNode);
-			}
+		try {
+			File tmp = Files.createTempDirectory("kademlia-" + name).toFile();
+			tmp.deleteOnExit();
+			return new SegmentValueStore(tmp, idBits,
+					SegmentValueStore.DEFAULT_SEGMENT_SIZE, true);
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new UncheckedIOException(e);
 		}
 	}
 
@@ -113,55 +540,79 @@ public class Node {
 				new Object[] { viaNode });
 
 		routingTable.insert(viaNode);
-		sendFindNode(viaNode, this.nodeID);
+		findNode(this.nodeID);
 	}
 
 	/**
-	 * Creates and returns new ID (usually used as a RPC ID). This makes sure
-	 * the ID is not yet used (in this node).
+	 * Creates and returns a new RPC ID. IDs are handed out sequentially
+	 * (starting at a random value), so an ID is not reused by this node before
+	 * 2^64 other RPCs have been sent.
 	 * 
-	 * @return an ID
+	 * @return an RPC ID
 	 */
-	private Identifier createRPCID() {
-		Identifier rpcID = Identifier.getRandomIdentifier(ID_BITS);
-		while (rpcs.containsKey(rpcID)) {
-			rpcID = Identifier.getRandomIdentifier(ID_BITS);
-		}
-		return rpcID;
+	private long createRPCID() {
+		return nextRPCID.getAndIncrement();
 	}
 
-	void sendFindNode(NodeIdentifier receiver, Identifier idToFind) {
-		boolean successful = send(receiver, MessageType.FIND_NODE,
-				idToFind.getBytes(), true, null);
+	/**
+	 * Sends the query of a lookup (FIND_NODE or FIND_VALUE) to the given
+	 * node. The answer (or timeout) is passed on to the lookup.
+	 * 
+	 * @param lookup
+	 *            the lookup
+	 * @param receiver
+	 *            the node to query
+	 */
+	void sendLookupQuery(final Lookup lookup, final NodeIdentifier receiver) {
+		byte messageType = lookup.isFindValue() ? MessageType.FIND_VALUE
+				: MessageType.FIND_NODE;
+		final long rpcID = createRPCID();
 
-		if (successful) {
-			LOGGER.log(Level.INFO, "Sending [FIND_NODE {0}] to node {1}",
-					new Object[] { idToFind, receiver });
-		}
-	}
+		lookups.put(rpcID, lookup);
 
-	void sendFindValue(NodeIdentifier receiver, Identifier idToFind) {                
-		// need to save the fileID because we need it for future searches
-		this.searchID = idToFind;
+		ByteBuffer message = newMessage(messageType, receiver, rpcID);
+		MessageCodec.writeID(message, lookup.getTarget());
 
-                LOGGER.log(Level.INFO, "Sending [FIND_VALUE {0}] to node {1}",new Object[] { idToFind, receiver });
-		boolean successful = send(receiver, MessageType.FIND_VALUE,
-				idToFind.getBytes(), true, null);
+		boolean successful = send(receiver, rpcID, message, true, new MessageCallback() {
+			@Override
+			public void onReceive() {
+				// The answer itself is handled in receivedNodes() and
+				// receivedValue()
+			}
+
+			@Override
+			public void onTimeout() {
+				lookups.remove(rpcID);
+				lookup.timedOut(receiver);
+			}
+
+			@Override
+			public void onCancel() {
+				lookups.remove(rpcID);
+				lookup.fail(closedException());
+			}
+		});
 
 		if (successful) {
-			LOGGER.log(Level.INFO, "Sent [FIND_VALUE {0}] to node {1}",
-					new Object[] { idToFind, receiver });
+			LOGGER.log(Level.INFO, "Sending [{0} {1}] to node {2}",
+					new Object[] {
+							lookup.isFindValue() ? "FIND_VALUE" : "FIND_NODE",
+							lookup.getTarget(), receiver });
 		}
 	}
 
 	void sendFoundValue(NodeIdentifier receiver, Identifier idToFind,
-			Identifier rpcID) {
-		boolean successful = send(receiver, MessageType.FOUND_VALUE, rpcID,
-				values.get(idToFind).getBytes(), false, null);
+			long rpcID) {
+		ByteBuffer message = newMessage(MessageType.FOUND_VALUE, receiver,
+				rpcID);
+		NodeIdentifier holder = getValueHolder(idToFind);
+		MessageCodec.writeNode(message, holder);
+
+		boolean successful = send(receiver, rpcID, message, false, null);
 
 		if (successful) {
 			LOGGER.log(Level.INFO, "Sending [FOUND_VALUE {0} -> {1}] to node {2}",
-					new Object[] { idToFind, values.get(idToFind), receiver });
+					new Object[] { idToFind, holder, receiver });
 		}
 	}
 
@@ -180,7 +631,7 @@ public class Node {
 	 *            If true, we search a specific node, else a fileID
 	 */
 	void sendClosestNodesTo(NodeIdentifier receiver, Identifier idToFind,
-			Identifier rpcID, boolean nodeType) {
+			long rpcID, boolean nodeType) {
 		byte msgtype = 0;
 		if (nodeType) {
 			msgtype = MessageType.NODES;
@@ -188,22 +639,19 @@ public class Node {
 			msgtype = MessageType.VALUE_NODES;
 		}
 
-		Set<NodeIdentifier> closeNodes = routingTable
-				.getClosestNodesTo(idToFind);
-		int numNodes = closeNodes.size();
-
-		ByteBuffer nodes = ByteBuffer.allocate(numNodes * (ID_BITS / 8)
-				+ numNodes * SIZE_IP_ADDRESS);
-
-		for (NodeIdentifier idToSend : closeNodes) {
-			// Don't send the node to itself
-			if (!receiver.equals(idToSend)) {
-				nodes.put(idToSend.getTripleAsBytes());
-			}
+		// Ask for one more, the receiver itself might be among them
+		List<NodeIdentifier> closeNodes = new ArrayList<NodeIdentifier>(
+				routingTable.getClosestNodesTo(idToFind, BUCKET_SIZE + 1));
+		// Don't send the node to itself
+		closeNodes.remove(receiver);
+		if (closeNodes.size() > BUCKET_SIZE) {
+			closeNodes = closeNodes.subList(0, BUCKET_SIZE);
 		}
 
-		boolean successful = send(receiver, msgtype, rpcID, nodes.array(),
-				false, null);
+		ByteBuffer message = newMessage(msgtype, receiver, rpcID);
+		MessageCodec.writeNodes(message, closeNodes);
+
+		boolean successful = send(receiver, rpcID, message, false, null);
 
 		if (successful) {
 			LOGGER.log(
@@ -213,51 +661,618 @@ public class Node {
 		}
 	}
 
-	public void sendStore(NodeIdentifier receiver, Identifier fileID) {
-		boolean successful = send(receiver, MessageType.STORE,
-				fileID.getBytes(), true, null);
+	/**
+	 * Tells the given node that this node holds the value with the given key.
+	 * 
+	 * @param receiver
+	 *            the node to store the key on
+	 * @param fileID
+	 *            the key
+	 * @return the future node, completed when it acknowledged the key or
+	 *         exceptionally with a {@link TimeoutException} if it didn't
+	 */
+	public CompletableFuture<NodeIdentifier> sendStore(
+			final NodeIdentifier receiver, final Identifier fileID) {
+		final CompletableFuture<NodeIdentifier> stored = new CompletableFuture<NodeIdentifier>();
+		long rpcID = createRPCID();
+		ByteBuffer message = newMessage(MessageType.STORE, receiver, rpcID);
+		MessageCodec.writeID(message, fileID);
+
+		boolean successful = send(receiver, rpcID, message, true,
+				new MessageCallback() {
+					@Override
+					public void onReceive() {
+						stored.complete(receiver);
+					}
+
+					@Override
+					public void onTimeout() {
+						stored.completeExceptionally(new TimeoutException(
+								"STORE " + fileID + " to " + receiver
+										+ " timed out"));
+					}
+
+					@Override
+					public void onCancel() {
+						stored.completeExceptionally(closedException());
+					}
+				});
 
 		if (successful) {
 			LOGGER.log(Level.INFO, "Sending [STORE {0}] to node {1}",
 					new Object[] { fileID, receiver });
 		}
+		return stored;
 	}
 
-	public void sendAck(NodeIdentifier receiver, Identifier rpcID) {
-		send(receiver, MessageType.ACK, rpcID, null, false, null);
+	/**
+	 * Like {@link #sendStore(NodeIdentifier, Identifier)}, but fails with a
+	 * {@link TimeoutException} if the node didn't acknowledge the key within
+	 * the given time, which may be shorter than the retransmissions take.
+	 * 
+	 * @param receiver
+	 *            the node to store the key on
+	 * @param fileID
+	 *            the key
+	 * @param timeout
+	 *            the timeout
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the future node
+	 */
+	public CompletableFuture<NodeIdentifier> sendStore(NodeIdentifier receiver,
+			Identifier fileID, long timeout, TimeUnit unit) {
+		return Futures.withTimeout(sendStore(receiver, fileID), timeout, unit,
+				timer);
 	}
 
-        public void sendDataReq(FileIdentifier fileID){
-            //TODO
-            if(lastlookup == null){
-                new Exception("lookup first!").printStackTrace();
-                return;}
-            //String id = "128";
-            //NodeIdentifier receiver = new NodeIdentifier(8, id.getBytes(), new InetSocketAddress("localhost", INITIAL_PORT));
-            send(lastlookup, MessageType.DATA_REQ, fileID.getBytes(), true, null);
-        }
+	/**
+	 * Tells the given node that this node holds the values with the given
+	 * keys. The keys are split into as few STORE_BATCH messages as possible.
+	 * 
+	 * @param receiver
+	 *            the node to store the keys on
+	 * @param keys
+	 *            the keys
+	 * @return the future list of keys the receiver confirmed, without those
+	 *         of messages that timed out
+	 */
+	CompletableFuture<List<Identifier>> sendStoreBatch(
+			NodeIdentifier receiver, List<Identifier> keys) {
+		int perMessage = MessageCodec.maxIDs(idBits, 0);
+		List<CompletableFuture<List<Identifier>>> parts = new ArrayList<CompletableFuture<List<Identifier>>>();
+
+		for (int from = 0; from < keys.size(); from += perMessage) {
+			final List<Identifier> batch = keys.subList(from,
+					Math.min(keys.size(), from + perMessage));
+
+			final long rpcID = createRPCID();
+			final CompletableFuture<BitSet> results = new CompletableFuture<BitSet>();
+			storeBatches.put(rpcID, results);
+
+			ByteBuffer message = newMessage(MessageType.STORE_BATCH, receiver,
+					rpcID);
+			MessageCodec.writeIDs(message, batch);
+
+			boolean successful = send(receiver, rpcID, message, true,
+					new MessageCallback() {
+						@Override
+						public void onReceive() {
+							// The results arrive in receivedStoreResults()
+						}
+
+						@Override
+						public void onTimeout() {
+							if (storeBatches.remove(rpcID) != null) {
+								results.complete(new BitSet());
+							}
+						}
+
+						@Override
+						public void onCancel() {
+							if (storeBatches.remove(rpcID) != null) {
+								results.completeExceptionally(closedException());
+							}
+						}
+					});
+
+			if (successful) {
+				LOGGER.log(Level.INFO,
+						"Sending [STORE_BATCH {0} keys] to node {1}",
+						new Object[] { batch.size(), receiver });
+			} else if (storeBatches.remove(rpcID) != null) {
+				// Nothing confirmed, like a timeout. A late answer to a
+				// retry is ignored.
+				results.complete(new BitSet());
+			}
 
-	public void sendData(NodeIdentifier receiver, Identifier fileID) {            
-                
-                String data = this.data.get(fileID);
-                if(data == null){
-                    //TODO We dont have that data. -> DOES NOT WORK PROPERLY!
-                    new Exception().printStackTrace();
-                    return;
-                }
-                int CHUNK_COUNT = data.length()/CHUNK_SIZE;
-
-                for(int i = 0; i<CHUNK_COUNT; i++){
-                    String chunk =  fileID.toString() + "-" +
-                                    CHUNK_COUNT + "-" +
-                                    i + "-" +
-                                    data.substring(i*CHUNK_SIZE, (i+1)*CHUNK_SIZE);
-                    send(receiver, MessageType.DATA, chunk.getBytes(), true, null);
-                }		
+			parts.add(results
+					.thenApply(new Function<BitSet, List<Identifier>>() {
+						@Override
+						public List<Identifier> apply(BitSet stored) {
+							List<Identifier> confirmed = new ArrayList<Identifier>();
+							for (int i = stored.nextSetBit(0); i >= 0
+									&& i < batch.size(); i = stored
+									.nextSetBit(i + 1)) {
+								confirmed.add(batch.get(i));
+							}
+							return confirmed;
+						}
+					}));
+		}
+
+		return joinLists(parts);
+	}
+
+	/**
+	 * Asks the given node for the holders of the values with the given keys.
+	 * The keys are split into as few FIND_VALUE_BATCH messages as possible.
+	 * 
+	 * @param receiver
+	 *            the node to ask
+	 * @param keys
+	 *            the keys
+	 * @return the future holders the receiver knows, by key (without those
+	 *         of messages that timed out)
+	 */
+	CompletableFuture<Map<Identifier, NodeIdentifier>> sendFindValueBatch(
+			NodeIdentifier receiver, List<Identifier> keys) {
+		int perMessage = MessageCodec.maxFindValueBatch(idBits);
+		final Map<Identifier, NodeIdentifier> found = new HashMap<Identifier, NodeIdentifier>();
+		List<CompletableFuture<Void>> parts = new ArrayList<CompletableFuture<Void>>();
+
+		for (int from = 0; from < keys.size(); from += perMessage) {
+			final List<Identifier> batch = keys.subList(from,
+					Math.min(keys.size(), from + perMessage));
+
+			final long rpcID = createRPCID();
+			final CompletableFuture<List<NodeIdentifier>> results = new CompletableFuture<List<NodeIdentifier>>();
+			findValueBatches.put(rpcID, results);
+
+			ByteBuffer message = newMessage(MessageType.FIND_VALUE_BATCH, receiver,
+					rpcID);
+			MessageCodec.writeIDs(message, batch);
+
+			boolean successful = send(receiver, rpcID, message, true,
+					new MessageCallback() {
+						@Override
+						public void onReceive() {
+							// The results arrive in receivedFoundValues()
+						}
+
+						@Override
+						public void onTimeout() {
+							if (findValueBatches.remove(rpcID) != null) {
+								results.complete(new ArrayList<NodeIdentifier>());
+							}
+						}
+
+						@Override
+						public void onCancel() {
+							if (findValueBatches.remove(rpcID) != null) {
+								results.completeExceptionally(closedException());
+							}
+						}
+					});
+
+			if (successful) {
+				LOGGER.log(Level.INFO,
+						"Sending [FIND_VALUE_BATCH {0} keys] to node {1}",
+						new Object[] { batch.size(), receiver });
+			} else if (findValueBatches.remove(rpcID) != null) {
+				// No holders, like a timeout. A late answer to a retry is
+				// ignored.
+				results.complete(new ArrayList<NodeIdentifier>());
+			}
+
+			parts.add(results.thenAccept(new Consumer<List<NodeIdentifier>>() {
+				@Override
+				public void accept(List<NodeIdentifier> holders) {
+					synchronized (found) {
+						for (int i = 0; i < holders.size() && i < batch.size(); i++) {
+							if (holders.get(i) != null) {
+								found.put(batch.get(i), holders.get(i));
+							}
+						}
+					}
+				}
+			}));
+		}
+
+		return CompletableFuture.allOf(
+				parts.toArray(new CompletableFuture<?>[parts.size()]))
+				.thenApply(
+						new Function<Void, Map<Identifier, NodeIdentifier>>() {
+							@Override
+							public Map<Identifier, NodeIdentifier> apply(Void v) {
+								return found;
+							}
+						});
+	}
+
+	void sendStoreResults(NodeIdentifier receiver, long rpcID, BitSet stored) {
+		ByteBuffer message = newMessage(MessageType.STORE_RESULTS, receiver,
+				rpcID);
+		MessageCodec.writeBytes(message, stored.toByteArray());
+
+		send(receiver, rpcID, message, false, null);
+	}
+
+	void sendFoundValues(NodeIdentifier receiver, long rpcID,
+			List<NodeIdentifier> holders) {
+		ByteBuffer message = newMessage(MessageType.FOUND_VALUES, receiver,
+				rpcID);
+		MessageCodec.writeHolders(message, holders);
+
+		send(receiver, rpcID, message, false, null);
+	}
+
+	/**
+	 * Called when a node answered a STORE_BATCH.
+	 * 
+	 * @param fromID
+	 *            the node that answered
+	 * @param rpcID
+	 *            the RPC ID of the STORE_BATCH
+	 * @param stored
+	 *            bit i is set if the i-th key has been stored
+	 */
+	void receivedStoreResults(NodeIdentifier fromID, long rpcID, BitSet stored) {
+		// Only the node the batch went to may answer it
+		if (!receivedRPC(fromID, rpcID)) {
+			return;
+		}
+		CompletableFuture<BitSet> results = storeBatches.remove(rpcID);
+		if (results != null) {
+			results.complete(stored);
+		}
+	}
+
+	/**
+	 * Called when a node answered a FIND_VALUE_BATCH.
+	 * 
+	 * @param fromID
+	 *            the node that answered
+	 * @param rpcID
+	 *            the RPC ID of the FIND_VALUE_BATCH
+	 * @param holders
+	 *            the holders of the keys in the same order, null for the
+	 *            unknown ones
+	 */
+	void receivedFoundValues(NodeIdentifier fromID, long rpcID,
+			List<NodeIdentifier> holders) {
+		if (!receivedRPC(fromID, rpcID)) {
+			return;
+		}
+		CompletableFuture<List<NodeIdentifier>> results = findValueBatches
+				.remove(rpcID);
+		if (results != null) {
+			results.complete(holders);
+		}
+	}
+
+	private static <T> CompletableFuture<List<T>> joinLists(
+			final List<CompletableFuture<List<T>>> parts) {
+		return CompletableFuture.allOf(
+				parts.toArray(new CompletableFuture<?>[parts.size()]))
+				.thenApply(new Function<Void, List<T>>() {
+					@Override
+					public List<T> apply(Void v) {
+						List<T> joined = new ArrayList<T>();
+						for (CompletableFuture<List<T>> part : parts) {
+							joined.addAll(part.join());
+						}
+						return joined;
+					}
+				});
+	}
+
+	public void sendAck(NodeIdentifier receiver, long rpcID) {
+		send(receiver, rpcID, newMessage(MessageType.ACK, receiver, rpcID),
+				false, null);
+	}
+
+	/**
+	 * Looks up the node holding the given file and requests the file from
+	 * it.
+	 * 
+	 * @param fileID
+	 *            the file to request
+	 * @return the future content of the file (a read-only view)
+	 */
+	public CompletableFuture<ByteBuffer> sendDataReq(final FileIdentifier fileID) {
+		return findValue(fileID).thenCompose(
+				new Function<LookupResult, CompletionStage<ByteBuffer>>() {
+					@Override
+					public CompletionStage<ByteBuffer> apply(LookupResult result) {
+						if (!result.isValueFound()) {
+							LOGGER.log(Level.WARNING,
+									"Couldn't find a node holding {0}",
+									new Object[] { fileID });
+							return Futures.failed(new NoSuchElementException(
+									"Couldn't find a node holding " + fileID));
+						} else if (result.getValueHolder().equals(nodeID)) {
+							LOGGER.log(Level.INFO, "{0} is stored on this node",
+									new Object[] { fileID });
+							return CompletableFuture.completedFuture(data
+									.get(fileID));
+						} else {
+							return sendDataReq(result.getValueHolder(), fileID);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Like {@link #sendDataReq(FileIdentifier)}, but fails with a
+	 * {@link TimeoutException} if the file hasn't arrived within the given
+	 * time.
+	 * 
+	 * @param fileID
+	 *            the file to request
+	 * @param timeout
+	 *            the timeout
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the future content of the file (a read-only view)
+	 */
+	public CompletableFuture<ByteBuffer> sendDataReq(FileIdentifier fileID,
+			long timeout, TimeUnit unit) {
+		return Futures.withTimeout(sendDataReq(fileID), timeout, unit, timer);
+	}
+
+	/**
+	 * Requests the given file from the given node. If the file has already
+	 * been requested, no new request is sent.
+	 * 
+	 * @param receiver
+	 *            the node holding the file
+	 * @param fileID
+	 *            the file to request
+	 * @return the future content of the file (a read-only view), completed
+	 *         exceptionally if the node doesn't answer the request
+	 */
+	public CompletableFuture<ByteBuffer> sendDataReq(NodeIdentifier receiver,
+			final Identifier fileID) {
+		long rpcID = createRPCID();
+		final DataRequest request = new DataRequest(receiver, rpcID);
+		DataRequest pending = dataRequests.putIfAbsent(fileID, request);
+		if (pending != null) {
+			return pending.getFuture();
+		}
+
+		ByteBuffer message = newMessage(MessageType.DATA_REQ, receiver, rpcID);
+		MessageCodec.writeID(message, fileID);
+
+		boolean successful = send(receiver, rpcID, message, true,
+				new MessageCallback() {
+					@Override
+					public void onReceive() {
+						// The data itself arrives in receivedChunk()
+					}
+
+					@Override
+					public void onTimeout() {
+						if (dataRequests.remove(fileID, request)) {
+							request.getFuture().completeExceptionally(new TimeoutException(
+									"DATA_REQ for " + fileID + " timed out"));
+						}
+					}
+
+					@Override
+					public void onCancel() {
+						if (dataRequests.remove(fileID, request)) {
+							request.getFuture().completeExceptionally(
+									closedException());
+						}
+					}
+				});
+
+		if (successful) {
+			LOGGER.log(Level.INFO, "Sending [DATA_REQ {0}] to node {1}",
+					new Object[] { fileID, receiver });
+		}
+		return request.getFuture();
+	}
+
+	public boolean hasData(Identifier fileID) {
+		return data.contains(fileID);
+	}
+
+	/**
+	 * Starts a transfer of the given file to the given node (see
+	 * {@link OutgoingTransfer}).
+	 * 
+	 * @param receiver
+	 *            the node to send the file to
+	 * @param fileID
+	 *            the file to send
+	 * @return the future of the transfer, completed when the receiver
+	 *         acknowledged the whole file
+	 */
+	public CompletableFuture<Void> sendData(NodeIdentifier receiver,
+			Identifier fileID) {
+		return sendData(receiver, fileID, createRPCID());
+	}
+
+	/**
+	 * Starts a transfer of the given file under the given transfer ID, the
+	 * RPC ID of the DATA_REQ it answers.
+	 */
+	CompletableFuture<Void> sendData(NodeIdentifier receiver,
+			Identifier fileID, long transferID) {
+		ByteBuffer value = data.get(fileID);
+		if (value == null) {
+			LOGGER.log(Level.WARNING, "Can't send {0}, it isn't stored here",
+					new Object[] { fileID });
+			return Futures.failed(new NoSuchElementException(fileID
+					+ " isn't stored here"));
+		}
+
+		final OutgoingTransfer transfer = new OutgoingTransfer(this, receiver,
+				transferID, fileID, value,
+				MessageCodec.chunkSize(idBits), transferWindow);
+		outgoingTransfers.put(transfer.getTransferID(), transfer);
+
+		ScheduledFuture<?> timeout = timer.scheduleWithFixedDelay(
+				new Runnable() {
+					@Override
+					public void run() {
+						transfer.checkTimeout();
+					}
+				}, OutgoingTransfer.TIMEOUT / 2, OutgoingTransfer.TIMEOUT / 2,
+				TimeUnit.MILLISECONDS);
+
+		LOGGER.log(Level.INFO, "Sending {0} ({1} chunks) to node {2}",
+				new Object[] { fileID, transfer.getNumChunks(), receiver });
+
+		transfer.start(timeout);
+		return transfer.getFuture();
+	}
+
+	/**
+	 * Sends one chunk of a data transfer (unreliable, the transfer takes care
+	 * of lost chunks).
+	 */
+	void sendChunk(NodeIdentifier receiver, long transferID, Identifier fileID,
+			int length, int index, ByteBuffer value, int offset,
+			int chunkLength) {
+		ByteBuffer message = newMessage(MessageType.DATA, receiver, transferID);
+		MessageCodec.writeID(message, fileID);
+		message.putInt(length);
+		message.putInt(index);
+		MessageCodec.writeBytes(message, value, offset, chunkLength);
+
+		send(receiver, transferID, message, false, null);
+	}
+
+	/**
+	 * Acknowledges the chunks of a data transfer received so far (see
+	 * {@link IncomingTransfer}).
+	 */
+	void sendDataAck(NodeIdentifier receiver, long transferID,
+			int received, byte[] bitmap) {
+		ByteBuffer message = newMessage(MessageType.DATA_ACK, receiver,
+				transferID);
+		message.putInt(received);
+		MessageCodec.writeBytes(message, bitmap);
+
+		send(receiver, transferID, message, false, null);
+	}
+
+	/**
+	 * Called (on a message worker) when a chunk of a data transfer arrives.
+	 * 
+	 * @param fromID
+	 *            the node sending the file
+	 * @param transferID
+	 *            the ID of the transfer
+	 * @param fileID
+	 *            the file
+	 * @param length
+	 *            the size of the file (in bytes)
+	 * @param index
+	 *            the index of the chunk
+	 * @param chunk
+	 *            the content of the chunk
+	 */
+	void receivedChunk(NodeIdentifier fromID, long transferID,
+			FileIdentifier fileID, int length, int index, ByteBuffer chunk) {
+		reassembler.receivedChunk(fromID, transferID, fileID, length, index,
+				chunk);
+	}
+
+	/**
+	 * Called when all chunks of an incoming transfer arrived. Stores the file
+	 * on this node, and completes the request of the file only if the
+	 * transfer is the answer to it (like {@link #failedTransfer}).
+	 * 
+	 * @param transfer
+	 *            the transfer
+	 */
+	void completedTransfer(IncomingTransfer transfer) {
+		FileIdentifier fileID = transfer.getFileID();
+
+		LOGGER.log(Level.INFO, "Received {0} ({1} bytes) from node {2}",
+				new Object[] { fileID, transfer.getLength(),
+						transfer.getSender() });
+
+		// The data first, the key is announced as soon as it is stored
+		storeData(fileID, ByteBuffer.wrap(transfer.getValue()));
+		store(fileID);
+
+		DataRequest request = dataRequests.get(fileID);
+		if (request != null
+				&& request.isAnsweredBy(transfer.getSender(),
+						transfer.getTransferID())
+				&& dataRequests.remove(fileID, request)) {
+			// Hand out the stored copy, the transfer buffer can go
+			request.getFuture().complete(data.get(fileID));
+		}
+	}
+
+	/**
+	 * Called when an incoming transfer has been refused or evicted. Fails
+	 * the request of the file only if the transfer is the answer to it, a
+	 * transfer nobody asked for mustn't abort a download.
+	 * 
+	 * @param fromID
+	 *            the node sending the file
+	 * @param transferID
+	 *            the ID of the transfer
+	 * @param fileID
+	 *            the file of the transfer
+	 * @param cause
+	 *            the reason
+	 */
+	void failedTransfer(NodeIdentifier fromID, long transferID,
+			FileIdentifier fileID, Throwable cause) {
+		DataRequest request = dataRequests.get(fileID);
+		if (request != null && request.isAnsweredBy(fromID, transferID)
+				&& dataRequests.remove(fileID, request)) {
+			request.getFuture().completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Called when the receiver of a data transfer acknowledged chunks.
+	 * 
+	 * @param fromID
+	 *            the receiver
+	 * @param transferID
+	 *            the ID of the transfer
+	 * @param received
+	 *            the number of chunks received in order
+	 * @param bitmap
+	 *            the chunks received beyond that
+	 */
+	void receivedDataAck(NodeIdentifier fromID, long transferID, int received,
+			ByteBuffer bitmap) {
+		OutgoingTransfer transfer = outgoingTransfers.get(transferID);
+
+		if (transfer != null && transfer.getReceiver().equals(fromID)) {
+			transfer.receivedAck(received, bitmap);
+		}
+	}
+
+	void finishedTransfer(OutgoingTransfer transfer) {
+		outgoingTransfers.remove(transfer.getTransferID());
+	}
+
+	/**
+	 * Sets the number of chunks a data transfer keeps in flight.
+	 * 
+	 * @param window
+	 *            the number of chunks in flight
+	 */
+	public void setTransferWindow(int window) {
+		this.transferWindow = window;
 	}
 
 	public void sendPing(NodeIdentifier receiver, MessageCallback cb) {
-		boolean successful = send(receiver, MessageType.PING, null, true, cb);
+		long rpcID = createRPCID();
+		boolean successful = send(receiver, rpcID,
+				newMessage(MessageType.PING, receiver, rpcID), true, cb);
 
 		if (successful) {
 			LOGGER.log(Level.INFO, "Sending [PING] to node {0}",
@@ -265,9 +1280,58 @@ public class Node {
 		}
 	}
 
-	void sendPong(NodeIdentifier receiver, Identifier rpcID) {
-		boolean successful = send(receiver, MessageType.PONG, rpcID, null,
-				false, null);
+	/**
+	 * Pings the given node.
+	 * 
+	 * @param receiver
+	 *            the node to ping
+	 * @return the future node, completed when it answered or exceptionally
+	 *         with a {@link TimeoutException} if it didn't
+	 */
+	public CompletableFuture<NodeIdentifier> ping(final NodeIdentifier receiver) {
+		final CompletableFuture<NodeIdentifier> pong = new CompletableFuture<NodeIdentifier>();
+
+		sendPing(receiver, new MessageCallback() {
+			@Override
+			public void onReceive() {
+				pong.complete(receiver);
+			}
+
+			@Override
+			public void onTimeout() {
+				pong.completeExceptionally(new TimeoutException("PING to "
+						+ receiver + " timed out"));
+			}
+
+			@Override
+			public void onCancel() {
+				pong.completeExceptionally(closedException());
+			}
+		});
+		return pong;
+	}
+
+	/**
+	 * Like {@link #ping(NodeIdentifier)}, but fails with a
+	 * {@link TimeoutException} if the node didn't answer within the given
+	 * time, which may be shorter than the retransmissions take.
+	 * 
+	 * @param receiver
+	 *            the node to ping
+	 * @param timeout
+	 *            the timeout
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the future node
+	 */
+	public CompletableFuture<NodeIdentifier> ping(NodeIdentifier receiver,
+			long timeout, TimeUnit unit) {
+		return Futures.withTimeout(ping(receiver), timeout, unit, timer);
+	}
+
+	void sendPong(NodeIdentifier receiver, long rpcID) {
+		boolean successful = send(receiver, rpcID,
+				newMessage(MessageType.PONG, receiver, rpcID), false, null);
 
 		if (successful) {
 			LOGGER.log(Level.INFO, "Sending [PONG] to {0} (rpcID={1})",
@@ -276,44 +1340,43 @@ public class Node {
 	}
 
 	/**
-	 * Send a message to a given ID (with a given RPC ID). You usually want to
-	 * use this method when you know the RPC ID beforehand (e.g. if this is an
-	 * ack or answer to a prior message).
+	 * Takes a buffer from the transport and writes the header of a message to
+	 * it.
+	 * The caller appends the fields of the message (see {@link MessageCodec})
+	 * and passes the buffer on to
+	 * {@link #send(NodeIdentifier, long, ByteBuffer, boolean, MessageCallback)}
+	 * .
 	 * 
-	 * @param to
-	 *            the ID to send to
 	 * @param messageType
 	 *            the message type
-	 * @param data
-	 *            the data to send
-	 * @param reliable
-	 *            flag, whether this has to be acked or not
-	 * @param cb
-	 *            A callback that is executed when this message gets acked (or
-	 *            answered). This obviously is only of interest when the
-	 *            reliable flag is true
-	 * @return true if the message was sent successfully
+	 * @param receiver
+	 *            the node the message is for
+	 * @param rpcID
+	 *            the RPC ID of this message (a new one from
+	 *            {@link #createRPCID()} or the one of the message this
+	 *            answers)
+	 * @return the buffer to write the message body to
 	 */
-	private boolean send(NodeIdentifier to, byte messageType, byte[] data,
-			boolean reliable, MessageCallback cb) {
-		return send(to, messageType, createRPCID(), data, reliable, cb);
+	private ByteBuffer newMessage(byte messageType, Identifier receiver,
+			long rpcID) {
+		ByteBuffer buffer = transport.acquire();
+		MessageCodec.writeHeader(buffer, messageType, this.nodeID, receiver,
+				rpcID);
+		return buffer;
 	}
 
 	/**
-	 * Send a message to a given ID (with a given RPC ID). You usually want to
-	 * use this method when you know the RPC ID beforehand (e.g. if this is an
-	 * ack or answer to a prior message).
+	 * Sends a message created by
+	 * {@link #newMessage(byte, Identifier, long)} to a given node. The buffer
+	 * belongs to the transport from now on. Nothing is sent once the node is
+	 * closed.
 	 * 
 	 * @param to
 	 *            the ID to send to
-	 * @param messageType
-	 *            the message type
 	 * @param rpcID
-	 *            the RPC ID of this message (if you don't know this use
-	 *            {@link #send(NodeIdentifier, byte, byte[], boolean, MessageCallback)}
-	 *            and a new random ID will be created)
-	 * @param data
-	 *            the data to send
+	 *            the RPC ID of this message
+	 * @param buffer
+	 *            the message
 	 * @param reliable
 	 *            flag, whether this has to be acked or not
 	 * @param cb
@@ -322,45 +1385,40 @@ public class Node {
 	 *            reliable flag is true
 	 * @return true if the message was sent successfully
 	 */
-	private boolean send(NodeIdentifier to, byte messageType, Identifier rpcID,
-			byte[] data, boolean reliable, MessageCallback cb) {
+	private boolean send(NodeIdentifier to, long rpcID, ByteBuffer buffer,
+			boolean reliable, MessageCallback cb) {
                 
-		boolean successful = true;
-		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-
-
-		buffer.put(messageType);
-		buffer.put(this.nodeID.getBytes());
-		buffer.put(rpcID.getBytes());
-
-		if (data != null) {
-			buffer.put(data);
+		if (closed) {
+			transport.release(buffer);
+			// No ack will time out, give up on the answer right away
+			if (reliable && cb != null) {
+				cb.onCancel();
+			}
+			return false;
 		}
 
-                LOGGER.log(Level.INFO, "Sending Data to:{0} with MT:"+messageType+" data:"+buffer.toString(), to.getAddress().toString());
+		boolean successful = true;
+
+		LOGGER.log(Level.FINEST, "Sending message type {0} ({1} bytes) to {2}",
+				new Object[] { buffer.get(0), buffer.position(), to.getAddress() });
 
 		buffer.flip();
+		metrics.sent(buffer.get(0), buffer.remaining());
+
+		// Even if sending fails this should be reliable. The ack has to be
+		// registered before sending, the answer might arrive before send()
+		// returns.
+		Ack newAck = null;
+		if (reliable) {
+			newAck = new Ack(rpcID, to, transport, buffer, cb, metrics);
+			rpcs.add(newAck);
+		}
 
 		try {
-
-			channel.send(buffer, to.getAddress());
-
-		} catch (IOException e) {
-
-			LOGGER.log(Level.SEVERE, "Failed to write to channel. To:"+to.getAddress().toString()+" buffer: "+buffer.toString(), e);
-			successful = false;
-
+			successful = transport.send(buffer, to.getAddress());
 		} finally {
-			// Even if an exception occurred this should be reliable
-			if (reliable) {
-
-				Ack newAck = new Ack(rpcID, to, channel, buffer, cb);
-				if (rpcs.containsKey(rpcID)) {
-					rpcs.get(rpcID).add(newAck);
-				} else {
-					rpcs.put(rpcID, new ArrayList<Ack>());
-					rpcs.get(rpcID).add(newAck);
-				}
+			if (newAck != null) {
+				scheduler.schedule(newAck);
 			}
 		}
 		return successful;
@@ -374,103 +1432,657 @@ public class Node {
 		return !rpcs.isEmpty();
 	}
 
-	public DatagramChannel getChannel() {
-		return channel;
+	/**
+	 * Returns the number of RPCs sent to the given node that still wait for an
+	 * ack (or answer).
+	 * 
+	 * @param peer
+	 *            the node
+	 * @return the number of RPCs in flight
+	 */
+	public int getRPCsInFlight(NodeIdentifier peer) {
+		return rpcs.inFlight(peer.getAddress());
+	}
+
+	/**
+	 * Returns the transport this node sends and receives its messages on.
+	 * 
+	 * @return the transport
+	 */
+	public Transport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Returns the dispatcher of this node's host, with the queue and drop
+	 * counts of its workers.
+	 * 
+	 * @return the dispatcher
+	 */
+	public MessageDispatcher getDispatcher() {
+		return host.getDispatcher();
+	}
+
+	/**
+	 * Returns the metrics of this node: its messages, RPCs, routing table
+	 * and stores.
+	 * 
+	 * @return the metrics
+	 */
+	public NodeMetrics getMetrics() {
+		return metrics;
 	}
 
 	public void updateBuckets(NodeIdentifier id) {
 		routingTable.insert(id);
 	}
 
+	/**
+	 * Removes the given node from the routing table, a contact of the
+	 * bucket's replacement cache takes its place.
+	 * 
+	 * @param id
+	 *            the node
+	 */
+	public void removeFromBuckets(NodeIdentifier id) {
+		routingTable.remove(id);
+	}
+
 	public Identifier getID() {
 		return nodeID;
 	}
 
+	/**
+	 * Returns the ID and address of this node (as other nodes would contact
+	 * it).
+	 * 
+	 * @return the contact of this node
+	 */
+	public NodeIdentifier getContact() {
+		return new NodeIdentifier(idBits, nodeID.getBytes(), address);
+	}
+
+	/**
+	 * Returns the size of the ID space of the network this node belongs to.
+	 * 
+	 * @return the size of the ID space (in bits)
+	 */
+	public int getIdBits() {
+		return idBits;
+	}
+
 	public Set<NodeIdentifier> getNeighbors() {
 		return routingTable.getEntries();
 	}
 
-	public void storePair(Identifier key, Identifier nodeid) {
-		values.put(key, nodeid);
+	public void storePair(Identifier key, NodeIdentifier nodeid) {
+		values.put(key, ByteBuffer.wrap(nodeid.getTripleAsBytes()));
+	}
+
+	/**
+	 * Announces that this node holds the value with the given key: looks up
+	 * the k closest nodes to the key and stores the key on them.
+	 * 
+	 * @param key
+	 *            the key of the value
+	 * @return the future list of nodes that confirmed storing the key
+	 */
+	public CompletableFuture<List<NodeIdentifier>> store(final Identifier key) {
+		storePair(key, getContact());
+
+		return findNode(key).thenCompose(
+				new Function<LookupResult, CompletionStage<List<NodeIdentifier>>>() {
+					@Override
+					public CompletionStage<List<NodeIdentifier>> apply(
+							LookupResult result) {
+						List<CompletableFuture<List<NodeIdentifier>>> acks = new ArrayList<CompletableFuture<List<NodeIdentifier>>>();
+						for (NodeIdentifier node : result.getClosestNodes()) {
+							acks.add(sendStore(node, key).handle(
+									new BiFunction<NodeIdentifier, Throwable, List<NodeIdentifier>>() {
+										@Override
+										public List<NodeIdentifier> apply(
+												NodeIdentifier stored, Throwable t) {
+											// A node that didn't answer just
+											// isn't in the list
+											return t != null ? Collections
+													.<NodeIdentifier> emptyList()
+													: Collections
+															.singletonList(stored);
+										}
+									}));
+						}
+						return joinLists(acks);
+					}
+				});
 	}
 
-	public void store(Identifier key) {
-		
-		storePair(key,this.nodeID);
-		
-		Set<NodeIdentifier> nodes = routingTable.getClosestNodesTo(key);
+	/**
+	 * Like {@link #store(Identifier)}, but fails with a
+	 * {@link TimeoutException} if the key hasn't been stored within the given
+	 * time.
+	 * 
+	 * @param key
+	 *            the key of the value
+	 * @param timeout
+	 *            the timeout
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the future list of nodes that confirmed storing the key
+	 */
+	public CompletableFuture<List<NodeIdentifier>> store(Identifier key,
+			long timeout, TimeUnit unit) {
+		return Futures.withTimeout(store(key), timeout, unit, timer);
+	}
 
-		
-		for (NodeIdentifier node : nodes) {
-			sendStore(node, key);
+	/**
+	 * Announces that this node holds the values with the given keys, like
+	 * {@link #store(Identifier)} for every key. The lookups run
+	 * {@value BulkLookup#MAX_LOOKUPS} at a time, the keys are sent to every
+	 * destination node in as few STORE_BATCH messages as possible.
+	 * 
+	 * @param keys
+	 *            the keys of the values
+	 * @return the future nodes that confirmed storing a key, by key
+	 */
+	public CompletableFuture<Map<Identifier, List<NodeIdentifier>>> storeAll(
+			final Collection<? extends Identifier> keys) {
+		NodeIdentifier contact = getContact();
+		for (Identifier key : keys) {
+			storePair(key, contact);
 		}
+
+		return new BulkLookup(this, keys, false)
+				.start()
+				.thenCompose(
+						new Function<Map<Identifier, LookupResult>, CompletionStage<Map<Identifier, List<NodeIdentifier>>>>() {
+							@Override
+							public CompletionStage<Map<Identifier, List<NodeIdentifier>>> apply(
+									Map<Identifier, LookupResult> results) {
+								return storeBatches(keys, results);
+							}
+						});
 	}
 
-	public void findValue(Identifier key) {
-		Set<NodeIdentifier> nodes = routingTable.getClosestNodesTo(key);
+	/**
+	 * Like {@link #storeAll(Collection)}, but fails with a
+	 * {@link TimeoutException} if the keys haven't been stored within the
+	 * given time.
+	 * 
+	 * @param keys
+	 *            the keys of the values
+	 * @param timeout
+	 *            the timeout
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the future nodes that confirmed storing a key, by key
+	 */
+	public CompletableFuture<Map<Identifier, List<NodeIdentifier>>> storeAll(
+			Collection<? extends Identifier> keys, long timeout, TimeUnit unit) {
+		return Futures.withTimeout(storeAll(keys), timeout, unit, timer);
+	}
 
-		
-		for (NodeIdentifier node : nodes) {                        
-			sendFindValue(node, key);                        
+	/**
+	 * Sends the keys to the closest nodes found for them, grouped by node.
+	 */
+	private CompletableFuture<Map<Identifier, List<NodeIdentifier>>> storeBatches(
+			Collection<? extends Identifier> keys,
+			Map<Identifier, LookupResult> results) {
+		final Map<Identifier, List<NodeIdentifier>> stored = new HashMap<Identifier, List<NodeIdentifier>>();
+		for (Identifier key : keys) {
+			stored.put(key, new ArrayList<NodeIdentifier>());
 		}
+
+		Map<NodeIdentifier, List<Identifier>> batches = new HashMap<NodeIdentifier, List<Identifier>>();
+		for (LookupResult result : results.values()) {
+			for (NodeIdentifier node : result.getClosestNodes()) {
+				List<Identifier> batch = batches.get(node);
+				if (batch == null) {
+					batch = new ArrayList<Identifier>();
+					batches.put(node, batch);
+				}
+				batch.add(result.getTarget());
+			}
+		}
+
+		List<CompletableFuture<Void>> sent = new ArrayList<CompletableFuture<Void>>();
+		for (Map.Entry<NodeIdentifier, List<Identifier>> entry : batches
+				.entrySet()) {
+			final NodeIdentifier node = entry.getKey();
+			sent.add(sendStoreBatch(node, entry.getValue()).thenAccept(
+					new Consumer<List<Identifier>>() {
+						@Override
+						public void accept(List<Identifier> confirmed) {
+							synchronized (stored) {
+								for (Identifier key : confirmed) {
+									stored.get(key).add(node);
+								}
+							}
+						}
+					}));
+		}
+
+		return CompletableFuture.allOf(
+				sent.toArray(new CompletableFuture<?>[sent.size()])).thenApply(
+				new Function<Void, Map<Identifier, List<NodeIdentifier>>>() {
+					@Override
+					public Map<Identifier, List<NodeIdentifier>> apply(Void v) {
+						return stored;
+					}
+				});
+	}
+
+	/**
+	 * Looks up the holders of the values with the given keys. The keys are
+	 * first sent to the closest nodes of the routing table for each key, in
+	 * as few FIND_VALUE_BATCH messages as possible; the keys none of them
+	 * knows are looked up one by one ({@value BulkLookup#MAX_LOOKUPS} at a time).
+	 * 
+	 * @param keys
+	 *            the keys of the values
+	 * @return the future holders by key, without the keys no holder has been
+	 *         found for
+	 */
+	public CompletableFuture<Map<Identifier, NodeIdentifier>> findValues(
+			final Collection<? extends Identifier> keys) {
+		final Map<Identifier, NodeIdentifier> holders = new HashMap<Identifier, NodeIdentifier>();
+		Map<NodeIdentifier, List<Identifier>> batches = new HashMap<NodeIdentifier, List<Identifier>>();
+
+		for (Identifier key : keys) {
+			NodeIdentifier holder = getValueHolder(key);
+			if (holder != null) {
+				holders.put(key, holder);
+				continue;
+			}
+
+			for (NodeIdentifier node : routingTable.getClosestNodesTo(key)) {
+				List<Identifier> batch = batches.get(node);
+				if (batch == null) {
+					batch = new ArrayList<Identifier>();
+					batches.put(node, batch);
+				}
+				batch.add(key);
+			}
+		}
+
+		List<CompletableFuture<Void>> asked = new ArrayList<CompletableFuture<Void>>();
+		for (Map.Entry<NodeIdentifier, List<Identifier>> entry : batches
+				.entrySet()) {
+			asked.add(sendFindValueBatch(entry.getKey(), entry.getValue())
+					.thenAccept(new Consumer<Map<Identifier, NodeIdentifier>>() {
+						@Override
+						public void accept(Map<Identifier, NodeIdentifier> found) {
+							synchronized (holders) {
+								holders.putAll(found);
+							}
+						}
+					}));
+		}
+
+		return CompletableFuture
+				.allOf(asked.toArray(new CompletableFuture<?>[asked.size()]))
+				.thenCompose(
+						new Function<Void, CompletionStage<Map<Identifier, LookupResult>>>() {
+							@Override
+							public CompletionStage<Map<Identifier, LookupResult>> apply(
+									Void v) {
+								List<Identifier> missing = new ArrayList<Identifier>();
+								synchronized (holders) {
+									for (Identifier key : keys) {
+										if (!holders.containsKey(key)) {
+											missing.add(key);
+										}
+									}
+								}
+								return new BulkLookup(Node.this, missing, true)
+										.start();
+							}
+						})
+				.thenApply(
+						new Function<Map<Identifier, LookupResult>, Map<Identifier, NodeIdentifier>>() {
+							@Override
+							public Map<Identifier, NodeIdentifier> apply(
+									Map<Identifier, LookupResult> results) {
+								synchronized (holders) {
+									for (LookupResult result : results.values()) {
+										if (result.isValueFound()) {
+											holders.put(result.getTarget(),
+													result.getValueHolder());
+										}
+									}
+									return holders;
+								}
+							}
+						});
+	}
+
+	/**
+	 * Like {@link #findValues(Collection)}, but fails with a
+	 * {@link TimeoutException} if the holders haven't been found within the
+	 * given time.
+	 * 
+	 * @param keys
+	 *            the keys of the values
+	 * @param timeout
+	 *            the timeout
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the future holders by key
+	 */
+	public CompletableFuture<Map<Identifier, NodeIdentifier>> findValues(
+			Collection<? extends Identifier> keys, long timeout, TimeUnit unit) {
+		return Futures.withTimeout(findValues(keys), timeout, unit, timer);
+	}
+
+	/**
+	 * Stores the keys of all values of this node on the k closest nodes
+	 * again and forgets holders that haven't been stored again in time. Runs
+	 * periodically on its own, see {@value #REPUBLISH_INTERVAL_PROPERTY}.
+	 * 
+	 * @return the future number of keys that have been stored
+	 */
+	public CompletableFuture<Integer> republish() {
+		return republisher.republish();
+	}
+
+	/**
+	 * Starts a lookup for the nodes closest to the given ID.
+	 * 
+	 * @param id
+	 *            the ID to look up
+	 * @return the future result of the lookup
+	 */
+	public CompletableFuture<LookupResult> findNode(Identifier id) {
+		return startLookup(id, false);
+	}
+
+	/**
+	 * Like {@link #findNode(Identifier)}, but fails with a
+	 * {@link TimeoutException} if the lookup takes longer than the given
+	 * time.
+	 * 
+	 * @param id
+	 *            the ID to look up
+	 * @param timeout
+	 *            the timeout
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the future result of the lookup
+	 */
+	public CompletableFuture<LookupResult> findNode(Identifier id,
+			long timeout, TimeUnit unit) {
+		return Futures.withTimeout(findNode(id), timeout, unit, timer);
+	}
+
+	/**
+	 * Starts a lookup for the node holding the value with the given key.
+	 * 
+	 * @param key
+	 *            the key of the value
+	 * @return the future result of the lookup
+	 */
+	public CompletableFuture<LookupResult> findValue(Identifier key) {
+		if (hasKey(key)) {
+			return CompletableFuture.completedFuture(new LookupResult(key,
+					routingTable.getClosestNodesTo(key), getValueHolder(key)));
+		}
+		return startLookup(key, true);
+	}
+
+	/**
+	 * Like {@link #findValue(Identifier)}, but fails with a
+	 * {@link TimeoutException} if the lookup takes longer than the given
+	 * time.
+	 * 
+	 * @param key
+	 *            the key of the value
+	 * @param timeout
+	 *            the timeout
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the future result of the lookup
+	 */
+	public CompletableFuture<LookupResult> findValue(Identifier key,
+			long timeout, TimeUnit unit) {
+		return Futures.withTimeout(findValue(key), timeout, unit, timer);
+	}
+
+	private CompletableFuture<LookupResult> startLookup(Identifier id,
+			boolean findValue) {
+		Lookup lookup = new Lookup(this, id, findValue, alpha, BUCKET_SIZE);
+
+		lookupsInFlight.incrementAndGet();
+		lookup.getFuture().whenComplete(
+				new BiConsumer<LookupResult, Throwable>() {
+					@Override
+					public void accept(LookupResult result, Throwable t) {
+						lookupsInFlight.decrementAndGet();
+					}
+				});
+
+		lookup.start(routingTable.getClosestNodesTo(id));
+		return lookup.getFuture();
+	}
+
+	/**
+	 * Returns the number of lookups that are currently running.
+	 * 
+	 * @return the number of lookups in flight
+	 */
+	public int getLookupsInFlight() {
+		return lookupsInFlight.get();
+	}
+
+	/**
+	 * Sets the number of queries a lookup sends in parallel.
+	 * 
+	 * @param alpha
+	 *            the number of parallel queries
+	 */
+	public void setAlpha(int alpha) {
+		this.alpha = alpha;
 	}
 
 	public boolean hasKey(Identifier key) {
-		return values.containsKey(key);
+		return values.contains(key);
 	}
 
-	public Identifier getSearchID() {
-		return this.searchID;
+	IValueStore getValues() {
+		return values;
 	}
 
-	public boolean receivedRPC(NodeIdentifier fromID, Identifier rpcID) {
-		List<Ack> rpcsFromID = rpcs.get(rpcID);
-		boolean removedAck = false;
-				
-		// wohl unschön, hier auf != null zu prüfen, da Fehler wo anders ist.
-		if (rpcsFromID != null) {
-			for (Ack ack : rpcsFromID) {
-				if (ack.check(fromID)) {
-					ack.setReceived();
-					rpcsFromID.remove(ack);
-					removedAck = true;
+	IValueStore getDataStore() {
+		return data;
+	}
 
-					LOGGER.log(Level.FINEST, "Received RPC ack " + rpcID);
+	/**
+	 * Returns the node holding the value with the given key, if known.
+	 * 
+	 * @param key
+	 *            the key of the value
+	 * @return the holder or null
+	 */
+	public NodeIdentifier getValueHolder(Identifier key) {
+		ByteBuffer triple = values.get(key);
+		return triple == null ? null : NodeIdentifier.fromTriple(idBits,
+				triple);
+	}
 
-					break;
-				}
-			}
+	/**
+	 * Called when a node answered a FIND_NODE or FIND_VALUE with the nodes it
+	 * knows closest to the ID in question.
+	 * 
+	 * @param fromID
+	 *            the node that answered
+	 * @param rpcID
+	 *            the RPC ID of the query
+	 * @param nodes
+	 *            the nodes in the answer
+	 */
+	void receivedNodes(NodeIdentifier fromID, long rpcID,
+			List<NodeIdentifier> nodes) {
+		// Only the node the query went to may answer it
+		if (!receivedRPC(fromID, rpcID)) {
+			return;
+		}
+		Lookup lookup = lookups.remove(rpcID);
+		if (lookup != null) {
+			lookup.receivedNodes(fromID, nodes);
 		}
+	}
 
-		if (!removedAck) {
+	/**
+	 * Called when a node answered a FIND_VALUE with the holder of the value.
+	 * 
+	 * @param fromID
+	 *            the node that answered
+	 * @param rpcID
+	 *            the RPC ID of the query
+	 * @param holder
+	 *            the node holding the value
+	 */
+	void receivedValue(NodeIdentifier fromID, long rpcID, NodeIdentifier holder) {
+		if (!receivedRPC(fromID, rpcID)) {
+			return;
+		}
+		Lookup lookup = lookups.remove(rpcID);
+		if (lookup != null) {
+			lookup.receivedValue(fromID, holder);
+		}
+	}
+
+	public boolean receivedRPC(NodeIdentifier fromID, long rpcID) {
+		Ack ack = rpcs.remove(rpcID, fromID);
+
+		if (ack == null) {
 			LOGGER.log(Level.WARNING,
 					"Received RPC ack {0}, but didn't expect that",
 					new Object[] { rpcID });
+			return false;
 		}
 
-		return removedAck;
+		LOGGER.log(Level.FINEST, "Received RPC ack " + rpcID);
+		// The answer to a resent RPC may be the answer to any of its copies
+		if (ack.getRetries() == 0) {
+			metrics.answered(ack.getType(), System.nanoTime() - ack.getSentAt());
+		}
+		ack.setReceived();
+		return true;
 	}
 
+	/**
+	 * Tells the neighbors that this node leaves the network, then closes it
+	 * (see {@link #close()}).
+	 */
 	public void leave() {
 		for (NodeIdentifier n : getNeighbors()) {
 			sendLeave(n);
 		}
-		System.exit(0);
+		close();
+	}
+
+	/**
+	 * Stops this node without telling the other nodes (unlike
+	 * {@link #leave()}, it just disappears like a crashed node) and closes
+	 * its stores. Operations still running (and those started later) fail
+	 * with an {@link IllegalStateException}. The other nodes of a shared host
+	 * keep running.
+	 */
+	public void close() {
+		closed = true;
+		host.remove(this);
+		if (metricsTask != null) {
+			metricsTask.cancel(false);
+		}
+		if (metricsName != null) {
+			try {
+				MetricsBean.unregister(metricsName);
+			} catch (JMException e) {
+				LOGGER.log(Level.WARNING,
+						"Couldn''t unregister the metrics of {0}: {1}",
+						new Object[] { nodeID, e.getMessage() });
+			}
+		}
+		if (ownsHost) {
+			host.shutdown();
+		} else {
+			evictTask.cancel(false);
+			republishTask.cancel(false);
+		}
+		rpcs.cancelAll();
+		failPending();
+		data.close();
+		values.close();
+	}
+
+	/**
+	 * Fails the operations of a closed node that don't wait for an ack (any
+	 * more), like requested values whose transfer is still running.
+	 */
+	private void failPending() {
+		IllegalStateException cause = closedException();
+		for (Long rpcID : lookups.keySet()) {
+			Lookup lookup = lookups.remove(rpcID);
+			if (lookup != null) {
+				lookup.fail(cause);
+			}
+		}
+		for (Long rpcID : storeBatches.keySet()) {
+			CompletableFuture<BitSet> results = storeBatches.remove(rpcID);
+			if (results != null) {
+				results.completeExceptionally(cause);
+			}
+		}
+		for (Long rpcID : findValueBatches.keySet()) {
+			CompletableFuture<List<NodeIdentifier>> results = findValueBatches
+					.remove(rpcID);
+			if (results != null) {
+				results.completeExceptionally(cause);
+			}
+		}
+		for (Identifier fileID : dataRequests.keySet()) {
+			DataRequest request = dataRequests.remove(fileID);
+			if (request != null) {
+				request.getFuture().completeExceptionally(cause);
+			}
+		}
+	}
+
+	private IllegalStateException closedException() {
+		return new IllegalStateException("Node " + nodeID + " has been closed");
 	}
 
 	private boolean sendLeave(NodeIdentifier n) {
-		return send(n, MessageType.LEAVE, null, false, null);
+		long rpcID = createRPCID();
+		return send(n, rpcID, newMessage(MessageType.LEAVE, n, rpcID), false,
+				null);
 	}
 
-	public void storeData(FileIdentifier id, String data) {
+	/**
+	 * Stores a value on this node.
+	 * 
+	 * @param id
+	 *            the key of the value
+	 * @param data
+	 *            the value (its remaining bytes, the position isn't changed)
+	 */
+	public void storeData(FileIdentifier id, ByteBuffer data) {
 		this.data.put(id, data);
-		LOGGER.log(Level.INFO, "Stored Data [{0}] as [{1}])",
-				new Object[] { data, id});
+		LOGGER.log(Level.INFO, "Stored {0} bytes as [{1}]",
+				new Object[] { data.remaining(), id });
 	}
-	
 
-	public void sendFile(NodeIdentifier nodeID, File file) {
+	public void storeData(FileIdentifier id, byte[] data) {
+		storeData(id, ByteBuffer.wrap(data));
+	}
 
-		
+	/**
+	 * Returns the value stored on this node under the given key.
+	 * 
+	 * @param id
+	 *            the key of the value
+	 * @return a read-only view of the value or null
+	 */
+	public ByteBuffer getData(Identifier id) {
+		return data.get(id);
 	}
 }
\ No newline at end of file
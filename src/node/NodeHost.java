@@ -0,0 +1,224 @@
+package node;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import message.RetransmissionScheduler;
+import store.IValueStore;
+import util.Threads;
+
+/**
+ * Runs any number of nodes on one {@link Transport}. The nodes share the
+ * transport with its receiving thread, the message workers (see
+ * {@link MessageDispatcher}), the timer and the {@link RetransmissionScheduler}
+ * of the host, while each of them has its own ID, routing table and stores.
+ * Received messages are passed to the node their receiver ID names.
+ *
+ * So a host covers many parts of the ID space with the threads of a single
+ * node. A node created with a transport of its own (see
+ * {@link Node#Node(Identifier, IValueStore, IValueStore, Transport, NodeIdentifier)})
+ * gets a host of its own as well.
+ *
+ * @author jln
+ *
+ */
+public class NodeHost {
+	private final static Logger LOGGER = Logger.getLogger(NodeHost.class
+			.getName());
+
+	private final Transport transport;
+
+	/**
+	 * Size of ID space (in bits), the same for all nodes of the host
+	 */
+	private final int idBits;
+
+	private final Map<Identifier, Node> nodes = new ConcurrentHashMap<Identifier, Node>();
+
+	// Drives the timeouts of the data transfers and operations, evicts stale
+	// transfers and runs the republishers
+	private final ScheduledExecutorService timer = createTimer();
+
+	private final RetransmissionScheduler scheduler = new RetransmissionScheduler();
+
+	private final MessageDispatcher dispatcher;
+
+	/**
+	 * Creates a host for nodes of a network with the given size of the ID
+	 * space and starts receiving on the given transport.
+	 *
+	 * @param transport
+	 *            the transport, owned by the host from now on
+	 * @param idBits
+	 *            the size of the ID space (160 or 256 bits)
+	 */
+	public NodeHost(Transport transport, int idBits) {
+		if (idBits != 160 && idBits != 256) {
+			throw new IllegalArgumentException(
+					"The ID space has to be 160 or 256 bits wide, not "
+							+ idBits);
+		}
+		this.transport = transport;
+		this.idBits = idBits;
+
+		dispatcher = new MessageDispatcher(this, transport, Integer.getInteger(
+				Node.WORKERS_PROPERTY, Node.DEFAULT_WORKERS),
+				Integer.getInteger(Node.QUEUE_CAPACITY_PROPERTY,
+						Node.DEFAULT_QUEUE_CAPACITY), Threads.factory(
+						"MessageWorker-", Threads.useVirtual()));
+		dispatcher.start();
+	}
+
+	private static ScheduledExecutorService createTimer() {
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "TransferTimer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		// Most operation timeouts are cancelled, don't keep them queued
+		timer.setRemoveOnCancelPolicy(true);
+		return timer;
+	}
+
+	/**
+	 * Creates a node on this host with the given ID that joins the network
+	 * via the given node.
+	 *
+	 * @param nodeID
+	 *            the ID of the node, of the size of the host's ID space
+	 * @param data
+	 *            the store for the values of the node
+	 * @param values
+	 *            the store for the holders of values (node triples)
+	 * @param bootstrap
+	 *            the node to join the network via (which may be on this
+	 *            host), null for the first node of the network
+	 * @return the node
+	 */
+	public Node addNode(Identifier nodeID, IValueStore data,
+			IValueStore values, NodeIdentifier bootstrap) {
+		return new Node(this, false, nodeID, data, values, bootstrap);
+	}
+
+	/**
+	 * Called by a node before it sends its first message.
+	 */
+	void register(Node node) {
+		if (node.getIdBits() != idBits) {
+			throw new IllegalArgumentException("The ID of " + node.getID()
+					+ " has " + node.getIdBits() + " bits, the host " + idBits);
+		}
+		if (nodes.putIfAbsent(node.getID(), node) != null) {
+			throw new IllegalArgumentException("There already is a node "
+					+ node.getID() + " on this host");
+		}
+
+		LOGGER.log(Level.FINE, "Added node {0} to the host on {1}, {2} nodes",
+				new Object[] { node.getID(), getAddress(), nodes.size() });
+	}
+
+	/**
+	 * Called by a node when it's closed, messages for it are dropped from
+	 * now on.
+	 */
+	void remove(Node node) {
+		nodes.remove(node.getID(), node);
+	}
+
+	/**
+	 * Returns the node with the given ID.
+	 *
+	 * @param id
+	 *            the ID
+	 * @return the node or null if it isn't on this host
+	 */
+	public Node getNode(Identifier id) {
+		return nodes.get(id);
+	}
+
+	/**
+	 * Returns the nodes on this host.
+	 *
+	 * @return the nodes (a copy)
+	 */
+	public List<Node> getNodes() {
+		return new ArrayList<Node>(nodes.values());
+	}
+
+	/**
+	 * Returns the number of nodes on this host.
+	 *
+	 * @return the number of nodes
+	 */
+	public int size() {
+		return nodes.size();
+	}
+
+	public int getIdBits() {
+		return idBits;
+	}
+
+	/**
+	 * Returns the address all nodes of this host are reached at.
+	 *
+	 * @return the address
+	 */
+	public InetSocketAddress getAddress() {
+		return transport.getAddress();
+	}
+
+	public Transport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Returns the dispatcher of this host, with the queue and drop counts of
+	 * its workers.
+	 *
+	 * @return the dispatcher
+	 */
+	public MessageDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	ScheduledExecutorService getTimer() {
+		return timer;
+	}
+
+	RetransmissionScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Closes all nodes of this host (see {@link Node#close()}) and stops
+	 * receiving.
+	 */
+	public void close() {
+		for (Node node : getNodes()) {
+			node.close();
+		}
+		shutdown();
+	}
+
+	/**
+	 * Stops the threads of this host and closes the transport.
+	 */
+	void shutdown() {
+		transport.close();
+		dispatcher.terminate();
+		scheduler.terminate();
+		timer.shutdownNow();
+	}
+}
@@ -1,9 +1,11 @@
 package node;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
-import util.BufferUtil;
+import message.MessageCodec;
 
 /**
  * Same as a {@link Identifier}, but this also stores an IP address.
@@ -20,15 +22,40 @@ public class NodeIdentifier extends Identifier {
         this.address = address;
     }
 
-    public byte[] getTripleAsBytes() {
-        ByteBuffer result = ByteBuffer.allocate(Node.SIZE_IP_ADDRESS
-                + (Node.ID_BITS / 8));
+    /**
+     * Reads the ID from the given buffer (see
+     * {@link Identifier#Identifier(int, ByteBuffer)}).
+     */
+    public NodeIdentifier(int size, ByteBuffer buffer, InetSocketAddress address) {
+        super(size, buffer);
+        this.address = address;
+    }
 
-        result.put(BufferUtil.addrToBytes(address));
-        result.put(bits.toByteArray());
+    public byte[] getTripleAsBytes() {
+        ByteBuffer result = ByteBuffer.allocate(MessageCodec
+                .nodeSize(getSize()));
+        MessageCodec.writeNode(result, this);
         return result.array();
     }
 
+    /**
+     * Reads a node from the bytes created by {@link #getTripleAsBytes()}.
+     */
+    public static NodeIdentifier fromTriple(int size, ByteBuffer triple) {
+        ByteBuffer buffer = triple.duplicate();
+        byte[] ip = new byte[4];
+        buffer.get(ip);
+        int port = buffer.getInt();
+
+        try {
+            return new NodeIdentifier(size, buffer, new InetSocketAddress(
+                    InetAddress.getByAddress(ip), port));
+        } catch (UnknownHostException e) {
+            // Only thrown for addresses of illegal length
+            throw new IllegalArgumentException(e);
+        }
+    }
+
     public InetSocketAddress getAddress() {
         return address;
     }
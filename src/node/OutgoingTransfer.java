@@ -0,0 +1,309 @@
+package node;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The sending side of a bulk data transfer. The value is cut into chunks
+ * that fill a whole datagram (see
+ * {@link message.MessageCodec#chunkSize(int)}), which are sent as
+ * unreliable DATA messages. At most {@code window} chunks beyond the first
+ * unacknowledged one are in flight.
+ *
+ * The receiver answers with DATA_ACKs carrying the number of chunks it
+ * received in order plus a bitmap of the chunks it received beyond that
+ * (see {@link IncomingTransfer}). A chunk that is still missing although a
+ * chunk sent {@value #REORDER_THRESHOLD} sends later has been acknowledged
+ * is considered lost and resent. If no acknowledgement makes progress for
+ * {@value #TIMEOUT} ms, all unacknowledged chunks are resent; after
+ * {@value #MAX_TIMEOUTS} timeouts in a row the transfer fails.
+ *
+ * All state is guarded by the transfer, acks arrive on a message worker and
+ * timeouts on the timer thread of the node. The future is completed after
+ * the lock is released.
+ *
+ * @author jln
+ *
+ */
+public class OutgoingTransfer {
+	private final static Logger LOGGER = Logger
+			.getLogger(OutgoingTransfer.class.getName());
+
+	/**
+	 * Time without progress (in milliseconds) after which all unacknowledged
+	 * chunks are resent
+	 */
+	static final int TIMEOUT = 200;
+
+	/**
+	 * The number of timeouts in a row after which the transfer is given up
+	 */
+	private static final int MAX_TIMEOUTS = 5;
+
+	/**
+	 * The number of later sends that have to be acked before a missing chunk
+	 * is considered lost (and not just reordered)
+	 */
+	private static final int REORDER_THRESHOLD = 3;
+
+	private final Node node;
+	private final NodeIdentifier receiver;
+	private final long transferID;
+	private final Identifier fileID;
+	private final ByteBuffer data;
+	private final int chunkSize;
+	private final int numChunks;
+	private final int window;
+
+	private final BitSet acked;
+	// The send sequence number of the last (re)send of each chunk
+	private final long[] sentSeq;
+	private long nextSeq = 0;
+	// The highest send sequence number of an acknowledged chunk
+	private long highestAckedSeq = -1;
+
+	// The first chunk that hasn't been acknowledged
+	private int base = 0;
+	// The next chunk that hasn't been sent at all
+	private int nextChunk = 0;
+
+	private long lastProgress;
+	private int numTimeouts = 0;
+	private boolean finished = false;
+	// Why the transfer failed, null if it succeeded
+	private Throwable failure;
+
+	private ScheduledFuture<?> timer;
+
+	private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+	/**
+	 * @param node
+	 *            the node sending the value
+	 * @param receiver
+	 *            the node to send the value to
+	 * @param transferID
+	 *            the ID of this transfer (the RPC ID of all its messages)
+	 * @param fileID
+	 *            the key of the value
+	 * @param data
+	 *            the value (its remaining bytes)
+	 * @param chunkSize
+	 *            the size of a chunk (in bytes)
+	 * @param window
+	 *            the maximum number of chunks in flight
+	 */
+	OutgoingTransfer(Node node, NodeIdentifier receiver, long transferID,
+			Identifier fileID, ByteBuffer data, int chunkSize, int window) {
+		this.node = node;
+		this.receiver = receiver;
+		this.transferID = transferID;
+		this.fileID = fileID;
+		this.data = data.slice();
+		this.chunkSize = chunkSize;
+		// An empty value is sent as one empty chunk
+		this.numChunks = Math.max(1, (this.data.limit() + chunkSize - 1)
+				/ chunkSize);
+		this.window = window;
+		this.acked = new BitSet(numChunks);
+		this.sentSeq = new long[numChunks];
+		this.lastProgress = System.currentTimeMillis();
+	}
+
+	public long getTransferID() {
+		return transferID;
+	}
+
+	public NodeIdentifier getReceiver() {
+		return receiver;
+	}
+
+	public int getNumChunks() {
+		return numChunks;
+	}
+
+	/**
+	 * Returns a future that is completed when the receiver acknowledged all
+	 * chunks (or completed exceptionally when the transfer times out).
+	 *
+	 * @return the future of this transfer
+	 */
+	public CompletableFuture<Void> getFuture() {
+		return future;
+	}
+
+	/**
+	 * Sends the first window of chunks.
+	 *
+	 * @param timer
+	 *            the periodic task that calls {@link #checkTimeout()}, it is
+	 *            cancelled when the transfer is finished
+	 */
+	synchronized void start(ScheduledFuture<?> timer) {
+		this.timer = timer;
+		fillWindow();
+	}
+
+	/**
+	 * Called when the receiver acknowledged chunks.
+	 *
+	 * @param received
+	 *            the number of chunks the receiver has received in order
+	 * @param bitmap
+	 *            bit i (LSB first) tells whether chunk received + 1 + i has
+	 *            been received
+	 */
+	void receivedAck(int received, ByteBuffer bitmap) {
+		boolean done;
+		synchronized (this) {
+			done = handleAck(received, bitmap);
+		}
+		complete(done);
+	}
+
+	/**
+	 * @return true if the transfer just finished
+	 */
+	private boolean handleAck(int received, ByteBuffer bitmap) {
+		if (finished) {
+			return false;
+		}
+
+		boolean progress = false;
+
+		for (int i = base; i < Math.min(received, nextChunk); i++) {
+			progress |= markAcked(i);
+		}
+		for (int i = 0; i < bitmap.remaining() * 8; i++) {
+			int chunk = received + 1 + i;
+			if (chunk >= nextChunk) {
+				break;
+			}
+			if ((bitmap.get(bitmap.position() + i / 8) & (1 << (i % 8))) != 0) {
+				progress |= markAcked(chunk);
+			}
+		}
+
+		while (base < numChunks && acked.get(base)) {
+			base++;
+		}
+
+		if (base == numChunks) {
+			finish(null);
+			return true;
+		}
+
+		if (progress) {
+			lastProgress = System.currentTimeMillis();
+			numTimeouts = 0;
+		}
+
+		// Resend the chunks that have been overtaken by acknowledged ones
+		for (int i = acked.nextClearBit(base); i < nextChunk; i = acked
+				.nextClearBit(i + 1)) {
+			if (sentSeq[i] + REORDER_THRESHOLD <= highestAckedSeq) {
+				LOGGER.log(Level.FINE, "Chunk {0} of transfer {1} got lost",
+						new Object[] { i, transferID });
+				sendChunk(i);
+			}
+		}
+
+		fillWindow();
+		return false;
+	}
+
+	/**
+	 * Called periodically. Resends all unacknowledged chunks if the transfer
+	 * didn't make progress for {@value #TIMEOUT} ms.
+	 */
+	void checkTimeout() {
+		boolean done;
+		synchronized (this) {
+			done = handleTimeout();
+		}
+		complete(done);
+	}
+
+	/**
+	 * @return true if the transfer just failed
+	 */
+	private boolean handleTimeout() {
+		if (finished
+				|| System.currentTimeMillis() - lastProgress < TIMEOUT) {
+			return false;
+		}
+
+		if (++numTimeouts > MAX_TIMEOUTS) {
+			LOGGER.log(Level.WARNING,
+					"Transfer {0} of {1} to {2} timed out ({3}/{4} chunks)",
+					new Object[] { transferID, fileID, receiver, base,
+							numChunks });
+			finish(new TimeoutException("Transfer of " + fileID + " to "
+					+ receiver + " timed out"));
+			return true;
+		}
+
+		lastProgress = System.currentTimeMillis();
+		for (int i = acked.nextClearBit(base); i < nextChunk; i = acked
+				.nextClearBit(i + 1)) {
+			sendChunk(i);
+		}
+		return false;
+	}
+
+	private boolean markAcked(int chunk) {
+		if (acked.get(chunk)) {
+			return false;
+		}
+		acked.set(chunk);
+		highestAckedSeq = Math.max(highestAckedSeq, sentSeq[chunk]);
+		return true;
+	}
+
+	private void fillWindow() {
+		while (nextChunk < numChunks && nextChunk < base + window) {
+			sendChunk(nextChunk++);
+		}
+	}
+
+	private void sendChunk(int chunk) {
+		sentSeq[chunk] = nextSeq++;
+
+		int offset = chunk * chunkSize;
+		int length = Math.min(chunkSize, data.limit() - offset);
+		node.sendChunk(receiver, transferID, fileID, data.limit(), chunk,
+				data, offset, length);
+	}
+
+	private void finish(Throwable t) {
+		finished = true;
+		failure = t;
+		if (timer != null) {
+			timer.cancel(false);
+		}
+		node.finishedTransfer(this);
+
+		if (t == null) {
+			LOGGER.log(Level.INFO, "Sent {0} ({1} bytes, {2} chunks) to {3}",
+					new Object[] { fileID, data.limit(), numChunks, receiver });
+		}
+	}
+
+	private void complete(boolean done) {
+		// Completed outside the lock, the future's dependents run on this
+		// thread
+		if (!done) {
+			return;
+		}
+		if (failure == null) {
+			future.complete(null);
+		} else {
+			future.completeExceptionally(failure);
+		}
+	}
+}
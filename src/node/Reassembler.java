@@ -0,0 +1,233 @@
+package node;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import message.MessageCodec;
+
+/**
+ * Owns the incoming data transfers of a node (see {@link IncomingTransfer})
+ * and bounds the memory they take: a transfer announcing a value larger than
+ * the per-transfer limit is refused, as is one that would push the buffers
+ * of all running transfers over the global limit. Transfers that didn't
+ * receive a chunk for {@value #STALE_TIMEOUT} ms are evicted by
+ * {@link #evictStale()}.
+ *
+ * Chunks arrive on the message workers, evictions run on the timer thread of
+ * the node, so all state is guarded by this object. The node is only called back
+ * outside of the lock.
+ *
+ * @author jln
+ *
+ */
+public class Reassembler {
+	private final static Logger LOGGER = Logger.getLogger(Reassembler.class
+			.getName());
+
+	/**
+	 * Time without a new chunk (in milliseconds) after which a transfer is
+	 * given up
+	 */
+	static final int STALE_TIMEOUT = 5000;
+
+	/**
+	 * The number of finished (or refused) transfers to remember, to answer
+	 * chunks the sender resends because it missed the last ack
+	 */
+	private static final int FINISHED_TRANSFERS = 64;
+
+	// Marks a refused transfer in finishedTransfers
+	private static final int REFUSED = -1;
+
+	private final Node node;
+	private final int idBits;
+	private final int maxTransferSize;
+	private final long maxMemory;
+
+	private final Map<Long, IncomingTransfer> transfers = new HashMap<Long, IncomingTransfer>();
+	// The number of chunks of recently finished transfers (or REFUSED)
+	private final Map<Long, Integer> finishedTransfers = new LinkedHashMap<Long, Integer>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+			return size() > FINISHED_TRANSFERS;
+		}
+	};
+
+	// The size of the buffers of all running transfers
+	private long memoryUsed = 0;
+
+	/**
+	 * @param node
+	 *            the node receiving the transfers
+	 * @param maxTransferSize
+	 *            the maximum size of a value (in bytes)
+	 * @param maxMemory
+	 *            the maximum size of the buffers of all running transfers
+	 *            (in bytes)
+	 */
+	Reassembler(Node node, int maxTransferSize, long maxMemory) {
+		this.node = node;
+		this.idBits = node.getIdBits();
+		this.maxTransferSize = maxTransferSize;
+		this.maxMemory = maxMemory;
+	}
+
+	/**
+	 * Called when a chunk of a data transfer arrives. Acknowledges it if
+	 * necessary and hands the value to the node once it is complete.
+	 *
+	 * @param fromID
+	 *            the node sending the value
+	 * @param transferID
+	 *            the ID of the transfer
+	 * @param fileID
+	 *            the key of the value
+	 * @param length
+	 *            the size of the value (in bytes)
+	 * @param index
+	 *            the index of the chunk
+	 * @param chunk
+	 *            the content of the chunk
+	 */
+	void receivedChunk(NodeIdentifier fromID, long transferID,
+			FileIdentifier fileID, int length, int index, ByteBuffer chunk) {
+		IncomingTransfer transfer;
+		String refusal = null;
+		boolean complete = false;
+		int received;
+		byte[] bitmap;
+
+		synchronized (this) {
+			transfer = transfers.get(transferID);
+
+			if (transfer == null) {
+				Integer numChunks = finishedTransfers.get(transferID);
+				if (numChunks != null && numChunks == REFUSED) {
+					return;
+				}
+
+				if (numChunks == null) {
+					if (length > maxTransferSize) {
+						refusal = fileID + " (" + length
+								+ " bytes) exceeds the limit of "
+								+ maxTransferSize + " bytes per transfer";
+					} else if (memoryUsed + length > maxMemory) {
+						refusal = fileID + " (" + length
+								+ " bytes) doesn't fit, " + memoryUsed
+								+ " of " + maxMemory + " bytes are in use";
+					} else {
+						transfer = new IncomingTransfer(fromID, transferID,
+								fileID, length, MessageCodec.chunkSize(idBits));
+						transfers.put(transferID, transfer);
+						memoryUsed += length;
+					}
+				}
+			} else if (!transfer.getSender().equals(fromID)
+					|| transfer.getLength() != length) {
+				LOGGER.log(Level.WARNING,
+						"Dropped chunk of transfer {0} from {1}, it doesn't match",
+						new Object[] { transferID, fromID });
+				return;
+			}
+
+			if (refusal != null) {
+				finishedTransfers.put(transferID, REFUSED);
+				received = 0;
+				bitmap = null;
+			} else if (transfer == null) {
+				// The sender missed the last ack
+				received = finishedTransfers.get(transferID);
+				bitmap = new byte[0];
+			} else {
+				if (!transfer.receivedChunk(index, chunk)) {
+					return;
+				}
+
+				received = transfer.ackReceived();
+				bitmap = transfer.ackBitmap(MessageCodec.MAX_MESSAGE_SIZE
+						- MessageCodec.headerSize(idBits) - 4 - 2);
+
+				complete = transfer.isComplete();
+				if (complete) {
+					transfers.remove(transferID);
+					finishedTransfers.put(transferID, transfer.getNumChunks());
+					memoryUsed -= length;
+				}
+			}
+		}
+
+		if (refusal != null) {
+			LOGGER.log(Level.WARNING, "Refused transfer from {0}: {1}",
+					new Object[] { fromID, refusal });
+			node.failedTransfer(fromID, transferID, fileID,
+					new IllegalStateException(refusal));
+			return;
+		}
+
+		node.sendDataAck(fromID, transferID, received, bitmap);
+
+		if (complete) {
+			node.completedTransfer(transfer);
+		}
+	}
+
+	/**
+	 * Gives up the transfers that didn't receive a chunk for
+	 * {@value #STALE_TIMEOUT} ms and frees their buffers.
+	 */
+	void evictStale() {
+		long now = System.currentTimeMillis();
+		List<IncomingTransfer> evicted = new ArrayList<IncomingTransfer>();
+
+		synchronized (this) {
+			Iterator<IncomingTransfer> it = transfers.values().iterator();
+			while (it.hasNext()) {
+				IncomingTransfer transfer = it.next();
+				if (now - transfer.getLastActivity() >= STALE_TIMEOUT) {
+					it.remove();
+					memoryUsed -= transfer.getLength();
+					finishedTransfers.put(transfer.getTransferID(), REFUSED);
+					evicted.add(transfer);
+				}
+			}
+		}
+
+		for (IncomingTransfer transfer : evicted) {
+			LOGGER.log(Level.WARNING,
+					"Evicted stale transfer of {0} from {1}",
+					new Object[] { transfer.getFileID(), transfer.getSender() });
+			node.failedTransfer(transfer.getSender(),
+					transfer.getTransferID(), transfer.getFileID(),
+					new TimeoutException("Transfer of " + transfer.getFileID()
+							+ " from " + transfer.getSender() + " stalled"));
+		}
+	}
+
+	/**
+	 * Returns the number of transfers that are currently running.
+	 *
+	 * @return the number of running transfers
+	 */
+	public synchronized int size() {
+		return transfers.size();
+	}
+
+	/**
+	 * Returns the size of the buffers of all running transfers.
+	 *
+	 * @return the memory in use (in bytes)
+	 */
+	public synchronized long getMemoryUsed() {
+		return memoryUsed;
+	}
+}
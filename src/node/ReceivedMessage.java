@@ -0,0 +1,71 @@
+package node;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A message on its way from the receiving thread to a worker (see
+ * {@link MessageDispatcher}): the buffer holding it plus the header fields,
+ * which the receiving thread decodes to pick the node and the worker.
+ *
+ * @author jln
+ *
+ */
+public class ReceivedMessage {
+
+	private final Node node;
+	private final InetSocketAddress from;
+	private final ByteBuffer buffer;
+	private final byte type;
+	private final NodeIdentifier sender;
+	private final long rpcID;
+
+	/**
+	 * @param node
+	 *            the node the message is for
+	 * @param from
+	 *            the address the message came from
+	 * @param buffer
+	 *            the message (flipped), owned by the message until it has
+	 *            been handled
+	 * @param type
+	 *            the message type
+	 * @param sender
+	 *            the sending node
+	 * @param rpcID
+	 *            the RPC ID
+	 */
+	ReceivedMessage(Node node, InetSocketAddress from, ByteBuffer buffer,
+			byte type, NodeIdentifier sender, long rpcID) {
+		this.node = node;
+		this.from = from;
+		this.buffer = buffer;
+		this.type = type;
+		this.sender = sender;
+		this.rpcID = rpcID;
+	}
+
+	public Node getNode() {
+		return node;
+	}
+
+	public InetSocketAddress getFrom() {
+		return from;
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public NodeIdentifier getSender() {
+		return sender;
+	}
+
+	public long getRpcID() {
+		return rpcID;
+	}
+}
@@ -0,0 +1,135 @@
+package node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import store.IValueStore;
+
+/**
+ * Keeps the values of a node findable while the network changes. Every round
+ * it stores the keys of all values the node holds again (see
+ * {@link Node#storeAll(java.util.Collection)}), so nodes that joined close
+ * to a key learn about it and holders that left are replaced. Before that it
+ * forgets the holders of other nodes' values that haven't been stored again
+ * within the expiry time.
+ *
+ * Rounds are started by the timer of the node and complete on a message
+ * worker, only one runs at a time.
+ *
+ * @author jln
+ *
+ */
+public class Republisher implements Runnable {
+	private final static Logger LOGGER = Logger.getLogger(Republisher.class
+			.getName());
+
+	private final Node node;
+	private final long expire;
+
+	// The running round
+	private CompletableFuture<Integer> round;
+
+	/**
+	 * @param node
+	 *            the node whose values to republish
+	 * @param expire
+	 *            the time (in milliseconds) after which holders that haven't
+	 *            been stored again are forgotten
+	 */
+	Republisher(Node node, long expire) {
+		this.node = node;
+		this.expire = expire;
+	}
+
+	@Override
+	public void run() {
+		try {
+			republish();
+		} catch (RuntimeException e) {
+			// Don't let the timer cancel the next rounds
+			LOGGER.log(Level.SEVERE, "Republishing failed", e);
+		}
+	}
+
+	/**
+	 * Starts a round, unless one is still running.
+	 *
+	 * @return the future number of keys stored on at least one node
+	 */
+	synchronized CompletableFuture<Integer> republish() {
+		if (round != null) {
+			return round;
+		}
+
+		expireHolders();
+
+		final List<Identifier> keys = new ArrayList<Identifier>(node
+				.getDataStore().keys());
+		LOGGER.log(Level.INFO, "Republishing {0} keys", keys.size());
+
+		final CompletableFuture<Integer> started = node.storeAll(keys)
+				.thenApply(
+						new Function<Map<Identifier, List<NodeIdentifier>>, Integer>() {
+							@Override
+							public Integer apply(
+									Map<Identifier, List<NodeIdentifier>> stored) {
+								int numStored = 0;
+								for (List<NodeIdentifier> nodes : stored
+										.values()) {
+									if (!nodes.isEmpty()) {
+										numStored++;
+									}
+								}
+								LOGGER.log(Level.INFO,
+										"Republished {0} of {1} keys",
+										new Object[] { numStored, keys.size() });
+								return numStored;
+							}
+						});
+
+		round = started;
+		// Runs right away if the round is already done
+		started.whenComplete(new BiConsumer<Integer, Throwable>() {
+			@Override
+			public void accept(Integer numStored, Throwable t) {
+				finishedRound(started);
+			}
+		});
+		return started;
+	}
+
+	private synchronized void finishedRound(CompletableFuture<Integer> finished) {
+		if (round == finished) {
+			round = null;
+		}
+	}
+
+	/**
+	 * Forgets the holders of values that haven't been stored again within
+	 * the expiry time. Keys of values stored on this node are kept.
+	 */
+	private void expireHolders() {
+		IValueStore values = node.getValues();
+		IValueStore data = node.getDataStore();
+		long now = System.currentTimeMillis();
+		int expired = 0;
+
+		for (Identifier key : values.keys()) {
+			long timestamp = values.getTimestamp(key);
+			if (timestamp >= 0 && now - timestamp >= expire
+					&& !data.contains(key) && values.remove(key)) {
+				expired++;
+			}
+		}
+
+		if (expired > 0) {
+			LOGGER.log(Level.INFO, "Expired {0} value holders", expired);
+		}
+	}
+}
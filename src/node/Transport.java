@@ -0,0 +1,90 @@
+package node;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries the encoded messages of a node. {@link UDPTransport} sends them as
+ * datagrams, other implementations (see {@link sim.LoopbackNetwork} and
+ * {@link sim.SimulatedNetwork}) keep them in memory, so many nodes can run in
+ * one JVM.
+ *
+ * Messages are written to buffers of the transport (see {@link #acquire()}),
+ * which pass from the sender to the receiver and back to the transport. So
+ * an in-memory transport hands the very buffer the sender wrote to the
+ * receiver, without copying it.
+ *
+ * Like UDP a transport may drop, delay and reorder messages, the node's
+ * retransmissions take care of that.
+ *
+ * @author jln
+ *
+ */
+public interface Transport {
+
+	/**
+	 * Gets the messages a transport receives.
+	 */
+	interface Receiver {
+		/**
+		 * Called for every received message, possibly by several threads at
+		 * once.
+		 *
+		 * @param from
+		 *            the address the message came from
+		 * @param message
+		 *            the message (flipped), owned by the receiver until it
+		 *            hands it back with {@link Transport#release(ByteBuffer)}
+		 */
+		void received(InetSocketAddress from, ByteBuffer message);
+	}
+
+	/**
+	 * Returns the address other nodes reach this transport at.
+	 *
+	 * @return the address
+	 */
+	InetSocketAddress getAddress();
+
+	/**
+	 * Starts passing received messages to the given receiver.
+	 *
+	 * @param receiver
+	 *            the receiver
+	 */
+	void start(Receiver receiver);
+
+	/**
+	 * Returns a cleared buffer to write a message to.
+	 *
+	 * @return the buffer
+	 */
+	ByteBuffer acquire();
+
+	/**
+	 * Sends the remaining bytes of the given buffer. The transport takes over
+	 * the buffer, it must not be used afterwards.
+	 *
+	 * @param message
+	 *            the message, in a buffer of {@link #acquire()}
+	 * @param to
+	 *            the address to send to
+	 * @return false if the message has been dropped right away (the message
+	 *         may still get lost if true is returned)
+	 */
+	boolean send(ByteBuffer message, InetSocketAddress to);
+
+	/**
+	 * Hands back the buffer of a received message once it has been handled,
+	 * or a buffer of {@link #acquire()} that won't be sent.
+	 *
+	 * @param message
+	 *            the buffer
+	 */
+	void release(ByteBuffer message);
+
+	/**
+	 * Stops receiving and frees the resources of this transport.
+	 */
+	void close();
+}
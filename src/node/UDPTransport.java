@@ -0,0 +1,175 @@
+package node;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import message.MessageCodec;
+import util.BufferPool;
+
+/**
+ * Sends the messages of a node as UDP datagrams. A thread of its own reads
+ * the datagrams into pooled buffers and passes them on to the receiver. Sent
+ * and received buffers come from the same pool.
+ *
+ * @author jln
+ *
+ */
+public class UDPTransport implements Transport, Runnable {
+	private final static Logger LOGGER = Logger.getLogger(UDPTransport.class
+			.getName());
+
+	public static final int BUF_SIZE = MessageCodec.MAX_MESSAGE_SIZE;
+
+	/**
+	 * The size of the socket receive buffer, large enough to hold a few
+	 * windows of chunks
+	 */
+	private static final int SOCKET_BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * The maximum number of idle buffers to keep
+	 */
+	private static final int BUFFER_POOL_SIZE = 256;
+
+	private volatile boolean running = true;
+
+	private final DatagramChannel channel;
+	private final InetSocketAddress address;
+	private final Selector selector;
+
+	private final BufferPool pool = new BufferPool(BUF_SIZE, BUFFER_POOL_SIZE);
+
+	private Receiver receiver;
+
+	/**
+	 * Binds a socket to the given address.
+	 *
+	 * @param address
+	 *            the address to bind to, port 0 lets the system pick a port
+	 * @throws IOException
+	 *             if the socket can't be bound
+	 */
+	public UDPTransport(InetSocketAddress address) throws IOException {
+		System.setProperty("java.net.preferIPv4Stack", "true");
+
+		channel = DatagramChannel.open();
+		try {
+			channel.socket().bind(address);
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.SO_RCVBUF,
+					SOCKET_BUFFER_SIZE);
+			selector = Selector.open();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		this.address = (InetSocketAddress) channel.getLocalAddress();
+	}
+
+	@Override
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	@Override
+	public void start(Receiver receiver) {
+		try {
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Failed to register channel", e);
+			return;
+		}
+		this.receiver = receiver;
+
+		// Not a daemon, the socket keeps the JVM alive until closed
+		new Thread(this, "UDPTransport-" + address.getPort()).start();
+	}
+
+	@Override
+	public void run() {
+		// Kept for the next datagram if a receive came up empty
+		ByteBuffer buffer = pool.acquire();
+
+		while (running) {
+			try {
+				// Block until a datagram arrives
+				selector.select();
+				selector.selectedKeys().clear();
+
+				// Drain everything that queued up since the last wakeup
+				InetSocketAddress from;
+				while ((from = (InetSocketAddress) channel.receive(buffer)) != null) {
+					buffer.flip();
+					receiver.received(from, buffer);
+					buffer = pool.acquire();
+				}
+			} catch (IOException e) {
+				if (running) {
+					LOGGER.log(Level.SEVERE, "Failed to read from channel", e);
+				}
+				buffer.clear();
+			}
+		}
+
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to close channel", e);
+		}
+	}
+
+	@Override
+	public ByteBuffer acquire() {
+		return pool.acquire();
+	}
+
+	@Override
+	public boolean send(ByteBuffer message, InetSocketAddress to) {
+		try {
+			if (channel.send(message, to) == 0) {
+				// The socket buffer is full, the datagram has been dropped
+				LOGGER.log(Level.FINE,
+						"Dropped message to {0}, socket buffer is full",
+						new Object[] { to });
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Failed to write to channel. To:" + to
+					+ " buffer: " + message, e);
+			return false;
+		} finally {
+			pool.release(message);
+		}
+	}
+
+	@Override
+	public void release(ByteBuffer message) {
+		pool.release(message);
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		if (receiver != null) {
+			// The receiving thread closes the socket on its way out
+			selector.wakeup();
+			return;
+		}
+
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to close channel", e);
+		}
+	}
+}
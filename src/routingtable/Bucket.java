@@ -1,145 +1,279 @@
 package routingtable;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import message.MessageCallback;
-import node.Node;
+import node.Identifier;
 import node.NodeIdentifier;
 
+/**
+ * A k-bucket: a node of the binary tree over the ID space. A leaf holds up to
+ * bucket size contacts, ordered by the time they were last seen (least
+ * recently seen first), and a replacement cache of the same size holding the
+ * contacts that didn't fit (most recently seen last).
+ *
+ * When a contact doesn't fit into a full leaf, the leaf is split if it covers
+ * the own ID. Otherwise the contact goes into the replacement cache. If the
+ * least recently seen contact hasn't been seen for {@link #STALE_TIME} ms,
+ * it has to be pinged: if it answers it stays, if not it is replaced by the
+ * most recently seen contact of the cache. A contact seen more recently is
+ * most likely still there and isn't pinged. At most one ping per bucket is
+ * in flight. Buckets don't send anything themselves,
+ * {@link #insert(NodeIdentifier)} returns the contact to ping.
+ *
+ * Not thread-safe, the {@link RoutingTableImpl} owning it serializes the
+ * writers. Readers only see the immutable copies made by {@link #snapshot()}.
+ */
 public class Bucket {
     private final static Logger LOGGER = Logger.getLogger(Bucket.class
             .getName());
 
+    /**
+     * The time (in milliseconds) after which the least recently seen contact
+     * of a full bucket is pinged when a new contact shows up
+     */
+    public static final long STALE_TIME = 60 * 1000L;
+
     private Bucket left;
     private Bucket right;
 
-    private List<NodeIdentifier> entries;
+    // Least recently seen first
+    private LinkedList<NodeIdentifier> entries;
+    // When the entries were last seen (System.currentTimeMillis())
+    private Map<NodeIdentifier, Long> lastSeen;
+    // Contacts that didn't fit, most recently seen last
+    private LinkedList<NodeIdentifier> replacements;
+    // The least recently seen entry while it is being pinged
+    private NodeIdentifier pinging;
+    // The last snapshot, null if this bucket changed since
+    private BucketSnapshot snapshot;
 
-    private int bucketSize;
-    private int level;
+    private final int bucketSize;
+    private final int level;
 
-    private Node node;
+    private final Identifier ownID;
+    // True if the own ID falls into the range of this bucket
+    private final boolean ownRange;
 
-    public Bucket(int bucketSize, int level, Node node) {
+    /**
+     * @param bucketSize
+     *            the maximum number of contacts (and replacements)
+     * @param level
+     *            the depth of this bucket in the tree (the number of ID bits
+     *            all contacts share)
+     * @param ownID
+     *            the ID of the node owning the routing table
+     * @param ownRange
+     *            true if the own ID falls into the range of this bucket
+     */
+    public Bucket(int bucketSize, int level, Identifier ownID,
+            boolean ownRange) {
         this.bucketSize = bucketSize;
         this.level = level;
-        this.node = node;
-        entries = new ArrayList<NodeIdentifier>();
+        this.ownID = ownID;
+        this.ownRange = ownRange;
+        entries = new LinkedList<NodeIdentifier>();
+        lastSeen = new HashMap<NodeIdentifier, Long>();
+        replacements = new LinkedList<NodeIdentifier>();
     }
 
     /**
-     * Returns the nodes of this very bucket.
-     * 
-     * @return
+     * Records that a message from the given contact arrived: moves it to the
+     * end of its bucket, adds it if there is space (splitting the bucket if
+     * allowed) or puts it into the replacement cache.
+     *
+     * @param id
+     *            the contact
+     * @return the least recently seen contact of the bucket if it has to be
+     *         pinged, else null
      */
-    public List<NodeIdentifier> getNodes() {
-        return entries;
+    public NodeIdentifier insert(NodeIdentifier id) {
+        return insert(id, System.currentTimeMillis());
     }
 
-    public boolean contains(NodeIdentifier id) {
+    /**
+     * Like {@link #insert(NodeIdentifier)}, at the given time.
+     *
+     * @param id
+     *            the contact
+     * @param now
+     *            the time the contact was seen (in milliseconds)
+     * @return the least recently seen contact of the bucket if it has to be
+     *         pinged, else null
+     */
+    public NodeIdentifier insert(NodeIdentifier id, long now) {
         if (!isLeaf()) {
-            return left.contains(id) || right.contains(id);
+            return child(id).insert(id, now);
+        }
+
+        int index = entries.indexOf(id);
+        if (index >= 0) {
+            // Known contact, keep the latest address. Readers don't see the
+            // order, so only a new address needs a new snapshot.
+            NodeIdentifier known = entries.remove(index);
+            entries.addLast(id);
+            lastSeen.put(id, now);
+            if (!sameAddress(known, id)) {
+                snapshot = null;
+            }
+            return null;
+        }
+
+        if (entries.size() < bucketSize) {
+            LOGGER.log(Level.INFO, "Added node {0} to RT on level {1}",
+                    new Object[] { id, level });
+            replacements.remove(id);
+            entries.addLast(id);
+            lastSeen.put(id, now);
+            snapshot = null;
+            return null;
         }
-        return entries.contains(id);
+
+        if (ownRange && level < ownID.getSize()) {
+            split();
+            return child(id).insert(id, now);
+        }
+
+        replacements.remove(id);
+        replacements.addLast(id);
+        if (replacements.size() > bucketSize) {
+            replacements.removeFirst();
+        }
+
+        if (pinging != null) {
+            return null;
+        }
+        NodeIdentifier head = entries.getFirst();
+        if (now - lastSeen.get(head) < STALE_TIME) {
+            // Seen recently, the newcomer waits in the cache
+            return null;
+        }
+        pinging = head;
+        return pinging;
     }
 
     /**
-     * Tries to update the given node.
-     * 
+     * Called when the pinged least recently seen contact answered: it is
+     * moved to the end of its bucket.
+     *
      * @param id
-     * @return true if the node is still available, else false
+     *            the contact
      */
-    public void update(final NodeIdentifier id) {
+    public void pingAnswered(NodeIdentifier id) {
         if (!isLeaf()) {
-            if (id.isBitSetAt(level)) {
-                left.update(id);
-            } else {
-                right.update(id);
-            }
-        } else {
-            node.sendPing(id, new MessageCallback() {
-                @Override
-                public void onReceive() {
-                    LOGGER.log(Level.INFO,
-                            "Node answered in time, moving to top of list.");
-                    entries.remove(id);
-                    entries.add(0, id);
-                }
-
-                @Override
-                public void onTimeout() {
-                    LOGGER.log(Level.INFO, "Node didnt answer in time.");
-                    // TODO: this should be propagated to the "upper" Routing
-                    // Table, not just to this specific bucket
-                    entries.remove(id);
-                }
-            });
+            child(id).pingAnswered(id);
+            return;
+        }
+
+        if (id.equals(pinging)) {
+            pinging = null;
+        }
+        if (entries.remove(id)) {
+            entries.addLast(id);
+            lastSeen.put(id, System.currentTimeMillis());
         }
     }
 
-    public void insert(NodeIdentifier newId) {
-        insert(newId, "");
+    /**
+     * Removes the given contact and replaces it with the most recently seen
+     * one of the replacement cache.
+     *
+     * @param id
+     *            the contact
+     * @return true if the contact was in the bucket
+     */
+    public boolean remove(NodeIdentifier id) {
+        if (!isLeaf()) {
+            return child(id).remove(id);
+        }
+
+        if (id.equals(pinging)) {
+            pinging = null;
+        }
+        replacements.remove(id);
+
+        if (!entries.remove(id)) {
+            return false;
+        }
+        lastSeen.remove(id);
+        snapshot = null;
+        if (!replacements.isEmpty()) {
+            NodeIdentifier replacement = replacements.removeLast();
+            LOGGER.log(Level.INFO, "Replaced node {0} with {1} on level {2}",
+                    new Object[] { id, replacement, level });
+            entries.addLast(replacement);
+            // The most recently seen of the cache
+            lastSeen.put(replacement, System.currentTimeMillis());
+        }
+        return true;
+    }
+
+    private void split() {
+        LOGGER.log(Level.INFO, "Split on level {0}", level);
+
+        boolean ownBit = ownID.bitAt(level);
+        Bucket newLeft = new Bucket(bucketSize, level + 1, ownID, ownBit);
+        Bucket newRight = new Bucket(bucketSize, level + 1, ownID, !ownBit);
+
+        this.left = newLeft;
+        this.right = newRight;
+
+        // Keeps the order, neither child gets more than the bucket size
+        for (NodeIdentifier id : entries) {
+            child(id).entries.addLast(id);
+            child(id).lastSeen.put(id, lastSeen.get(id));
+        }
+        for (NodeIdentifier id : replacements) {
+            child(id).replacements.addLast(id);
+        }
+        if (pinging != null) {
+            child(pinging).pinging = pinging;
+        }
+
+        this.entries = null;
+        this.lastSeen = null;
+        this.replacements = null;
+        this.pinging = null;
+        this.snapshot = null;
     }
 
-    public void insert(NodeIdentifier newId, String path) {
+    /**
+     * Returns an immutable copy of this bucket and the buckets below it.
+     * Only the buckets that changed since the last call are copied again.
+     *
+     * @return the snapshot
+     */
+    BucketSnapshot snapshot() {
         if (isLeaf()) {
-            if (entries.size() < bucketSize) {
-                LOGGER.log(Level.INFO,
-                        "Added node {0} to RT [{1}] on level {2}",
-                        new Object[] { newId, path, level });
-                entries.add(newId);
-            } else {
-                LOGGER.log(Level.INFO, "Split on level " + level
-                        + " while adding " + newId);
-
-                LOGGER.log(Level.INFO,
-                        "Distributing present nodes to lower buckets");
-
-                Bucket newLeft = new Bucket(bucketSize, level + 1, node);
-                Bucket newRight = new Bucket(bucketSize, level + 1, node);
-
-                // Add the new entry and in the following loop distribute all
-                // existing entries to left/right
-                entries.add(newId);
-
-                for (NodeIdentifier id : entries) {
-                    if (id.isBitSetAt(level)) {
-                        newLeft.insert(id, path + "1");
-                    } else {
-                        newRight.insert(id, path + "0");
-                    }
-                }
-
-                this.entries = null;
-                this.left = newLeft;
-                this.right = newRight;
-            }
-        } else {
-            if (newId.isBitSetAt(level)) {
-                left.insert(newId, path + "1");
-            } else {
-                right.insert(newId, path + "0");
+            if (snapshot == null) {
+                snapshot = new BucketSnapshot(level,
+                        entries.toArray(new NodeIdentifier[entries.size()]));
             }
+            return snapshot;
         }
 
+        BucketSnapshot leftSnapshot = left.snapshot();
+        BucketSnapshot rightSnapshot = right.snapshot();
+        if (snapshot == null || snapshot.getLeft() != leftSnapshot
+                || snapshot.getRight() != rightSnapshot) {
+            snapshot = new BucketSnapshot(level, leftSnapshot, rightSnapshot);
+        }
+        return snapshot;
     }
 
     private boolean isLeaf() {
         return left == null && right == null;
     }
 
-    public void remove(NodeIdentifier node) {
-        if (isLeaf()) {
-            entries.remove(node);
-        } else {
-            if (node.isBitSetAt(level)) {
-                left.remove(node);
-            } else {
-                right.remove(node);
-            }
-        }
+    private Bucket child(Identifier id) {
+        return id.bitAt(level) ? left : right;
+    }
+
+    private static boolean sameAddress(NodeIdentifier a, NodeIdentifier b) {
+        return a.getAddress() == null ? b.getAddress() == null : a
+                .getAddress().equals(b.getAddress());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,137 @@
+package routingtable;
+
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import node.Identifier;
+import node.NodeIdentifier;
+
+/**
+ * An immutable copy of a {@link Bucket} and the buckets below it, what
+ * readers of the routing table see. A write only copies the buckets on the
+ * path to the leaf it changed, all other subtrees are shared with the
+ * previous snapshot.
+ */
+final class BucketSnapshot {
+
+    private final int level;
+    private final BucketSnapshot left;
+    private final BucketSnapshot right;
+    // Only set for leaves
+    private final NodeIdentifier[] entries;
+
+    /**
+     * Creates the snapshot of a leaf.
+     */
+    BucketSnapshot(int level, NodeIdentifier[] entries) {
+        this.level = level;
+        this.left = null;
+        this.right = null;
+        this.entries = entries;
+    }
+
+    /**
+     * Creates the snapshot of an inner bucket.
+     */
+    BucketSnapshot(int level, BucketSnapshot left, BucketSnapshot right) {
+        this.level = level;
+        this.left = left;
+        this.right = right;
+        this.entries = null;
+    }
+
+    BucketSnapshot getLeft() {
+        return left;
+    }
+
+    BucketSnapshot getRight() {
+        return right;
+    }
+
+    boolean contains(NodeIdentifier id) {
+        BucketSnapshot bucket = this;
+        while (bucket.entries == null) {
+            bucket = id.bitAt(bucket.level) ? bucket.left : bucket.right;
+        }
+        for (NodeIdentifier entry : bucket.entries) {
+            if (entry.equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects the k nodes closest to the given ID into the given heap (a max
+     * heap ordered by distance to the ID, so the farthest node is on top).
+     *
+     * Children are visited nearer one first: all nodes in the child that
+     * matches the bit of the ID on this level are closer than any node in the
+     * other child. So as soon as the heap is full after a subtree has been
+     * visited, no remaining subtree can contain a closer node.
+     *
+     * @param id
+     *            the ID to find close nodes of
+     * @param k
+     *            the number of nodes to find
+     * @param closest
+     *            the heap collecting the closest nodes
+     * @return true if k nodes have been found and the search can stop
+     */
+    boolean collectClosest(Identifier id, int k,
+            PriorityQueue<NodeIdentifier> closest) {
+        if (entries != null) {
+            for (NodeIdentifier entry : entries) {
+                if (closest.size() < k) {
+                    closest.add(entry);
+                } else if (id.compareDistance(entry, closest.peek()) < 0) {
+                    closest.poll();
+                    closest.add(entry);
+                }
+            }
+            return closest.size() >= k;
+        }
+
+        if (id.bitAt(level)) {
+            return left.collectClosest(id, k, closest)
+                    || right.collectClosest(id, k, closest);
+        } else {
+            return right.collectClosest(id, k, closest)
+                    || left.collectClosest(id, k, closest);
+        }
+    }
+
+    /**
+     * Adds the number of contacts of every leaf below this bucket to the
+     * given list, in the order of the tree.
+     *
+     * @param sizes
+     *            the list to add to
+     */
+    void collectBucketSizes(List<Integer> sizes) {
+        if (entries != null) {
+            sizes.add(entries.length);
+        } else {
+            left.collectBucketSizes(sizes);
+            right.collectBucketSizes(sizes);
+        }
+    }
+
+    /**
+     * Adds the contacts of all leaves below this bucket to the given set.
+     *
+     * @param all
+     *            the set to add to
+     */
+    void collectEntries(Set<NodeIdentifier> all) {
+        if (entries != null) {
+            for (NodeIdentifier entry : entries) {
+                all.add(entry);
+            }
+        } else {
+            left.collectEntries(all);
+            right.collectEntries(all);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package routingtable;
 
+import java.util.List;
 import java.util.Set;
 
 import node.Identifier;
@@ -9,11 +10,27 @@ public interface IRoutingTable {
 
     public void insert(NodeIdentifier id);
 
-    public Set<NodeIdentifier> getClosestNodesTo(Identifier id);
+    /**
+     * Returns the (up to bucket size) nodes closest to the given ID, ordered
+     * by distance (closest first).
+     */
+    public List<NodeIdentifier> getClosestNodesTo(Identifier id);
+
+    /**
+     * Returns the (up to k) nodes closest to the given ID, ordered by
+     * distance (closest first).
+     */
+    public List<NodeIdentifier> getClosestNodesTo(Identifier id, int k);
 
     public boolean contains(NodeIdentifier node);
 
     public void remove(NodeIdentifier node);
 
     public Set<NodeIdentifier> getEntries();
+
+    /**
+     * Returns the number of contacts of every bucket, e.g. to see how full
+     * the buckets are.
+     */
+    public int[] getBucketSizes();
 }
\ No newline at end of file
@@ -1,79 +1,173 @@
 package routingtable;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import message.MessageCallback;
 import node.Identifier;
 import node.Node;
 import node.NodeIdentifier;
 
+/**
+ * The routing table: a tree of {@link Bucket}s. Writers (contacts seen, ping
+ * results, removals) are serialized by the lock of this table and publish an
+ * immutable snapshot of the tree after every change. Readers only use the
+ * latest snapshot, so they never wait for writers and never see a bucket in
+ * the middle of a change. A snapshot only copies the buckets that changed.
+ */
 public class RoutingTableImpl implements IRoutingTable {
-	private Set<NodeIdentifier> entries = new HashSet<NodeIdentifier>();
-
-	private Bucket root;
-
-	private int bucketSize;
-
-	public RoutingTableImpl(int bucketSize, Node node) {
+	private final static Logger LOGGER = Logger
+			.getLogger(RoutingTableImpl.class.getName());
+
+	// Only touched by writers, under the lock
+	private final Bucket root;
+	// What readers see
+	private volatile BucketSnapshot snapshot;
+
+	private final int bucketSize;
+
+	private final Identifier ownID;
+
+	private final Node node;
+
+	/**
+	 * @param bucketSize
+	 *            the bucket size
+	 * @param ownID
+	 *            the ID of the node owning this table
+	 * @param node
+	 *            the node sending the pings to stale contacts, or null to
+	 *            never ping (full buckets then only fill their replacement
+	 *            caches)
+	 */
+	public RoutingTableImpl(int bucketSize, Identifier ownID, Node node) {
 		this.bucketSize = bucketSize;
-		this.root = new Bucket(bucketSize, 0, node);
+		this.ownID = ownID;
+		this.node = node;
+		this.root = new Bucket(bucketSize, 0, ownID, true);
+		this.snapshot = root.snapshot();
 	}
 
+	/**
+	 * Records that a message from the given contact arrived. This doesn't
+	 * send anything unless the bucket of the contact is full and its least
+	 * recently seen contact is stale (see {@link Bucket#STALE_TIME}): then
+	 * that one is pinged (unless a ping to it is in flight already) and
+	 * evicted if it doesn't answer.
+	 */
 	@Override
 	public void insert(NodeIdentifier id) {
-		if (root.contains(id)) {
-			root.update(id);
-		} else {
-			entries.add(id);
-			root.insert(id);
+		if (id.equals(ownID)) {
+			return;
 		}
-	}
 
-	@Override
-	public Set<NodeIdentifier> getClosestNodesTo(final Identifier id) {
-		Set<NodeIdentifier> result = new HashSet<NodeIdentifier>();
-
-		if (entries.size() <= bucketSize) {
-			result.addAll(entries);
+		NodeIdentifier stale;
+		synchronized (this) {
+			stale = root.insert(id);
+			snapshot = root.snapshot();
+		}
 
-		} else {
-			List<NodeIdentifier> temp = new ArrayList<NodeIdentifier>(entries);
+		if (stale != null && node != null) {
+			pingStale(stale);
+		}
+	}
 
-			Collections.sort(temp, new Comparator<NodeIdentifier>() {
-				@Override
-				public int compare(NodeIdentifier o1, NodeIdentifier o2) {
-					BigInteger dist1 = id.distanceTo(o1);
-					BigInteger dist2 = id.distanceTo(o2);
-					return dist1.compareTo(dist2);
+	private void pingStale(final NodeIdentifier stale) {
+		node.sendPing(stale, new MessageCallback() {
+			@Override
+			public void onReceive() {
+				synchronized (RoutingTableImpl.this) {
+					// Only changes the order, nothing to publish
+					root.pingAnswered(stale);
 				}
-			});
+			}
 
-			for (int i = 0; i < bucketSize; i++) {
-				result.add(temp.get(i));
+			@Override
+			public void onTimeout() {
+				LOGGER.log(Level.INFO, "Node {0} didn't answer, evicting it",
+						new Object[] { stale });
+				remove(stale);
 			}
-			result = new HashSet<NodeIdentifier>(temp.subList(0,
-					Node.BUCKET_SIZE));
+
+			@Override
+			public void onCancel() {
+				// The node has been closed, its table doesn't matter any more
+			}
+		});
+	}
+
+	@Override
+	public List<NodeIdentifier> getClosestNodesTo(Identifier id) {
+		return getClosestNodesTo(id, bucketSize);
+	}
+
+	@Override
+	public List<NodeIdentifier> getClosestNodesTo(final Identifier id, int k) {
+		// Max heap: the farthest of the nodes found so far is on top
+		PriorityQueue<NodeIdentifier> closest = new PriorityQueue<NodeIdentifier>(
+				k + 1, new Comparator<NodeIdentifier>() {
+					@Override
+					public int compare(NodeIdentifier o1, NodeIdentifier o2) {
+						return id.compareDistance(o2, o1);
+					}
+				});
+
+		snapshot.collectClosest(id, k, closest);
+
+		NodeIdentifier[] result = new NodeIdentifier[closest.size()];
+		for (int i = result.length - 1; i >= 0; i--) {
+			result[i] = closest.poll();
 		}
-		return result;
+		return Arrays.asList(result);
 	}
 
 	@Override
 	public boolean contains(NodeIdentifier node) {
-		return root.contains(node);
+		return snapshot.contains(node);
 	}
 
 	@Override
-	public void remove(NodeIdentifier node) {
+	public synchronized void remove(NodeIdentifier node) {
+		if (root.remove(node)) {
+			snapshot = root.snapshot();
+		}
+	}
+
+	/**
+	 * Returns the number of contacts of every bucket of the latest snapshot,
+	 * in the order of the tree.
+	 * 
+	 * @return the bucket sizes
+	 */
+	@Override
+	public int[] getBucketSizes() {
+		List<Integer> sizes = new ArrayList<Integer>();
+		snapshot.collectBucketSizes(sizes);
 
+		int[] result = new int[sizes.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = sizes.get(i);
+		}
+		return result;
 	}
 
+	/**
+	 * Returns the contacts of the latest snapshot.
+	 * 
+	 * @return an unmodifiable set of the contacts
+	 */
 	@Override
 	public Set<NodeIdentifier> getEntries() {
-		return entries;
+		Set<NodeIdentifier> entries = new HashSet<NodeIdentifier>();
+		snapshot.collectEntries(entries);
+		return Collections.unmodifiableSet(entries);
 	}
-}
\ No newline at end of file
+}
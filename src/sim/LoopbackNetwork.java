@@ -0,0 +1,119 @@
+package sim;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import message.MessageCodec;
+import node.Transport;
+import util.BufferPool;
+
+/**
+ * Connects the nodes of one JVM without sockets (see {@link #newTransport()}).
+ * A message is passed to the receiving node on the sending thread, in the
+ * very buffer the sender wrote it to, which goes back to the pool shared by
+ * all transports once the receiver handled it. Nothing is lost, delayed or
+ * copied, so what it costs to run nodes over it is the cost of the protocol
+ * itself.
+ *
+ * @author jln
+ *
+ */
+public class LoopbackNetwork {
+
+	/**
+	 * The port of all hosts
+	 */
+	static final int PORT = 4000;
+
+	/**
+	 * The maximum number of idle buffers to keep
+	 */
+	private static final int BUFFER_POOL_SIZE = 1024;
+
+	private final Map<InetSocketAddress, LoopbackTransport> transports = new ConcurrentHashMap<InetSocketAddress, LoopbackTransport>();
+
+	private final BufferPool pool = new BufferPool(
+			MessageCodec.MAX_MESSAGE_SIZE, BUFFER_POOL_SIZE);
+
+	// The next host address, 10.0.0.1 and upwards
+	private final AtomicInteger nextHost = new AtomicInteger(1);
+
+	/**
+	 * Creates a transport with a new address in this network.
+	 *
+	 * @return the transport
+	 */
+	public Transport newTransport() {
+		LoopbackTransport transport = new LoopbackTransport(
+				hostAddress(nextHost.getAndIncrement()));
+		transports.put(transport.address, transport);
+		return transport;
+	}
+
+	/**
+	 * Returns the address of the given host of an in-memory network,
+	 * 10.0.0.1 for host 1 and so on.
+	 */
+	static InetSocketAddress hostAddress(int host) {
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(new byte[] {
+					10, (byte) (host >>> 16), (byte) (host >>> 8), (byte) host }),
+					PORT);
+		} catch (UnknownHostException e) {
+			// Can't happen with a literal address
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private class LoopbackTransport implements Transport {
+
+		private final InetSocketAddress address;
+		private volatile Receiver receiver;
+
+		LoopbackTransport(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		@Override
+		public InetSocketAddress getAddress() {
+			return address;
+		}
+
+		@Override
+		public void start(Receiver receiver) {
+			this.receiver = receiver;
+		}
+
+		@Override
+		public ByteBuffer acquire() {
+			return pool.acquire();
+		}
+
+		@Override
+		public boolean send(ByteBuffer message, InetSocketAddress to) {
+			LoopbackTransport target = transports.get(to);
+			Receiver targetReceiver = target == null ? null : target.receiver;
+			if (targetReceiver == null) {
+				pool.release(message);
+				return false;
+			}
+			targetReceiver.received(address, message);
+			return true;
+		}
+
+		@Override
+		public void release(ByteBuffer message) {
+			pool.release(message);
+		}
+
+		@Override
+		public void close() {
+			transports.remove(address, this);
+		}
+	}
+}
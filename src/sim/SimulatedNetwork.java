@@ -0,0 +1,241 @@
+package sim;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import message.MessageCodec;
+import node.Transport;
+import util.BufferPool;
+
+/**
+ * A network in memory that connects the nodes of one JVM (see
+ * {@link #newTransport()}). Every message is delivered after the configured
+ * latency plus a random jitter, or lost with the configured probability.
+ * Messages to transports that have been closed are lost as well, like
+ * datagrams to a crashed host.
+ *
+ * All messages are delivered by one thread, the nodes handle them on their
+ * own workers. Like on a {@link LoopbackNetwork} the buffers pass from the
+ * sender to the receiver without being copied.
+ *
+ * @author jln
+ *
+ */
+public class SimulatedNetwork {
+
+	/**
+	 * The maximum number of idle buffers to keep
+	 */
+	private static final int BUFFER_POOL_SIZE = 1024;
+
+	private final Map<InetSocketAddress, SimulatedTransport> transports = new ConcurrentHashMap<InetSocketAddress, SimulatedTransport>();
+
+	private final ScheduledThreadPoolExecutor delivery = new ScheduledThreadPoolExecutor(
+			1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SimulatedNetwork");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final BufferPool pool = new BufferPool(
+			MessageCodec.MAX_MESSAGE_SIZE, BUFFER_POOL_SIZE);
+
+	private final Random random;
+	private final long latency;
+	private final long jitter;
+	private final double loss;
+
+	// The next host address, 10.0.0.1 and upwards
+	private final AtomicInteger nextHost = new AtomicInteger(1);
+
+	// Messages sent by type, the type is the first byte of the header
+	private final AtomicLongArray sent = new AtomicLongArray(256);
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong lost = new AtomicLong();
+	private final AtomicLong undeliverable = new AtomicLong();
+
+	/**
+	 * @param latency
+	 *            the minimum time (in milliseconds) a message takes
+	 * @param jitter
+	 *            the maximum time (in milliseconds) added to the latency, at
+	 *            random
+	 * @param loss
+	 *            the probability that a message gets lost (0 to 1)
+	 * @param seed
+	 *            the seed of the random loss and jitter
+	 */
+	public SimulatedNetwork(long latency, long jitter, double loss, long seed) {
+		this.latency = latency;
+		this.jitter = jitter;
+		this.loss = loss;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Creates a transport with a new address in this network.
+	 *
+	 * @return the transport
+	 */
+	public Transport newTransport() {
+		SimulatedTransport transport = new SimulatedTransport(
+				LoopbackNetwork.hostAddress(nextHost.getAndIncrement()));
+		transports.put(transport.address, transport);
+		return transport;
+	}
+
+	/**
+	 * Returns the number of transports that haven't been closed.
+	 *
+	 * @return the number of transports
+	 */
+	public int size() {
+		return transports.size();
+	}
+
+	/**
+	 * Returns the number of messages sent, lost ones included.
+	 *
+	 * @return the number of messages
+	 */
+	public long getSent() {
+		long total = 0;
+		for (int i = 0; i < sent.length(); i++) {
+			total += sent.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the number of messages of the given type sent.
+	 *
+	 * @param type
+	 *            the message type (see {@link message.MessageType})
+	 * @return the number of messages
+	 */
+	public long getSent(byte type) {
+		return sent.get(type & 0xFF);
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Returns the number of messages lost at random.
+	 *
+	 * @return the number of lost messages
+	 */
+	public long getLost() {
+		return lost.get();
+	}
+
+	/**
+	 * Returns the number of messages sent to transports that had been closed
+	 * (or never existed).
+	 *
+	 * @return the number of undeliverable messages
+	 */
+	public long getUndeliverable() {
+		return undeliverable.get();
+	}
+
+	/**
+	 * Stops delivering messages.
+	 */
+	public void shutdown() {
+		delivery.shutdownNow();
+	}
+
+	private long delay() {
+		return jitter > 0 ? latency + (long) (random.nextDouble() * jitter)
+				: latency;
+	}
+
+	private class SimulatedTransport implements Transport {
+
+		private final InetSocketAddress address;
+		private volatile Receiver receiver;
+
+		SimulatedTransport(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		@Override
+		public InetSocketAddress getAddress() {
+			return address;
+		}
+
+		@Override
+		public void start(Receiver receiver) {
+			this.receiver = receiver;
+		}
+
+		@Override
+		public ByteBuffer acquire() {
+			return pool.acquire();
+		}
+
+		@Override
+		public boolean send(final ByteBuffer message, InetSocketAddress to) {
+			if (message.hasRemaining()) {
+				sent.incrementAndGet(message.get(message.position()) & 0xFF);
+			}
+			bytes.addAndGet(message.remaining());
+
+			if (loss > 0 && random.nextDouble() < loss) {
+				lost.incrementAndGet();
+				pool.release(message);
+				return true;
+			}
+
+			final InetSocketAddress from = address;
+			final SimulatedTransport target = transports.get(to);
+
+			try {
+				delivery.schedule(new Runnable() {
+					@Override
+					public void run() {
+						Receiver targetReceiver = target == null ? null
+								: target.receiver;
+						if (targetReceiver == null
+								|| transports.get(target.address) != target) {
+							undeliverable.incrementAndGet();
+							pool.release(message);
+							return;
+						}
+						targetReceiver.received(from, message);
+					}
+				}, delay(), TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// The network has been shut down
+				pool.release(message);
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public void release(ByteBuffer message) {
+			pool.release(message);
+		}
+
+		@Override
+		public void close() {
+			transports.remove(address, this);
+		}
+	}
+}
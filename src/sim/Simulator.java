@@ -0,0 +1,414 @@
+package sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import message.MessageType;
+import node.Identifier;
+import node.LookupResult;
+import node.Node;
+import node.NodeHost;
+import node.NodeIdentifier;
+import store.MemoryValueStore;
+
+/**
+ * Runs a network of many nodes in one JVM, connected by a
+ * {@link SimulatedNetwork}, and reports how lookups perform: hop counts,
+ * latency percentiles, message counts and the memory a node takes.
+ *
+ * The simulation is configured via system properties:
+ * <ul>
+ * <li>sim.nodes: the number of nodes (1000)</li>
+ * <li>sim.keys: the number of keys stored before the lookups (100)</li>
+ * <li>sim.lookups: the number of lookups, half FIND_NODE and half FIND_VALUE
+ * (1000)</li>
+ * <li>sim.concurrency: the number of lookups in flight (32)</li>
+ * <li>sim.latency, sim.jitter: the one way delay of a message (10 + up to 5
+ * milliseconds)</li>
+ * <li>sim.loss: the probability that a message gets lost (0)</li>
+ * <li>sim.churn: the number of nodes per second that crash and are replaced
+ * by new ones while the lookups run (0)</li>
+ * <li>sim.perhost: the number of nodes sharing a transport, see
+ * {@link NodeHost} (1)</li>
+ * <li>sim.seed: the seed of all random choices</li>
+ * </ul>
+ * Unless configured otherwise every host gets one message worker (see
+ * {@value Node#WORKERS_PROPERTY}), the nodes don't register MBeans for
+ * their metrics (see {@value Node#METRICS_JMX_PROPERTY}) and only warnings
+ * are logged.
+ *
+ * @author jln
+ *
+ */
+public class Simulator {
+
+	/**
+	 * The number of nodes that join at the same time
+	 */
+	private static final int JOIN_BATCH = 50;
+
+	private final int idBits = Integer.getInteger(Node.ID_BITS_PROPERTY,
+			Node.DEFAULT_ID_BITS);
+	private final int numNodes = Integer.getInteger("sim.nodes", 1000);
+	private final int numKeys = Integer.getInteger("sim.keys", 100);
+	private final int numLookups = Integer.getInteger("sim.lookups", 1000);
+	private final int concurrency = Integer.getInteger("sim.concurrency", 32);
+	private final int nodesPerHost = Integer.getInteger("sim.perhost", 1);
+	private final double churn = Double.parseDouble(System.getProperty(
+			"sim.churn", "0"));
+
+	private final Random random = new Random(Long.getLong("sim.seed", 42));
+	private final SimulatedNetwork network = new SimulatedNetwork(Long.getLong(
+			"sim.latency", 10), Long.getLong("sim.jitter", 5),
+			Double.parseDouble(System.getProperty("sim.loss", "0")),
+			random.nextLong());
+
+	// The live nodes, replaced ones are swapped out
+	private final List<Node> nodes = new ArrayList<Node>();
+	private final List<Identifier> keys = new ArrayList<Identifier>();
+
+	// The shared hosts, nodes are added to the last one until it's full
+	private final List<NodeHost> hosts = new ArrayList<NodeHost>();
+
+	private final AtomicInteger replaced = new AtomicInteger();
+
+	// Runs the churn and the lookup timeouts
+	private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(
+			1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Simulator");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private Simulator() {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (System.getProperty(Node.WORKERS_PROPERTY) == null) {
+			System.setProperty(Node.WORKERS_PROPERTY, "1");
+		}
+		if (System.getProperty(Node.METRICS_JMX_PROPERTY) == null) {
+			System.setProperty(Node.METRICS_JMX_PROPERTY, "false");
+		}
+		if (System.getProperty("java.util.logging.config.file") == null) {
+			// Thousands of nodes logging every message would be all we measure
+			Logger.getLogger("").setLevel(Level.WARNING);
+		}
+		new Simulator().run();
+		System.exit(0);
+	}
+
+	private void run() throws InterruptedException {
+		long heapBefore = usedHeap();
+		long start = System.nanoTime();
+		join();
+		long heapAfter = usedHeap();
+		System.out.printf("Joined %d nodes in %d ms, %.1f KB heap per node%n",
+				numNodes, millisSince(start), (heapAfter - heapBefore) / 1024.0
+						/ numNodes);
+
+		store();
+
+		long sentBefore = network.getSent();
+		long[] sentByType = sentByType();
+
+		ScheduledFuture<?> churner = null;
+		if (churn > 0) {
+			churner = startChurn();
+		}
+
+		start = System.nanoTime();
+		Stats findNode = new Stats("FIND_NODE");
+		Stats findValue = new Stats("FIND_VALUE");
+		lookups(findNode, findValue);
+		long duration = millisSince(start);
+
+		if (churner != null) {
+			churner.cancel(false);
+		}
+
+		System.out.printf("%d lookups in %d ms, %d nodes replaced%n",
+				numLookups, duration, replaced.get());
+		findNode.print();
+		findValue.print();
+
+		long sent = network.getSent() - sentBefore;
+		System.out.printf(
+				"Messages: %d (%.1f per lookup), %d lost, %d undeliverable%n",
+				sent, (double) sent / numLookups, network.getLost(),
+				network.getUndeliverable());
+		long[] sentAfter = sentByType();
+		for (int type = 0; type < sentAfter.length; type++) {
+			long count = sentAfter[type] - sentByType[type];
+			if (count > 0) {
+				System.out.printf("  %-16s %d%n",
+						MessageType.name((byte) type), count);
+			}
+		}
+
+		synchronized (nodes) {
+			for (Node node : nodes) {
+				node.close();
+			}
+		}
+		synchronized (hosts) {
+			for (NodeHost host : hosts) {
+				host.close();
+			}
+		}
+		network.shutdown();
+		timer.shutdownNow();
+	}
+
+	/**
+	 * Lets the nodes join, {@value #JOIN_BATCH} at a time, each via a random
+	 * node that already joined.
+	 */
+	private void join() throws InterruptedException {
+		// The first node has no one to join via, all others join via it or
+		// its successors
+		Node first = newNode();
+		synchronized (nodes) {
+			nodes.add(first);
+		}
+
+		while (nodes.size() < numNodes) {
+			List<Node> batch = new ArrayList<Node>();
+			for (int i = 0; i < JOIN_BATCH && nodes.size() + batch.size() < numNodes; i++) {
+				batch.add(newNode());
+			}
+			for (Node node : batch) {
+				awaitLookups(node);
+			}
+			synchronized (nodes) {
+				nodes.addAll(batch);
+			}
+		}
+	}
+
+	private Node newNode() {
+		NodeIdentifier bootstrap = null;
+		synchronized (nodes) {
+			if (!nodes.isEmpty()) {
+				bootstrap = nodes.get(random.nextInt(nodes.size()))
+						.getContact();
+			}
+		}
+		Identifier id = Identifier.getRandomIdentifier(idBits);
+		if (nodesPerHost <= 1) {
+			return new Node(id, new MemoryValueStore(), new MemoryValueStore(),
+					network.newTransport(), bootstrap);
+		}
+
+		synchronized (hosts) {
+			NodeHost host = hosts.isEmpty() ? null : hosts.get(hosts.size() - 1);
+			if (host == null || host.size() >= nodesPerHost) {
+				host = new NodeHost(network.newTransport(), idBits);
+				hosts.add(host);
+			}
+			return host.addNode(id, new MemoryValueStore(),
+					new MemoryValueStore(), bootstrap);
+		}
+	}
+
+	private static void awaitLookups(Node node) throws InterruptedException {
+		while (node.getLookupsInFlight() > 0) {
+			Thread.sleep(5);
+		}
+	}
+
+	/**
+	 * Stores the keys, each on a random node.
+	 */
+	private void store() {
+		List<CompletableFuture<List<NodeIdentifier>>> stored = new ArrayList<CompletableFuture<List<NodeIdentifier>>>();
+		for (int i = 0; i < numKeys; i++) {
+			Identifier key = Identifier.getRandomIdentifier(idBits);
+			keys.add(key);
+			stored.add(randomNode().store(key));
+		}
+		int confirmed = 0;
+		for (CompletableFuture<List<NodeIdentifier>> future : stored) {
+			confirmed += future.join().size();
+		}
+		System.out.printf("Stored %d keys on %.1f nodes each%n", numKeys,
+				numKeys == 0 ? 0 : (double) confirmed / numKeys);
+	}
+
+	/**
+	 * Runs the lookups from random nodes, with up to sim.concurrency in
+	 * flight.
+	 */
+	private void lookups(final Stats findNode, final Stats findValue)
+			throws InterruptedException {
+		final Semaphore inFlight = new Semaphore(concurrency);
+		for (int i = 0; i < numLookups; i++) {
+			inFlight.acquire();
+
+			final boolean value = i % 2 == 1 && !keys.isEmpty();
+			final Stats stats = value ? findValue : findNode;
+			final Node node = randomNode();
+			final long start = System.nanoTime();
+			// A lookup of a node that crashed fails when the node is closed
+			CompletableFuture<LookupResult> lookup = value ? node
+					.findValue(keys.get(random.nextInt(keys.size()))) : node
+					.findNode(Identifier.getRandomIdentifier(idBits));
+
+			lookup.whenComplete(new BiConsumer<LookupResult, Throwable>() {
+				@Override
+				public void accept(LookupResult result, Throwable t) {
+					long latency = System.nanoTime() - start;
+					boolean exact = result != null
+							&& !result.getClosestNodes().isEmpty()
+							&& result.getClosestNodes().get(0)
+									.equals(closestNode(result.getTarget(), node));
+					stats.add(result, latency, value, exact);
+					inFlight.release();
+				}
+			});
+		}
+		inFlight.acquire(concurrency);
+	}
+
+	private ScheduledFuture<?> startChurn() {
+		return timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				Node crashed;
+				synchronized (nodes) {
+					crashed = nodes.remove(random.nextInt(nodes.size()));
+				}
+				crashed.close();
+
+				Node joined = newNode();
+				synchronized (nodes) {
+					nodes.add(joined);
+				}
+				replaced.incrementAndGet();
+			}
+		}, 0, (long) (1000000 / churn), TimeUnit.MICROSECONDS);
+	}
+
+	/**
+	 * Returns the ID of the live node closest to the given ID, other than the
+	 * one looking it up.
+	 */
+	private Identifier closestNode(Identifier target, Node self) {
+		Identifier closest = null;
+		synchronized (nodes) {
+			for (Node node : nodes) {
+				if (node != self
+						&& (closest == null || target.compareDistance(
+								node.getID(), closest) < 0)) {
+					closest = node.getID();
+				}
+			}
+		}
+		return closest;
+	}
+
+	private Node randomNode() {
+		synchronized (nodes) {
+			return nodes.get(random.nextInt(nodes.size()));
+		}
+	}
+
+	private long[] sentByType() {
+		long[] sent = new long[256];
+		for (int type = 0; type < sent.length; type++) {
+			sent[type] = network.getSent((byte) type);
+		}
+		return sent;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long millisSince(long start) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	/**
+	 * The results of one kind of lookup.
+	 */
+	private static class Stats {
+		private final String name;
+		private long[] latencies = new long[64];
+		private int count = 0;
+		private int failed = 0;
+		private int found = 0;
+		private int exact = 0;
+		private long hops = 0;
+		private long queries = 0;
+		private int maxHops = 0;
+
+		Stats(String name) {
+			this.name = name;
+		}
+
+		synchronized void add(LookupResult result, long latency,
+				boolean value, boolean exact) {
+			if (result == null) {
+				failed++;
+				return;
+			}
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = latency;
+			hops += result.getHops();
+			queries += result.getQueries();
+			maxHops = Math.max(maxHops, result.getHops());
+			if (value && result.isValueFound()) {
+				found++;
+			}
+			if (exact) {
+				this.exact++;
+			}
+		}
+
+		synchronized void print() {
+			if (count == 0) {
+				System.out.printf("%s: no lookups, %d failed%n", name, failed);
+				return;
+			}
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			System.out.printf(
+					"%s: %d lookups, %d found, %d failed, %d found the closest node, hops %.2f (max %d), queries %.2f%n",
+					name, count, found, failed, exact, (double) hops / count,
+					maxHops, (double) queries / count);
+			System.out.printf(
+					"  latency ms: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f%n",
+					percentile(sorted, 0.5), percentile(sorted, 0.9),
+					percentile(sorted, 0.99), sorted[count - 1] / 1e6);
+		}
+
+		private static double percentile(long[] sorted, double p) {
+			int index = (int) Math.ceil(p * sorted.length) - 1;
+			return sorted[Math.max(0, index)] / 1e6;
+		}
+	}
+}
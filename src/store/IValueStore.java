@@ -0,0 +1,60 @@
+package store;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+import node.Identifier;
+
+/**
+ * Stores values by key. Every record also carries the time it was stored
+ * (or last refreshed), so stale records can be found and expired.
+ * 
+ * Implementations are thread-safe. I/O errors are thrown as
+ * {@link java.io.UncheckedIOException}.
+ * 
+ * @author jln
+ * 
+ */
+public interface IValueStore {
+
+	/**
+	 * Stores (or replaces) the value under the given key, stamped with the
+	 * current time. The remaining bytes of the buffer are copied, its
+	 * position isn't changed.
+	 */
+	public void put(Identifier key, ByteBuffer value);
+
+	/**
+	 * Returns a read-only view of the value stored under the given key, or
+	 * null. The view stays valid (and unchanged) when the key is overwritten
+	 * or removed later on.
+	 */
+	public ByteBuffer get(Identifier key);
+
+	public boolean contains(Identifier key);
+
+	/**
+	 * Returns the time the value under the given key has been stored (in
+	 * milliseconds), or -1 if there is none.
+	 */
+	public long getTimestamp(Identifier key);
+
+	/**
+	 * Removes the value stored under the given key.
+	 * 
+	 * @return true if there was a value
+	 */
+	public boolean remove(Identifier key);
+
+	/**
+	 * Returns a snapshot of all keys.
+	 */
+	public Set<Identifier> keys();
+
+	public int size();
+
+	/**
+	 * Flushes and releases the store. It must not be used afterwards.
+	 */
+	public void close();
+}
@@ -0,0 +1,77 @@
+package store;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import node.Identifier;
+
+/**
+ * Keeps all values on the heap. Nothing survives a restart.
+ *
+ * @author jln
+ *
+ */
+public class MemoryValueStore implements IValueStore {
+
+	private static class Record {
+		final byte[] value;
+		final long timestamp;
+
+		Record(byte[] value, long timestamp) {
+			this.value = value;
+			this.timestamp = timestamp;
+		}
+	}
+
+	private final Map<Identifier, Record> records = new HashMap<Identifier, Record>();
+
+	@Override
+	public void put(Identifier key, ByteBuffer value) {
+		byte[] copy = new byte[value.remaining()];
+		value.duplicate().get(copy);
+
+		synchronized (this) {
+			records.put(key, new Record(copy, System.currentTimeMillis()));
+		}
+	}
+
+	@Override
+	public synchronized ByteBuffer get(Identifier key) {
+		Record record = records.get(key);
+		return record == null ? null : ByteBuffer.wrap(record.value)
+				.asReadOnlyBuffer();
+	}
+
+	@Override
+	public synchronized boolean contains(Identifier key) {
+		return records.containsKey(key);
+	}
+
+	@Override
+	public synchronized long getTimestamp(Identifier key) {
+		Record record = records.get(key);
+		return record == null ? -1 : record.timestamp;
+	}
+
+	@Override
+	public synchronized boolean remove(Identifier key) {
+		return records.remove(key) != null;
+	}
+
+	@Override
+	public synchronized Set<Identifier> keys() {
+		return new HashSet<Identifier>(records.keySet());
+	}
+
+	@Override
+	public synchronized int size() {
+		return records.size();
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,524 @@
+package store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import node.Identifier;
+
+/**
+ * An append-only store on memory-mapped segment files. Values live in the
+ * page cache instead of the heap, the heap only holds an index with the
+ * location of the latest record of every key.
+ *
+ * Every put (and remove) appends a record to the active segment:
+ *
+ * <pre>
+ * [CRC32: int][value length: int][timestamp: long][type: byte][key length: byte][key][value]
+ * </pre>
+ *
+ * When the active segment is full a new one is started. Records that have
+ * been overwritten or removed stay in their segment as garbage until the
+ * segment is compacted: once less than {@link #COMPACTION_THRESHOLD} of a
+ * full segment is live, its live records are copied to the active segment
+ * and the file is deleted.
+ *
+ * On startup the segments are scanned in order to rebuild the index. The
+ * scan of a segment stops at the first record with a bad checksum, so a
+ * record torn by a crash is dropped. Records are not forced to disk on every
+ * write, only by {@link #flush()} and {@link #close()}.
+ *
+ * @author jln
+ *
+ */
+public class SegmentValueStore implements IValueStore {
+	private final static Logger LOGGER = Logger
+			.getLogger(SegmentValueStore.class.getName());
+
+	/**
+	 * The size of a segment file (a larger record gets a segment of its own)
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+	/**
+	 * The share of live records below which a full segment gets compacted
+	 */
+	public static final double COMPACTION_THRESHOLD = 0.5;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 1 + 1;
+
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+
+	private static class Segment {
+		final int number;
+		final File file;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+		// Where the next record goes
+		int writePosition = 0;
+		// The size of the records the index points to
+		long liveBytes = 0;
+		// Whether its records are being copied, a roll while copying mustn't
+		// compact it again
+		boolean compacting = false;
+
+		Segment(int number, File file, FileChannel channel,
+				MappedByteBuffer buffer) {
+			this.number = number;
+			this.file = file;
+			this.channel = channel;
+			this.buffer = buffer;
+		}
+	}
+
+	private static class Location {
+		final Segment segment;
+		final int offset;
+		final int recordSize;
+		final long timestamp;
+
+		Location(Segment segment, int offset, int recordSize, long timestamp) {
+			this.segment = segment;
+			this.offset = offset;
+			this.recordSize = recordSize;
+			this.timestamp = timestamp;
+		}
+	}
+
+	private final File directory;
+	private final int idBits;
+	private final int segmentSize;
+	private final boolean temporary;
+
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+
+	// All segments by number, the last one is the active one
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private Segment active;
+
+	private final Map<Identifier, Location> index = new HashMap<Identifier, Location>();
+
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Opens (or creates) the store in the given directory.
+	 *
+	 * @param directory
+	 *            the directory holding the segment files
+	 * @param idBits
+	 *            the size of the keys (in bits)
+	 */
+	public SegmentValueStore(File directory, int idBits) {
+		this(directory, idBits, DEFAULT_SEGMENT_SIZE, false);
+	}
+
+	/**
+	 * Opens (or creates) the store in the given directory.
+	 *
+	 * @param directory
+	 *            the directory holding the segment files
+	 * @param idBits
+	 *            the size of the keys (in bits)
+	 * @param segmentSize
+	 *            the size of a segment file (in bytes)
+	 * @param temporary
+	 *            if true, the files are deleted when the VM exits
+	 * @throws IllegalStateException
+	 *             if the directory is used by another store
+	 */
+	public SegmentValueStore(File directory, int idBits, int segmentSize,
+			boolean temporary) {
+		this.directory = directory;
+		this.idBits = idBits;
+		this.segmentSize = segmentSize;
+		this.temporary = temporary;
+
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Can't create " + directory);
+			}
+
+			File lockPath = newFile("lock");
+			lockFile = new RandomAccessFile(lockPath, "rw");
+			FileLock lock;
+			try {
+				lock = lockFile.getChannel().tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null;
+			}
+			if (lock == null) {
+				lockFile.close();
+				throw new IllegalStateException(directory
+						+ " is used by another store");
+			}
+			this.lock = lock;
+
+			load();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		LOGGER.log(Level.INFO, "Opened store {0}: {1} keys in {2} segments",
+				new Object[] { directory, index.size(), segments.size() });
+	}
+
+	private File newFile(String name) {
+		File file = new File(directory, name);
+		if (temporary) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	/**
+	 * Maps the existing segments and rebuilds the index from them.
+	 */
+	private void load() throws IOException {
+		File[] files = directory.listFiles();
+		TreeMap<Integer, File> existing = new TreeMap<Integer, File>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(SEGMENT_PREFIX)
+					&& name.endsWith(SEGMENT_SUFFIX)) {
+				try {
+					existing.put(Integer.parseInt(name.substring(
+							SEGMENT_PREFIX.length(), name.length()
+									- SEGMENT_SUFFIX.length())), file);
+				} catch (NumberFormatException e) {
+					LOGGER.log(Level.WARNING, "Ignoring {0}", file);
+				}
+			}
+		}
+
+		for (Map.Entry<Integer, File> entry : existing.entrySet()) {
+			File file = entry.getValue();
+			Segment segment = mapSegment(entry.getKey(), file, (int) file.length());
+			segments.put(segment.number, segment);
+			scan(segment);
+			active = segment;
+		}
+
+		if (active == null) {
+			newSegment(segmentSize);
+		}
+	}
+
+	private Segment mapSegment(int number, File file, int size)
+			throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+				0, size);
+		return new Segment(number, file, channel, buffer);
+	}
+
+	private Segment newSegment(int size) throws IOException {
+		int number = active == null ? 0 : active.number + 1;
+		Segment segment = mapSegment(number, newFile(SEGMENT_PREFIX + number
+				+ SEGMENT_SUFFIX), size);
+		segments.put(number, segment);
+		active = segment;
+		return segment;
+	}
+
+	/**
+	 * Applies the records of a segment to the index.
+	 */
+	private void scan(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int position = 0;
+
+		while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+			byte type = buffer.get(position + 16);
+			if (type != PUT && type != DELETE) {
+				// The unwritten (zeroed) rest of the segment
+				break;
+			}
+
+			int recordSize = recordSize(buffer, position);
+			if (recordSize < 0
+					|| position + recordSize > buffer.capacity()
+					|| checksum(buffer, position, recordSize) != buffer
+							.getInt(position)) {
+				LOGGER.log(Level.WARNING,
+						"Dropping torn record at {0} of {1}", new Object[] {
+								position, segment.file });
+				break;
+			}
+
+			apply(readKey(buffer, position), segment, position, recordSize,
+					type, buffer.getLong(position + 8));
+			position += recordSize;
+		}
+
+		segment.writePosition = position;
+	}
+
+	private void apply(Identifier key, Segment segment, int offset,
+			int recordSize, byte type, long timestamp) {
+		Location old;
+		if (type == PUT) {
+			old = index.put(key, new Location(segment, offset, recordSize,
+					timestamp));
+			segment.liveBytes += recordSize;
+		} else {
+			old = index.remove(key);
+		}
+
+		if (old != null) {
+			old.segment.liveBytes -= old.recordSize;
+		}
+	}
+
+	private static int recordSize(ByteBuffer buffer, int offset) {
+		int valueLength = buffer.getInt(offset + 4);
+		int keyLength = buffer.get(offset + 17) & 0xFF;
+		return valueLength < 0 ? -1 : RECORD_HEADER_SIZE + keyLength
+				+ valueLength;
+	}
+
+	private Identifier readKey(ByteBuffer buffer, int offset) {
+		byte[] key = new byte[buffer.get(offset + 17) & 0xFF];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + RECORD_HEADER_SIZE);
+		view.get(key);
+		return new Identifier(idBits, key);
+	}
+
+	private int checksum(ByteBuffer buffer, int offset, int recordSize) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + 4);
+		view.limit(offset + recordSize);
+		crc.reset();
+		crc.update(view);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Returns a segment with room for a record of the given size. If the
+	 * active segment is full, a new one is started and the full ones get
+	 * compacted (which might fill the new one again).
+	 */
+	private Segment reserve(int recordSize) throws IOException {
+		while (active.writePosition + recordSize > active.buffer.capacity()) {
+			Segment full = active;
+			newSegment(Math.max(segmentSize, recordSize));
+			full.buffer.force();
+
+			compactFull();
+		}
+		return active;
+	}
+
+	private void append(Identifier key, byte type, ByteBuffer value) {
+		byte[] keyBytes = key.getBytes();
+		int recordSize = RECORD_HEADER_SIZE + keyBytes.length
+				+ value.remaining();
+		long timestamp = System.currentTimeMillis();
+
+		try {
+			Segment segment = reserve(recordSize);
+			int offset = segment.writePosition;
+
+			ByteBuffer buffer = segment.buffer.duplicate();
+			buffer.position(offset + 4);
+			buffer.putInt(value.remaining());
+			buffer.putLong(timestamp);
+			buffer.put(type);
+			buffer.put((byte) keyBytes.length);
+			buffer.put(keyBytes);
+			buffer.put(value.duplicate());
+			buffer.putInt(offset, checksum(buffer, offset, recordSize));
+
+			segment.writePosition += recordSize;
+			apply(key, segment, offset, recordSize, type, timestamp);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public synchronized void put(Identifier key, ByteBuffer value) {
+		append(key, PUT, value);
+	}
+
+	/**
+	 * Returns a read-only view of the mapped segment holding the value, so
+	 * nothing is copied. Records are never overwritten and the mapping
+	 * outlives a compacted (deleted) segment file, so the view stays valid.
+	 */
+	@Override
+	public synchronized ByteBuffer get(Identifier key) {
+		Location location = index.get(key);
+		if (location == null) {
+			return null;
+		}
+
+		ByteBuffer buffer = location.segment.buffer.duplicate();
+		int keyLength = buffer.get(location.offset + 17) & 0xFF;
+		buffer.position(location.offset + RECORD_HEADER_SIZE + keyLength);
+		buffer.limit(location.offset + location.recordSize);
+		return buffer.slice().asReadOnlyBuffer();
+	}
+
+	@Override
+	public synchronized boolean contains(Identifier key) {
+		return index.containsKey(key);
+	}
+
+	@Override
+	public synchronized long getTimestamp(Identifier key) {
+		Location location = index.get(key);
+		return location == null ? -1 : location.timestamp;
+	}
+
+	@Override
+	public synchronized boolean remove(Identifier key) {
+		if (!index.containsKey(key)) {
+			return false;
+		}
+		append(key, DELETE, ByteBuffer.allocate(0));
+		return true;
+	}
+
+	@Override
+	public synchronized Set<Identifier> keys() {
+		return new HashSet<Identifier>(index.keySet());
+	}
+
+	@Override
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Compacts all full segments with less than
+	 * {@link #COMPACTION_THRESHOLD} live records.
+	 */
+	public synchronized void compact() {
+		try {
+			compactFull();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void compactFull() throws IOException {
+		List<Segment> full = new ArrayList<Segment>(segments.values());
+		full.remove(active);
+		for (Segment segment : full) {
+			// Might have been compacted by a nested roll already, or be the
+			// one a nested roll is copying from
+			if (segments.get(segment.number) == segment && !segment.compacting) {
+				compact(segment);
+			}
+		}
+	}
+
+	/**
+	 * Copies the live records of a full segment to the active one and
+	 * deletes it, if it is sparse enough.
+	 */
+	private void compact(Segment segment) throws IOException {
+		if (segment.liveBytes >= segment.writePosition * COMPACTION_THRESHOLD) {
+			return;
+		}
+
+		LOGGER.log(Level.FINE, "Compacting {0} ({1} of {2} bytes live)",
+				new Object[] { segment.file, segment.liveBytes,
+						segment.writePosition });
+
+		segment.compacting = true;
+		ByteBuffer buffer = segment.buffer;
+		boolean hasOlder = segments.firstKey() < segment.number;
+
+		for (int offset = 0; offset < segment.writePosition;) {
+			int recordSize = recordSize(buffer, offset);
+			Identifier key = readKey(buffer, offset);
+			Location location = index.get(key);
+
+			boolean live;
+			if (buffer.get(offset + 16) == PUT) {
+				live = location != null && location.segment == segment
+						&& location.offset == offset;
+			} else {
+				// A delete has to outlive the older records it hides, but
+				// mustn't hide a newer put
+				live = hasOlder && location == null;
+			}
+
+			if (live) {
+				copy(key, buffer, offset, recordSize);
+			}
+			offset += recordSize;
+		}
+
+		segments.remove(segment.number);
+		segment.channel.close();
+		if (!segment.file.delete()) {
+			LOGGER.log(Level.WARNING, "Failed to delete {0}", segment.file);
+		}
+	}
+
+	private void copy(Identifier key, ByteBuffer from, int offset,
+			int recordSize) throws IOException {
+		Segment segment = reserve(recordSize);
+		int newOffset = segment.writePosition;
+
+		ByteBuffer record = from.duplicate();
+		record.position(offset);
+		record.limit(offset + recordSize);
+		ByteBuffer to = segment.buffer.duplicate();
+		to.position(newOffset);
+		to.put(record);
+
+		segment.writePosition += recordSize;
+		if (from.get(offset + 16) == PUT) {
+			apply(key, segment, newOffset, recordSize, PUT,
+					from.getLong(offset + 8));
+		}
+	}
+
+	/**
+	 * Forces all written records to disk.
+	 */
+	public synchronized void flush() {
+		for (Segment segment : segments.values()) {
+			segment.buffer.force();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		flush();
+		try {
+			for (Segment segment : segments.values()) {
+				segment.channel.close();
+			}
+			lock.release();
+			lockFile.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
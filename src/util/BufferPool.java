@@ -0,0 +1,70 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct buffers. Direct buffers are expensive to
+ * allocate, but can be written to a channel without the extra copy a heap
+ * buffer needs, so they are handed out again and again.
+ *
+ * @author jln
+ *
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger numPooled = new AtomicInteger();
+
+	/**
+	 * @param bufferSize
+	 *            the capacity of each buffer
+	 * @param maxPooled
+	 *            the maximum number of idle buffers kept in the pool
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Returns a cleared buffer (a pooled one if available).
+	 *
+	 * @return a buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = pool.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		numPooled.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Hands a buffer back to the pool. The buffer must not be used
+	 * afterwards.
+	 *
+	 * @param buffer
+	 *            the buffer to release
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() != bufferSize || !buffer.isDirect()) {
+			return;
+		}
+		if (numPooled.incrementAndGet() > maxPooled) {
+			numPooled.decrementAndGet();
+			return;
+		}
+		buffer.clear();
+		pool.offer(buffer);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
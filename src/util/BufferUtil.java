@@ -6,7 +6,7 @@ import java.nio.ByteBuffer;
 public class BufferUtil {
 
 	public static ByteBuffer clone(ByteBuffer original) {
-		ByteBuffer clone = ByteBuffer.allocate(original.capacity());
+		ByteBuffer clone = ByteBuffer.allocate(original.limit());
 
 		int oldPosition = original.position();
 		original.rewind();// copy from the beginning
@@ -19,9 +19,7 @@ public class BufferUtil {
 
     public static byte[] addrToBytes(InetSocketAddress addr) {
         ByteBuffer buffer = ByteBuffer.allocate(8);
-        for (String part : addr.getHostString().split("\\.")) {
-            buffer.put(Byte.valueOf(part));
-        }
+        buffer.put(addr.getAddress().getAddress());
         buffer.putInt(addr.getPort());
         return buffer.array();
     }
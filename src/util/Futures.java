@@ -0,0 +1,83 @@
+package util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Helpers for {@link CompletableFuture}s that Java 8 lacks.
+ *
+ * @author jln
+ *
+ */
+public class Futures {
+
+	private Futures() {
+	}
+
+	/**
+	 * Returns a future that has already failed with the given exception.
+	 *
+	 * @param t
+	 *            the exception
+	 * @return the failed future
+	 */
+	public static <T> CompletableFuture<T> failed(Throwable t) {
+		CompletableFuture<T> failed = new CompletableFuture<T>();
+		failed.completeExceptionally(t);
+		return failed;
+	}
+
+	/**
+	 * Returns a future that completes like the given one, or exceptionally
+	 * with a {@link TimeoutException} if the given one isn't done within the
+	 * timeout. The operation behind the given future isn't cancelled, its
+	 * result is just dropped.
+	 *
+	 * @param future
+	 *            the future
+	 * @param timeout
+	 *            the timeout
+	 * @param unit
+	 *            the unit of the timeout
+	 * @param timer
+	 *            the executor to run the timeout on, it should remove
+	 *            cancelled tasks right away (see
+	 *            {@link java.util.concurrent.ScheduledThreadPoolExecutor#setRemoveOnCancelPolicy(boolean)}
+	 *            ) as most timeouts never fire
+	 * @return the future with a timeout
+	 */
+	public static <T> CompletableFuture<T> withTimeout(
+			CompletableFuture<T> future, final long timeout,
+			final TimeUnit unit, ScheduledExecutorService timer) {
+		if (future.isDone()) {
+			return future;
+		}
+
+		final CompletableFuture<T> timed = new CompletableFuture<T>();
+		final ScheduledFuture<?> task = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				timed.completeExceptionally(new TimeoutException(
+						"Timed out after " + timeout + " "
+								+ unit.toString().toLowerCase()));
+			}
+		}, timeout, unit);
+
+		future.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T result, Throwable t) {
+				task.cancel(false);
+				if (t != null) {
+					timed.completeExceptionally(t);
+				} else {
+					timed.complete(result);
+				}
+			}
+		});
+		return timed;
+	}
+}
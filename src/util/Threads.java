@@ -0,0 +1,145 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads of a node: virtual threads where the JDK has them
+ * (Java 21 and later) and they have been asked for, platform threads
+ * otherwise. The project is compiled for Java 8, so the virtual thread API
+ * is only reached via reflection.
+ *
+ * @author jln
+ *
+ */
+public class Threads {
+	private final static Logger LOGGER = Logger.getLogger(Threads.class
+			.getName());
+
+	/**
+	 * The system property that selects the kind of threads for message
+	 * handlers and blocking calls: "virtual" or "platform" (the default)
+	 */
+	public static final String THREADS_PROPERTY = "kademlia.threads";
+
+	// Thread.ofVirtual().name(...).factory(), null if not available
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method FACTORY;
+	// Executors.newThreadPerTaskExecutor(ThreadFactory), null if not available
+	private static final Method PER_TASK;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+		Method perTask = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+			perTask = Executors.class.getMethod("newThreadPerTaskExecutor",
+					ThreadFactory.class);
+		} catch (ReflectiveOperationException e) {
+			// Older JDK
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+		PER_TASK = perTask;
+	}
+
+	private Threads() {
+	}
+
+	/**
+	 * Returns true if this JDK supports virtual threads.
+	 *
+	 * @return true if virtual threads are available
+	 */
+	public static boolean isVirtualAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Returns true if virtual threads have been asked for via
+	 * {@value #THREADS_PROPERTY} and are available.
+	 *
+	 * @return true if virtual threads are to be used
+	 */
+	public static boolean useVirtual() {
+		if (!"virtual".equals(System.getProperty(THREADS_PROPERTY))) {
+			return false;
+		}
+		if (!isVirtualAvailable()) {
+			LOGGER.log(Level.WARNING,
+					"Virtual threads need Java 21, using platform threads on {0}",
+					System.getProperty("java.version"));
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a factory for threads named prefix followed by a number.
+	 *
+	 * @param prefix
+	 *            the name prefix
+	 * @param virtual
+	 *            true for virtual threads (falls back to platform threads if
+	 *            not available)
+	 * @return the factory
+	 */
+	public static ThreadFactory factory(final String prefix, boolean virtual) {
+		if (virtual && isVirtualAvailable()) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix,
+						0L);
+				return (ThreadFactory) FACTORY.invoke(builder);
+			} catch (ReflectiveOperationException e) {
+				LOGGER.log(Level.WARNING,
+						"Failed to create virtual threads, using platform threads",
+						e);
+			}
+		}
+
+		// Platform threads are daemons, a node mustn't keep the JVM alive
+		return new ThreadFactory() {
+			private final AtomicInteger next = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + next.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Returns an executor that runs every task on a new thread of the given
+	 * factory, meant for virtual threads, which are cheap to create and to
+	 * block. Before Java 21 the threads are pooled instead.
+	 *
+	 * @param factory
+	 *            the thread factory
+	 * @return the executor
+	 */
+	public static ExecutorService perTaskExecutor(ThreadFactory factory) {
+		if (PER_TASK != null) {
+			try {
+				return (ExecutorService) PER_TASK.invoke(null, factory);
+			} catch (ReflectiveOperationException e) {
+				LOGGER.log(Level.WARNING,
+						"Failed to create a per task executor", e);
+			}
+		}
+		return Executors.newCachedThreadPool(factory);
+	}
+}
@@ -0,0 +1,146 @@
+package message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import node.Identifier;
+import node.NodeIdentifier;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageCodecTest {
+
+	private static final int ID_BITS = 160;
+
+	private final MessageReader reader = new MessageReader(ID_BITS);
+	private ByteBuffer buffer;
+
+	private NodeIdentifier sender;
+	private NodeIdentifier receiver;
+
+	@Before
+	public void setUp() {
+		buffer = ByteBuffer.allocate(MessageCodec.MAX_MESSAGE_SIZE);
+		sender = node("10.0.0.1", 4000);
+		receiver = node("10.0.0.2", 4001);
+	}
+
+	private static NodeIdentifier node(String ip, int port) {
+		return new NodeIdentifier(ID_BITS, Identifier.getRandomIdentifier(
+				ID_BITS).getBytes(), new InetSocketAddress(ip, port));
+	}
+
+	private MessageReader read() {
+		buffer.flip();
+		return reader.wrap(buffer);
+	}
+
+	@Test
+	public void headerRoundTrip() {
+		MessageCodec.writeHeader(buffer, MessageType.FIND_NODE, sender,
+				receiver, 0x0123456789ABCDEFL);
+		assertEquals(MessageCodec.headerSize(ID_BITS), buffer.position());
+
+		MessageReader message = read();
+		assertEquals(MessageType.FIND_NODE, message.getType());
+		assertEquals(0x0123456789ABCDEFL, message.getRpcID());
+		assertEquals(receiver, message.getReceiver());
+
+		NodeIdentifier from = message.getSender(sender.getAddress());
+		assertEquals(sender, from);
+		assertEquals(sender.getAddress(), from.getAddress());
+		assertFalse(message.hasRemaining());
+	}
+
+	@Test
+	public void bodyRoundTrip() {
+		Identifier target = Identifier.getRandomIdentifier(ID_BITS);
+		List<Identifier> ids = Arrays.asList(
+				Identifier.getRandomIdentifier(ID_BITS),
+				Identifier.getRandomIdentifier(ID_BITS));
+		List<NodeIdentifier> nodes = Arrays.asList(sender, receiver);
+		List<NodeIdentifier> holders = Arrays.asList(receiver, null);
+		byte[] bytes = { 1, 2, 3, 4, 5 };
+
+		MessageCodec.writeHeader(buffer, MessageType.NODES, sender, receiver,
+				42);
+		MessageCodec.writeID(buffer, target);
+		MessageCodec.writeIDs(buffer, ids);
+		MessageCodec.writeNodes(buffer, nodes);
+		MessageCodec.writeHolder(buffer, null);
+		MessageCodec.writeHolders(buffer, holders);
+		MessageCodec.writeBytes(buffer, bytes);
+		MessageCodec.writeBytes(buffer, ByteBuffer.wrap(bytes), 1, 3);
+
+		MessageReader message = read();
+		assertEquals(target, message.readID());
+		assertEquals(ids, message.readIDs());
+
+		List<NodeIdentifier> readNodes = message.readNodes();
+		assertEquals(nodes, readNodes);
+		for (int i = 0; i < nodes.size(); i++) {
+			assertEquals(nodes.get(i).getAddress(), readNodes.get(i)
+					.getAddress());
+		}
+
+		assertNull(message.readHolder());
+		assertEquals(holders, message.readHolders());
+		assertArrayEquals(bytes, message.readBytes());
+
+		ByteBuffer view = message.readBytesView();
+		assertEquals(ByteBuffer.wrap(new byte[] { 2, 3, 4 }), view);
+		assertFalse(message.hasRemaining());
+	}
+
+	@Test
+	public void nodeTripleRoundTrip() {
+		ByteBuffer triple = ByteBuffer.wrap(sender.getTripleAsBytes());
+
+		NodeIdentifier read = NodeIdentifier.fromTriple(ID_BITS, triple);
+		assertEquals(sender, read);
+		assertEquals(sender.getAddress(), read.getAddress());
+	}
+
+	@Test(expected = MalformedMessageException.class)
+	public void shortHeaderIsRejected() {
+		buffer.put(MessageType.PING);
+		read();
+	}
+
+	@Test(expected = MalformedMessageException.class)
+	public void truncatedFieldIsRejected() {
+		MessageCodec.writeHeader(buffer, MessageType.NODES, sender, receiver,
+				42);
+		MessageCodec.writeNodes(buffer, Arrays.asList(sender, receiver));
+		// Cut off the last byte of the second node
+		buffer.position(buffer.position() - 1);
+
+		read().readNodes();
+	}
+
+	@Test(expected = MalformedMessageException.class)
+	public void lengthBeyondTheMessageIsRejected() {
+		MessageCodec.writeHeader(buffer, MessageType.DATA, sender, receiver,
+				42);
+		buffer.putShort((short) 100);
+		buffer.put(new byte[10]);
+
+		read().readBytes();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tooManyNodesAreRejected() {
+		NodeIdentifier[] nodes = new NodeIdentifier[MessageCodec.MAX_NODES + 1];
+		Arrays.fill(nodes, sender);
+		MessageCodec.writeNodes(ByteBuffer.allocate(1 << 16),
+				Arrays.asList(nodes));
+	}
+}
@@ -0,0 +1,138 @@
+package message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import node.Identifier;
+import node.NodeIdentifier;
+
+import org.junit.Test;
+
+public class RpcRegistryTest {
+
+    private final RpcRegistry registry = new RpcRegistry();
+
+    private final NodeIdentifier peer = node("10.0.0.1");
+    private final NodeIdentifier other = node("10.0.0.2");
+
+    private static NodeIdentifier node(String ip) {
+        return new NodeIdentifier(160, Identifier.getRandomIdentifier(160)
+                .getBytes(), new InetSocketAddress(ip, 4000));
+    }
+
+    /**
+     * Counts the notifications of an ack.
+     */
+    private static class Callback implements MessageCallback {
+        int received, timedOut, cancelled;
+
+        @Override
+        public void onReceive() {
+            received++;
+        }
+
+        @Override
+        public void onTimeout() {
+            timedOut++;
+        }
+
+        @Override
+        public void onCancel() {
+            cancelled++;
+        }
+    }
+
+    private static Ack ack(long id, NodeIdentifier receiver, Callback cb) {
+        // Never resent, so no transport is needed
+        return new Ack(id, receiver, null, ByteBuffer.allocate(1), cb);
+    }
+
+    @Test
+    public void addAndRemove() {
+        Ack ack = ack(1, peer, null);
+        registry.add(ack);
+
+        assertEquals(1, registry.size());
+        assertEquals(1, registry.inFlight(peer.getAddress()));
+
+        assertSame(ack, registry.remove(1, peer));
+        assertTrue(registry.isEmpty());
+        assertEquals(0, registry.inFlight(peer.getAddress()));
+        assertNull(registry.remove(1, peer));
+    }
+
+    @Test
+    public void answerOfAnotherNodeIsIgnored() {
+        Ack ack = ack(1, peer, null);
+        registry.add(ack);
+
+        // Same RPC ID, wrong sender: the RPC keeps waiting for its answer
+        assertNull(registry.remove(1, other));
+        assertEquals(1, registry.size());
+        assertSame(ack, registry.remove(1, peer));
+    }
+
+    @Test
+    public void manyAcksSurviveResizing() {
+        for (long id = 0; id < 1000; id++) {
+            registry.add(ack(id, id % 2 == 0 ? peer : other, null));
+        }
+        assertEquals(1000, registry.size());
+        assertEquals(500, registry.inFlight(peer.getAddress()));
+
+        for (long id = 0; id < 1000; id += 2) {
+            assertEquals(id, registry.remove(id, peer).getID());
+        }
+        assertEquals(500, registry.size());
+        assertEquals(0, registry.inFlight(peer.getAddress()));
+        assertEquals(500, registry.inFlight(other.getAddress()));
+    }
+
+    @Test
+    public void cancelAllNotifiesEveryCallbackOnce() {
+        Callback cb = new Callback();
+        for (long id = 0; id < 100; id++) {
+            registry.add(ack(id, peer, cb));
+        }
+
+        registry.cancelAll();
+
+        assertEquals(100, cb.cancelled);
+        assertEquals(0, cb.received + cb.timedOut);
+        assertTrue(registry.isEmpty());
+        assertEquals(0, registry.inFlight(peer.getAddress()));
+        assertNull(registry.remove(0, peer));
+    }
+
+    @Test
+    public void cancelledAckIsNotReceived() {
+        Callback cb = new Callback();
+        Ack ack = ack(1, peer, cb);
+        registry.add(ack);
+
+        registry.cancelAll();
+        // An answer racing with the close
+        ack.setReceived();
+
+        assertEquals(1, cb.cancelled);
+        assertEquals(0, cb.received);
+    }
+
+    @Test
+    public void receivedAckIsNotCancelled() {
+        Callback cb = new Callback();
+        Ack ack = ack(1, peer, cb);
+        registry.add(ack);
+
+        registry.remove(1, peer).setReceived();
+        registry.cancelAll();
+
+        assertEquals(1, cb.received);
+        assertEquals(0, cb.cancelled);
+    }
+}
@@ -0,0 +1,103 @@
+package node;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class IdentifierTest {
+
+    private static Identifier id(int size, int... bytes) {
+        byte[] value = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            value[i] = (byte) bytes[i];
+        }
+        return new Identifier(size, value);
+    }
+
+    @Test
+    public void distanceIsXor() {
+        Identifier a = id(16, 0xF0, 0x0F);
+        Identifier b = id(16, 0x0F, 0x0F);
+
+        assertEquals(BigInteger.valueOf(0xFF00), a.distanceTo(b));
+        assertEquals(a.distanceTo(b), b.distanceTo(a));
+        assertEquals(BigInteger.ZERO, a.distanceTo(a));
+    }
+
+    @Test
+    public void distanceSpansWords() {
+        // 160 bits are three words, the last one only half used
+        byte[] bytes = new byte[20];
+        bytes[0] = (byte) 0x80;
+        bytes[19] = 0x01;
+        Identifier a = new Identifier(160, bytes);
+        Identifier zero = new Identifier(160, new byte[20]);
+
+        assertEquals(BigInteger.ONE.shiftLeft(159).add(BigInteger.ONE),
+                a.distanceTo(zero));
+    }
+
+    @Test
+    public void compareDistanceOrdersByXor() {
+        Identifier target = id(16, 0x00, 0x00);
+        Identifier near = id(16, 0x00, 0xFF);
+        Identifier far = id(16, 0x01, 0x00);
+
+        assertTrue(target.compareDistance(near, far) < 0);
+        assertTrue(target.compareDistance(far, near) > 0);
+        assertEquals(0, target.compareDistance(near, id(16, 0x00, 0xFF)));
+    }
+
+    @Test
+    public void commonPrefixLength() {
+        Identifier a = id(16, 0xA0, 0x00);
+
+        assertEquals(16, a.commonPrefixLength(a));
+        assertEquals(0, a.commonPrefixLength(id(16, 0x20, 0x00)));
+        assertEquals(3, a.commonPrefixLength(id(16, 0xB0, 0x00)));
+        assertEquals(15, a.commonPrefixLength(id(16, 0xA0, 0x01)));
+    }
+
+    @Test
+    public void bitsCountFromTheMostSignificant() {
+        Identifier a = id(16, 0x80, 0x01);
+
+        assertTrue(a.bitAt(0));
+        assertFalse(a.bitAt(1));
+        assertFalse(a.bitAt(14));
+        assertTrue(a.isBitSetAt(15));
+    }
+
+    @Test
+    public void shortBytesArePaddedWithLeadingZeros() {
+        Identifier a = id(32, 0x12, 0x34);
+
+        assertEquals(32, a.getSize());
+        assertArrayEquals(new byte[] { 0, 0, 0x12, 0x34 }, a.getBytes());
+        assertEquals(id(32, 0, 0, 0x12, 0x34), a);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyBytesAreRejected() {
+        id(16, 0x01, 0x02, 0x03);
+    }
+
+    @Test
+    public void bytesRoundTripThroughABuffer() {
+        Identifier a = Identifier.getRandomIdentifier(160);
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        a.writeTo(buffer);
+        buffer.flip();
+
+        Identifier read = new Identifier(160, buffer);
+        assertEquals(a, read);
+        assertEquals(a.hashCode(), read.hashCode());
+        assertArrayEquals(a.getBytes(), read.getBytes());
+    }
+}
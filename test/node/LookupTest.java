@@ -0,0 +1,186 @@
+package node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sim.LoopbackNetwork;
+import store.MemoryValueStore;
+
+public class LookupTest {
+
+	private static final int ID_BITS = 160;
+
+	private final LoopbackNetwork network = new LoopbackNetwork();
+	private Node node;
+
+	private final Identifier target = new Identifier(ID_BITS, new byte[0]);
+
+	@Before
+	public void setUp() {
+		node = newNode(Identifier.getStaticIdentifier(ID_BITS), null);
+	}
+
+	@After
+	public void tearDown() {
+		node.close();
+	}
+
+	private Node newNode(Identifier id, NodeIdentifier bootstrap) {
+		return new Node(id, new MemoryValueStore(), new MemoryValueStore(),
+				network.newTransport(), bootstrap);
+	}
+
+	/**
+	 * Returns a contact the given number of steps away from the target: the
+	 * larger the number, the farther. Nothing listens on its address, so the
+	 * queries of the lookup go nowhere and the test answers for it.
+	 */
+	private static NodeIdentifier contact(int distance) {
+		byte[] id = new byte[ID_BITS / 8];
+		id[0] = (byte) distance;
+		return new NodeIdentifier(ID_BITS, id, new InetSocketAddress(
+				"192.0.2." + distance, 4000));
+	}
+
+	private static List<NodeIdentifier> none() {
+		return Collections.emptyList();
+	}
+
+	@Test
+	public void completesWhenTheClosestAnswered() throws Exception {
+		Lookup lookup = new Lookup(node, target, false, 3, 2);
+		lookup.start(Arrays.asList(contact(3), contact(1), contact(2)));
+
+		lookup.receivedNodes(contact(1), none());
+		assertFalse(lookup.getFuture().isDone());
+		lookup.receivedNodes(contact(2), none());
+
+		// The k closest answered, the third is never queried
+		LookupResult result = lookup.getFuture().getNow(null);
+		assertEquals(Arrays.asList(contact(1), contact(2)),
+				result.getClosestNodes());
+		assertEquals(2, result.getQueries());
+	}
+
+	@Test
+	public void completesWhenANodeTimesOut() {
+		Lookup lookup = new Lookup(node, target, false, 3, 2);
+		lookup.start(Arrays.asList(contact(1), contact(2), contact(3)));
+
+		lookup.receivedNodes(contact(2), none());
+		assertFalse(lookup.getFuture().isDone());
+
+		// The closest node is gone, the third one takes its place
+		lookup.timedOut(contact(1));
+		assertFalse(lookup.getFuture().isDone());
+		lookup.receivedNodes(contact(3), none());
+
+		LookupResult result = lookup.getFuture().getNow(null);
+		assertEquals(Arrays.asList(contact(2), contact(3)),
+				result.getClosestNodes());
+		assertEquals(3, result.getQueries());
+	}
+
+	@Test
+	public void timeoutMakesRoomForTheNextQuery() {
+		Lookup lookup = new Lookup(node, target, false, 1, 2);
+		lookup.start(Arrays.asList(contact(1), contact(2)));
+
+		// Only one query at a time: contact(2) is asked once contact(1)
+		// gave up
+		lookup.timedOut(contact(1));
+		lookup.receivedNodes(contact(2), Arrays.asList(contact(4)));
+		assertFalse(lookup.getFuture().isDone());
+		lookup.receivedNodes(contact(4), none());
+
+		LookupResult result = lookup.getFuture().getNow(null);
+		assertEquals(Arrays.asList(contact(2), contact(4)),
+				result.getClosestNodes());
+		assertEquals(3, result.getQueries());
+		assertEquals(2, result.getHops());
+	}
+
+	@Test
+	public void completesWhenAllNodesTimeOut() {
+		Lookup lookup = new Lookup(node, target, false, 3, 2);
+		lookup.start(Arrays.asList(contact(1), contact(2)));
+
+		lookup.timedOut(contact(1));
+		lookup.timedOut(contact(2));
+
+		LookupResult result = lookup.getFuture().getNow(null);
+		assertTrue(result.getClosestNodes().isEmpty());
+	}
+
+	@Test
+	public void valueEndsTheLookup() {
+		Lookup lookup = new Lookup(node, target, true, 3, 2);
+		lookup.start(Arrays.asList(contact(1), contact(2), contact(3)));
+
+		lookup.receivedValue(contact(2), contact(9));
+		// Late answers are ignored
+		lookup.receivedNodes(contact(1), Arrays.asList(contact(4)));
+
+		LookupResult result = lookup.getFuture().getNow(null);
+		assertTrue(result.isValueFound());
+		assertEquals(contact(9), result.getValueHolder());
+		assertEquals(Arrays.asList(contact(2)), result.getClosestNodes());
+	}
+
+	@Test
+	public void closeFailsTheLookup() throws Exception {
+		Lookup lookup = new Lookup(node, target, false, 3, 2);
+		lookup.start(Arrays.asList(contact(1)));
+
+		node.close();
+
+		try {
+			lookup.getFuture().get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+			return;
+		}
+		throw new AssertionError("The lookup completed after the close");
+	}
+
+	@Test
+	public void deadContactTimesOutInTheNetwork() throws Exception {
+		Node other = newNode(Identifier.getRandomIdentifier(ID_BITS),
+				node.getContact());
+		Node dead = newNode(Identifier.getRandomIdentifier(ID_BITS),
+				node.getContact());
+		try {
+			// Wait for both to join
+			long deadline = System.currentTimeMillis() + 5000;
+			while (node.getNeighbors().size() < 2
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(2, node.getNeighbors().size());
+
+			// Crashes without telling anyone
+			dead.close();
+
+			LookupResult result = node.findNode(target, 30, TimeUnit.SECONDS)
+					.get();
+			assertEquals(Arrays.asList(other.getContact()),
+					result.getClosestNodes());
+			assertNull(result.getValueHolder());
+		} finally {
+			other.close();
+		}
+	}
+}
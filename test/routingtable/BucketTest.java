@@ -0,0 +1,163 @@
+package routingtable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import node.Identifier;
+import node.NodeIdentifier;
+
+import org.junit.Test;
+
+public class BucketTest {
+
+    private static final Identifier OWN_ID = new Identifier(8,
+            new byte[] { (byte) 0x80 });
+
+    private static NodeIdentifier node(int id) {
+        return new NodeIdentifier(8, new byte[] { (byte) id },
+                new InetSocketAddress("10.0.0." + id, 4000));
+    }
+
+    private static Set<NodeIdentifier> entries(Bucket bucket) {
+        Set<NodeIdentifier> entries = new HashSet<NodeIdentifier>();
+        bucket.snapshot().collectEntries(entries);
+        return entries;
+    }
+
+    private static List<Integer> sizes(Bucket bucket) {
+        List<Integer> sizes = new ArrayList<Integer>();
+        bucket.snapshot().collectBucketSizes(sizes);
+        return sizes;
+    }
+
+    @Test
+    public void ownRangeSplitsWhenFull() {
+        Bucket root = new Bucket(2, 0, OWN_ID, true);
+        root.insert(node(0x81), 0);
+        root.insert(node(0x01), 0);
+        assertEquals(Arrays.asList(2), sizes(root));
+
+        // Doesn't fit, the root covers the own ID
+        assertNull(root.insert(node(0xC0), 0));
+
+        // Left (first bit set, like the own ID) and right
+        assertEquals(Arrays.asList(2, 1), sizes(root));
+        assertEquals(new HashSet<NodeIdentifier>(Arrays.asList(node(0x81),
+                node(0x01), node(0xC0))), entries(root));
+    }
+
+    @Test
+    public void farRangeDoesNotSplit() {
+        Bucket root = new Bucket(2, 0, OWN_ID, true);
+        root.insert(node(0x81), 0);
+        root.insert(node(0x01), 0);
+        root.insert(node(0xC0), 0);
+
+        // The right half doesn't cover the own ID: the third contact is cached
+        root.insert(node(0x02), 0);
+        assertNull(root.insert(node(0x03), 0));
+        assertEquals(Arrays.asList(2, 2), sizes(root));
+        assertFalse(entries(root).contains(node(0x03)));
+    }
+
+    @Test
+    public void knownContactMovesToTheEnd() {
+        Bucket bucket = new Bucket(2, 1, OWN_ID, false);
+        bucket.insert(node(0x01), 0);
+        bucket.insert(node(0x02), 0);
+        // 0x01 answered again, 0x02 is now the least recently seen
+        bucket.insert(node(0x01), 10);
+
+        long stale = 10 + Bucket.STALE_TIME;
+        assertEquals(node(0x02), bucket.insert(node(0x03), stale));
+    }
+
+    @Test
+    public void recentlySeenContactIsNotPinged() {
+        Bucket bucket = new Bucket(2, 1, OWN_ID, false);
+        bucket.insert(node(0x01), 0);
+        bucket.insert(node(0x02), 0);
+
+        assertNull(bucket.insert(node(0x03), Bucket.STALE_TIME - 1));
+        assertEquals(node(0x01), bucket.insert(node(0x04), Bucket.STALE_TIME));
+        // Only one ping at a time
+        assertNull(bucket.insert(node(0x05), Bucket.STALE_TIME));
+    }
+
+    @Test
+    public void answeredPingKeepsTheContact() {
+        Bucket bucket = new Bucket(2, 1, OWN_ID, false);
+        bucket.insert(node(0x01), 0);
+        bucket.insert(node(0x02), 0);
+        assertEquals(node(0x01), bucket.insert(node(0x03), Bucket.STALE_TIME));
+
+        bucket.pingAnswered(node(0x01));
+
+        assertEquals(new HashSet<NodeIdentifier>(Arrays.asList(node(0x01),
+                node(0x02))), entries(bucket));
+        // 0x02 is the least recently seen now (0x01 was seen just now)
+        assertEquals(node(0x02), bucket.insert(node(0x04), Bucket.STALE_TIME));
+    }
+
+    @Test
+    public void removedContactIsReplacedByTheMostRecentReplacement() {
+        Bucket bucket = new Bucket(2, 1, OWN_ID, false);
+        bucket.insert(node(0x01), 0);
+        bucket.insert(node(0x02), 0);
+        bucket.insert(node(0x03), 0);
+        bucket.insert(node(0x04), 0);
+
+        assertTrue(bucket.remove(node(0x01)));
+        assertEquals(new HashSet<NodeIdentifier>(Arrays.asList(node(0x02),
+                node(0x04))), entries(bucket));
+
+        assertTrue(bucket.remove(node(0x02)));
+        assertEquals(new HashSet<NodeIdentifier>(Arrays.asList(node(0x03),
+                node(0x04))), entries(bucket));
+
+        // The cache is empty now
+        assertTrue(bucket.remove(node(0x03)));
+        assertEquals(Arrays.asList(1), sizes(bucket));
+        assertFalse(bucket.remove(node(0x03)));
+    }
+
+    @Test
+    public void replacementCacheKeepsTheMostRecent() {
+        Bucket bucket = new Bucket(2, 1, OWN_ID, false);
+        bucket.insert(node(0x01), 0);
+        bucket.insert(node(0x02), 0);
+        // Three replacements, the cache holds two
+        bucket.insert(node(0x03), 0);
+        bucket.insert(node(0x04), 0);
+        bucket.insert(node(0x05), 0);
+
+        bucket.remove(node(0x01));
+        bucket.remove(node(0x02));
+        assertEquals(new HashSet<NodeIdentifier>(Arrays.asList(node(0x04),
+                node(0x05))), entries(bucket));
+    }
+
+    @Test
+    public void snapshotIsReusedUntilTheBucketChanges() {
+        Bucket bucket = new Bucket(2, 1, OWN_ID, false);
+        bucket.insert(node(0x01), 0);
+
+        BucketSnapshot snapshot = bucket.snapshot();
+        // Only the order changes
+        bucket.insert(node(0x01), 1);
+        assertTrue(snapshot == bucket.snapshot());
+
+        bucket.insert(node(0x02), 1);
+        assertFalse(snapshot == bucket.snapshot());
+        assertTrue(bucket.snapshot().contains(node(0x02)));
+    }
+}
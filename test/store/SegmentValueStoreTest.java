@@ -0,0 +1,195 @@
+package store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import node.FileIdentifier;
+import node.Identifier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentValueStoreTest {
+
+	private static final int ID_BITS = 160;
+
+	// Holds 7 records of 100 bytes
+	private static final int SEGMENT_SIZE = 1024;
+
+	// [CRC32][value length][timestamp][type][key length][key]
+	private static final int RECORD_OVERHEAD = 4 + 4 + 8 + 1 + 1 + ID_BITS / 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private SegmentValueStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = folder.newFolder("store");
+		store = open();
+	}
+
+	@After
+	public void tearDown() {
+		store.close();
+	}
+
+	private SegmentValueStore open() {
+		return new SegmentValueStore(directory, ID_BITS, SEGMENT_SIZE, false);
+	}
+
+	private void reopen() {
+		store.close();
+		store = open();
+	}
+
+	private static Identifier key(int i) {
+		return FileIdentifier.forKey(ID_BITS, "key" + i);
+	}
+
+	private static ByteBuffer value(int i, int length) {
+		ByteBuffer value = ByteBuffer.allocate(length);
+		while (value.hasRemaining()) {
+			value.put((byte) i);
+		}
+		value.flip();
+		return value;
+	}
+
+	private File[] segments() {
+		return directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith("segment-");
+			}
+		});
+	}
+
+	@Test
+	public void putGetRemove() {
+		store.put(key(1), value(1, 10));
+		store.put(key(2), value(2, 0));
+
+		assertEquals(value(1, 10), store.get(key(1)));
+		assertEquals(value(2, 0), store.get(key(2)));
+		assertTrue(store.getTimestamp(key(1)) > 0);
+		assertEquals(2, store.size());
+
+		assertTrue(store.remove(key(1)));
+		assertFalse(store.remove(key(1)));
+		assertNull(store.get(key(1)));
+		assertEquals(-1, store.getTimestamp(key(1)));
+		assertEquals(1, store.keys().size());
+	}
+
+	@Test
+	public void viewSurvivesOverwrite() {
+		store.put(key(1), value(1, 10));
+		ByteBuffer view = store.get(key(1));
+
+		store.put(key(1), value(2, 10));
+
+		assertEquals(value(1, 10), view);
+		assertEquals(value(2, 10), store.get(key(1)));
+	}
+
+	@Test
+	public void reopenRestoresTheIndex() {
+		for (int i = 0; i < 20; i++) {
+			store.put(key(i), value(i, 100));
+		}
+		store.put(key(3), value(33, 50));
+		store.remove(key(4));
+		long timestamp = store.getTimestamp(key(5));
+
+		reopen();
+
+		assertEquals(19, store.size());
+		assertEquals(value(33, 50), store.get(key(3)));
+		assertFalse(store.contains(key(4)));
+		assertEquals(value(19, 100), store.get(key(19)));
+		assertEquals(timestamp, store.getTimestamp(key(5)));
+	}
+
+	@Test
+	public void compactionDropsOverwrittenRecords() {
+		// Overwriting two keys over and over fills segment after segment
+		// with garbage
+		for (int round = 0; round < 50; round++) {
+			store.put(key(1), value(round, 100));
+			store.put(key(2), value(round + 1, 100));
+		}
+		store.compact();
+
+		// Only the active segment and the one it started from are left
+		assertTrue(segments().length <= 2);
+		assertEquals(2, store.size());
+		assertEquals(value(49, 100), store.get(key(1)));
+		assertEquals(value(50, 100), store.get(key(2)));
+
+		reopen();
+		assertEquals(2, store.size());
+		assertEquals(value(49, 100), store.get(key(1)));
+		assertEquals(value(50, 100), store.get(key(2)));
+	}
+
+	@Test
+	public void compactionKeepsDeletes() {
+		store.put(key(1), value(1, 100));
+		store.remove(key(1));
+		for (int round = 0; round < 50; round++) {
+			store.put(key(2), value(round, 100));
+		}
+		store.compact();
+
+		reopen();
+		assertFalse(store.contains(key(1)));
+		assertEquals(value(49, 100), store.get(key(2)));
+	}
+
+	@Test
+	public void reopenDropsARecordWithABadChecksum() throws IOException {
+		store.put(key(1), value(1, 100));
+		store.put(key(2), value(2, 100));
+		store.close();
+
+		// Flip the last byte of the second value, as if torn by a crash
+		try (RandomAccessFile file = new RandomAccessFile(new File(
+				directory, "segment-0.dat"), "rw")) {
+			long position = 2 * (RECORD_OVERHEAD + 100) - 1;
+			file.seek(position);
+			int last = file.read();
+			file.seek(position);
+			file.write(last ^ 0xFF);
+		}
+
+		store = open();
+		assertEquals(1, store.size());
+		assertEquals(value(1, 100), store.get(key(1)));
+		assertFalse(store.contains(key(2)));
+
+		// The torn record is overwritten by the next one
+		store.put(key(3), value(3, 100));
+		reopen();
+		assertEquals(2, store.size());
+		assertEquals(value(3, 100), store.get(key(3)));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void directoryCanOnlyBeOpenedOnce() {
+		open();
+	}
+}